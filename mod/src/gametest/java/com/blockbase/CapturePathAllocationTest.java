@@ -0,0 +1,169 @@
+package com.blockbase;
+
+import net.fabricmc.fabric.api.event.player.PlayerBlockBreakEvents;
+import net.fabricmc.fabric.api.gametest.v1.FabricGameTest;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.core.SectionPos;
+import net.minecraft.gametest.framework.GameTest;
+import net.minecraft.gametest.framework.GameTestAssertException;
+import net.minecraft.gametest.framework.GameTestHelper;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.InteractionHand;
+import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.item.BlockItem;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
+import net.minecraft.world.item.context.BlockPlaceContext;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.phys.BlockHitResult;
+import net.minecraft.world.phys.Vec3;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Keeps the block capture path allocation-free. The edits go through the same entry points
+ * as play: Level.setBlock through LevelMixin (burst counting, then per-block tracking),
+ * BlockItem.place through BlockItemMixin, and the block break event.
+ *
+ * Each tick runs the same edits with tracking on or off in turn, and the bytes the server
+ * thread allocates are compared, so what vanilla allocates for the edit itself cancels out.
+ * The edits cycle over positions the warmup has already recorded and stay below the burst
+ * threshold per section and tick, so this covers the steady-state merge path; first-time
+ * positions, new sections and burst snapshots allocate by design.
+ */
+public class CapturePathAllocationTest implements FabricGameTest {
+	// Tracked-minus-untracked bytes per event above this fail the test
+	private static final double MAX_BYTES_PER_EVENT = 1.0;
+	private static final int WARMUP_TICKS = 40;
+	private static final int MEASURED_TICKS = 200; // half with tracking on, half off
+	private static final int SECTIONS = 16;
+	private static final int TIMEOUT_TICKS = WARMUP_TICKS + MEASURED_TICKS + 20;
+
+	/**
+	 * One tick's worth of edits.
+	 */
+	private interface Edits {
+		/**
+		 * @return the number of tracked events the edits produce
+		 */
+		int run(ServerLevel level, BlockPos.MutableBlockPos pos, int tick);
+	}
+
+	@GameTest(template = EMPTY_STRUCTURE, batch = "blockbase_capture_modify", timeoutTicks = TIMEOUT_TICKS)
+	public void setBlockModifyIsAllocationFree(GameTestHelper helper) {
+		BlockPos base = sectionBase(helper);
+		BlockState stone = Blocks.STONE.defaultBlockState();
+		BlockState dirt = Blocks.DIRT.defaultBlockState();
+		int perSection = BurstDetector.BURST_THRESHOLD / 2;
+		measure(helper, (level, pos, tick) -> {
+			BlockState state = tick % 2 == 0 ? stone : dirt;
+			for (int section = 0; section < SECTIONS; section++) {
+				for (int i = 0; i < perSection; i++) {
+					level.setBlock(at(pos, base, section, i), state, Block.UPDATE_CLIENTS | Block.UPDATE_KNOWN_SHAPE);
+				}
+			}
+			return SECTIONS * perSection;
+		});
+	}
+
+	@GameTest(template = EMPTY_STRUCTURE, batch = "blockbase_capture_place_break", timeoutTicks = TIMEOUT_TICKS)
+	public void placeAndBreakAreAllocationFree(GameTestHelper helper) {
+		BlockPos base = sectionBase(helper);
+		Player player = helper.makeMockPlayer();
+		BlockItem item = (BlockItem) Items.STONE;
+		ItemStack stack = new ItemStack(item);
+		// Each position is written twice a tick, by the placement and by the break
+		int perSection = BurstDetector.BURST_THRESHOLD / 4;
+		measure(helper, (level, pos, tick) -> {
+			for (int section = 0; section < SECTIONS; section++) {
+				for (int i = 0; i < perSection; i++) {
+					BlockPos target = at(pos, base, section, i).immutable();
+					item.place(new BlockPlaceContext(player, InteractionHand.MAIN_HAND, stack,
+						new BlockHitResult(Vec3.atCenterOf(target), Direction.UP, target, false)));
+				}
+			}
+			for (int section = 0; section < SECTIONS; section++) {
+				for (int i = 0; i < perSection; i++) {
+					BlockPos target = at(pos, base, section, i);
+					BlockState state = level.getBlockState(target);
+					if (PlayerBlockBreakEvents.BEFORE.invoker().beforeBlockBreak(level, player, target, state, null)) {
+						level.removeBlock(target, false);
+					}
+				}
+			}
+			return 2 * SECTIONS * perSection;
+		});
+	}
+
+	/**
+	 * Run {@code edits} once per tick, then compare what the tracked and untracked ticks
+	 * allocated and pass or fail the test.
+	 */
+	private static void measure(GameTestHelper helper, Edits edits) {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean bean) || !bean.isThreadAllocatedMemorySupported()) {
+			Blockbase.LOGGER.warn("This JVM does not report per-thread allocation, skipping {}", helper.getLevel());
+			helper.succeed();
+			return;
+		}
+		bean.setThreadAllocatedMemoryEnabled(true);
+		ServerLevel level = helper.getLevel();
+		BlockTracker tracker = Blockbase.trackers.get(level);
+		if (tracker == null) {
+			throw new GameTestAssertException("No tracker for " + level.dimension().location());
+		}
+
+		BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+		long[] bytes = new long[2]; // untracked, tracked
+		long[] events = new long[2];
+		for (int tick = 1; tick <= WARMUP_TICKS + MEASURED_TICKS; tick++) {
+			int current = tick;
+			helper.runAtTickTime(tick, () -> {
+				boolean tracking = current <= WARMUP_TICKS || current % 2 == 0;
+				tracker.setTracking(tracking);
+				long before = bean.getCurrentThreadAllocatedBytes();
+				int count = edits.run(level, pos, current);
+				tracker.drainPending();
+				long allocated = bean.getCurrentThreadAllocatedBytes() - before;
+				tracker.setTracking(true);
+				if (current > WARMUP_TICKS) {
+					int slot = tracking ? 1 : 0;
+					bytes[slot] += allocated;
+					events[slot] += count;
+				}
+			});
+		}
+		helper.runAtTickTime(WARMUP_TICKS + MEASURED_TICKS + 1, () -> {
+			double perEvent = (double) bytes[1] / events[1] - (double) bytes[0] / events[0];
+			Blockbase.LOGGER.info("Capture path allocation: {} bytes/event over {} tracked events",
+				String.format("%.3f", perEvent), events[1]);
+			if (perEvent > MAX_BYTES_PER_EVENT) {
+				throw new GameTestAssertException(String.format(
+					"Capture path allocated %.3f bytes per tracked event (limit %.1f)", perEvent, MAX_BYTES_PER_EVENT));
+			}
+			helper.succeed();
+		});
+	}
+
+	/**
+	 * @return the block origin of the chunk column holding the test, at the test's section
+	 */
+	private static BlockPos sectionBase(GameTestHelper helper) {
+		BlockPos origin = helper.absolutePos(BlockPos.ZERO);
+		return new BlockPos(
+			SectionPos.sectionToBlockCoord(SectionPos.blockToSectionCoord(origin.getX())),
+			SectionPos.sectionToBlockCoord(SectionPos.blockToSectionCoord(origin.getY())) + 16,
+			SectionPos.sectionToBlockCoord(SectionPos.blockToSectionCoord(origin.getZ())));
+	}
+
+	/**
+	 * Position {@code i} of section {@code section} above {@code base}, one column of
+	 * sections so every edit lands in the loaded chunk holding the test.
+	 */
+	private static BlockPos.MutableBlockPos at(BlockPos.MutableBlockPos pos, BlockPos base, int section, int i) {
+		return pos.set(base.getX() + (i & 15), base.getY() + section * 16 + (i >> 4), base.getZ() + 8);
+	}
+}
@@ -5,8 +5,13 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okio.BufferedSink;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -58,16 +63,41 @@ public class ApiClient {
     }
 
     // POST /api/repos/:id/commits
-    public ApiResult createCommit(String repoId, String commitId, String message, String author, String timestamp, String changesJsonArray) {
-        // changesJsonArray is expected to be a raw JSON array string built elsewhere
-        String json = "{"
-                + "\"id\":\"" + escape(commitId) + "\","
-                + "\"message\":\"" + escape(message) + "\","
-                + "\"author\":\"" + escape(author) + "\","
-                + "\"timestamp\":\"" + escape(timestamp) + "\","
-                + "\"changes\":" + (changesJsonArray == null ? "[]" : changesJsonArray)
-                + "}";
-        return post("/repos/" + encode(repoId) + "/commits", json);
+    public ApiResult createCommit(String repoId, String commitId, String message, String author, String timestamp, JsonWriter changes) {
+        // changes writes a raw JSON array; it is streamed into the request, never built as one String
+        String head = "{"
+                + "\"id\":\"" + Formats.escape(commitId) + "\","
+                + "\"message\":\"" + Formats.escape(message) + "\","
+                + "\"author\":\"" + Formats.escape(author) + "\","
+                + "\"timestamp\":\"" + Formats.escape(timestamp) + "\","
+                + "\"changes\":";
+        return post("/repos/" + encode(repoId) + "/commits", new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return JSON;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                // May be called again if the request is retried, so changes must be repeatable
+                Writer out = new BufferedWriter(new OutputStreamWriter(sink.outputStream(), StandardCharsets.UTF_8));
+                out.write(head);
+                if (changes == null) {
+                    out.write("[]");
+                } else {
+                    changes.writeTo(out);
+                }
+                out.write("}");
+                out.flush();
+            }
+        });
+    }
+
+    /**
+     * Writes a JSON value into a request body.
+     */
+    public interface JsonWriter {
+        void writeTo(Writer out) throws IOException;
     }
 
     // GET /api/repos/:id/commits
@@ -88,7 +118,10 @@ public class ApiClient {
     }
 
     private ApiResult post(String path, String jsonBody) {
-        RequestBody body = RequestBody.create(jsonBody, JSON);
+        return post(path, RequestBody.create(jsonBody, JSON));
+    }
+
+    private ApiResult post(String path, RequestBody body) {
         Request.Builder req = new Request.Builder().url(baseUrl + path).post(body);
         withCommonHeaders(req);
         try (Response resp = httpClient.newCall(req.build()).execute()) {
@@ -133,10 +166,10 @@ public class ApiClient {
     private static String buildJson(Map<String, Object> base, Map<String, Object> extra) {
         // Minimal JSON builder for flat primitives and strings
         String jsonBase = base.entrySet().stream()
-                .map(e -> "\"" + escape(e.getKey()) + "\":" + toJsonValue(e.getValue()))
+                .map(e -> "\"" + Formats.escape(e.getKey()) + "\":" + toJsonValue(e.getValue()))
                 .collect(Collectors.joining(","));
         String jsonExtra = extra != null ? extra.entrySet().stream()
-                .map(e -> "\"" + escape(e.getKey()) + "\":" + toJsonValue(e.getValue()))
+                .map(e -> "\"" + Formats.escape(e.getKey()) + "\":" + toJsonValue(e.getValue()))
                 .collect(Collectors.joining(",")) : "";
         String combined = jsonBase + (jsonExtra.isEmpty() ? "" : ("," + jsonExtra));
         return "{" + combined + "}";
@@ -147,17 +180,13 @@ public class ApiClient {
         if (v instanceof Number || v instanceof Boolean) {
             return String.valueOf(v);
         }
-        return "\"" + escape(String.valueOf(v)) + "\"";
+        return "\"" + Formats.escape(String.valueOf(v)) + "\"";
     }
 
     private static String encode(String s) {
         return s.replace(" ", "%20");
     }
 
-    private static String escape(String s) {
-        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "\\r");
-    }
-
     private static String trimTrailingSlash(String s) {
         if (s == null) return null;
         if (s.endsWith("/")) return s.substring(0, s.length() - 1);
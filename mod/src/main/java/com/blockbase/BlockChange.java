@@ -7,13 +7,18 @@ import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.block.Block;
 import net.minecraft.world.level.block.state.properties.Property;
 
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Represents a single block change (placement, break, or modification).
+ * States are held as block state registry ids; see {@link StatePalette}.
  */
 public class BlockChange {
 	private final BlockPos position;
-	private final BlockState oldState;  // null if block was placed (didn't exist before)
-	private final BlockState newState;  // null if block was broken (doesn't exist now)
+	private final int oldStateId;  // ChangeQueue.NO_STATE if block was placed (didn't exist before)
+	private final int newStateId;  // ChangeQueue.NO_STATE if block was broken (doesn't exist now)
 	private final long timestamp;
 	private final ChangeType type;
 
@@ -24,15 +29,21 @@ public class BlockChange {
 	}
 
 	public BlockChange(BlockPos position, BlockState oldState, BlockState newState, long timestamp) {
+		this(position, StatePalette.stateId(oldState), StatePalette.stateId(newState), timestamp);
+	}
+
+	public BlockChange(BlockPos position, int oldStateId, int newStateId, long timestamp) {
 		this.position = position;
-		this.oldState = oldState;
-		this.newState = newState;
+		this.oldStateId = oldStateId;
+		this.newStateId = newStateId;
 		this.timestamp = timestamp;
 		
 		// Determine change type
-		if (oldState == null && newState != null) {
+		boolean hadOld = oldStateId != ChangeQueue.NO_STATE;
+		boolean hasNew = newStateId != ChangeQueue.NO_STATE;
+		if (!hadOld && hasNew) {
 			this.type = ChangeType.PLACED;
-		} else if (oldState != null && newState == null) {
+		} else if (hadOld && !hasNew) {
 			this.type = ChangeType.BROKEN;
 		} else {
 			this.type = ChangeType.MODIFIED;
@@ -44,11 +55,25 @@ public class BlockChange {
 	}
 
 	public BlockState getOldState() {
-		return oldState;
+		return StatePalette.stateOf(oldStateId);
 	}
 
 	public BlockState getNewState() {
-		return newState;
+		return StatePalette.stateOf(newStateId);
+	}
+
+	/**
+	 * @return the old state's registry id, or {@link ChangeQueue#NO_STATE}
+	 */
+	public int getOldStateId() {
+		return oldStateId;
+	}
+
+	/**
+	 * @return the new state's registry id, or {@link ChangeQueue#NO_STATE}
+	 */
+	public int getNewStateId() {
+		return newStateId;
 	}
 
 	public long getTimestamp() {
@@ -66,7 +91,8 @@ public class BlockChange {
 	}
 	
 	/**
-	 * Serialize to a simple JSON-like string representation.
+	 * Serialize to a self-describing JSON string, with block names and property maps.
+	 * Used for the backend API and commit hashing; commit files use a palette instead.
 	 * Format:
 	 * {
 	 *   "x":1,"y":2,"z":3,
@@ -76,6 +102,8 @@ public class BlockChange {
 	 * }
 	 */
 	public String toJsonString(Registry<Block> blockRegistry) {
+		BlockState oldState = getOldState();
+		BlockState newState = getNewState();
 		StringBuilder json = new StringBuilder();
 		json.append("{");
 		json.append("\"x\":").append(position.getX()).append(",");
@@ -115,7 +143,7 @@ public class BlockChange {
 			String name = prop.getName();
 			String value = getPropertyValueAsString(state, prop);
 			if (!first) sb.append(",");
-			sb.append("\"").append(escape(name)).append("\":\"").append(escape(value)).append("\"");
+			sb.append("\"").append(Formats.escape(name)).append("\":\"").append(Formats.escape(value)).append("\"");
 			first = false;
 		}
 		sb.append("}");
@@ -129,143 +157,70 @@ public class BlockChange {
 	}
 	
 	/**
-	 * Create a BlockChange from JSON string.
-	 * Note: This is a simplified parser - for production, use a proper JSON library.
+	 * Read one change object, as written by {@link #toJsonString(Registry)} (or with the
+	 * older "oldState"/"newState" keys), from {@code json} and hand it to {@code out}.
+	 * @throws IOException if the object is malformed
 	 */
-	public static BlockChange fromJsonString(String json, Registry<Block> blockRegistry) {
-		// Simple JSON parsing (for MVP - in production, use Gson or Jackson)
-		// This is a basic implementation - assumes well-formed JSON
-		try {
-			int x = extractInt(json, "\"x\":");
-			int y = extractInt(json, "\"y\":");
-			int z = extractInt(json, "\"z\":");
-			long timestamp = extractLong(json, "\"timestamp\":");
-			String typeStr = extractString(json, "\"type\":\"");
-			
-			BlockPos pos = new BlockPos(x, y, z);
-			
-			// Support both new keys (...StateId) and legacy keys (...State)
-			String oldStateId = extractStringOrNull(json, "\"oldStateId\":");
-			if (oldStateId == null) oldStateId = extractStringOrNull(json, "\"oldState\":"); // legacy
-			String newStateId = extractStringOrNull(json, "\"newStateId\":");
-			if (newStateId == null) newStateId = extractStringOrNull(json, "\"newState\":"); // legacy
-			String oldPropsStr = extractObjectOrNull(json, "\"oldProps\":");
-			String newPropsStr = extractObjectOrNull(json, "\"newProps\":");
-			
-			BlockState oldState = null;
-			BlockState newState = null;
-			
-			if (oldStateId != null && !oldStateId.equals("null")) {
-				ResourceLocation oldId = ResourceLocation.tryParse(oldStateId);
-				if (oldId != null) {
-					Block oldBlock = blockRegistry.get(oldId);
-					if (oldBlock != null) {
-						oldState = applyProperties(oldBlock.defaultBlockState(), oldPropsStr);
-					}
-				}
+	public static void readJson(JsonTokenizer json, Registry<Block> blockRegistry, WorkingTree.Visitor out) throws IOException {
+		int x = 0, y = 0, z = 0;
+		long timestamp = 0;
+		String oldBlock = null, newBlock = null;
+		Map<String, String> oldProps = null, newProps = null;
+		json.beginObject();
+		while (json.hasNext()) {
+			switch (json.nextName()) {
+				case "x": x = json.nextInt(); break;
+				case "y": y = json.nextInt(); break;
+				case "z": z = json.nextInt(); break;
+				case "timestamp": timestamp = json.nextLong(); break;
+				case "oldState": // legacy
+				case "oldStateId": oldBlock = json.nextStringOrNull(); break;
+				case "newState": // legacy
+				case "newStateId": newBlock = json.nextStringOrNull(); break;
+				case "oldProps": oldProps = readProperties(json); break;
+				case "newProps": newProps = readProperties(json); break;
+				default: json.skipValue(); break; // "type" is derived from the states
 			}
-			
-			if (newStateId != null && !newStateId.equals("null")) {
-				ResourceLocation newId = ResourceLocation.tryParse(newStateId);
-				if (newId != null) {
-					Block newBlock = blockRegistry.get(newId);
-					if (newBlock != null) {
-						newState = applyProperties(newBlock.defaultBlockState(), newPropsStr);
-					}
-				}
-			}
-			
-			return new BlockChange(pos, oldState, newState, timestamp);
-		} catch (Exception e) {
-			Blockbase.LOGGER.error("Failed to parse BlockChange from JSON: {}", json, e);
-			return null;
 		}
-	}
-	
-	private static int extractInt(String json, String key) {
-		int start = json.indexOf(key) + key.length();
-		int end = json.indexOf(",", start);
-		if (end == -1) end = json.indexOf("}", start);
-		return Integer.parseInt(json.substring(start, end).trim());
-	}
-	
-	private static long extractLong(String json, String key) {
-		int start = json.indexOf(key) + key.length();
-		int end = json.indexOf(",", start);
-		if (end == -1) end = json.indexOf("}", start);
-		return Long.parseLong(json.substring(start, end).trim());
-	}
-	
-	private static String extractString(String json, String key) {
-		int start = json.indexOf(key) + key.length();
-		int end = json.indexOf("\"", start);
-		return json.substring(start, end);
-	}
-	
-	private static String extractStringOrNull(String json, String key) {
-		int start = json.indexOf(key) + key.length();
-		if (start < 0 || start >= json.length()) return null;
-		if (json.charAt(start) == '"') {
-			int end = json.indexOf("\"", start + 1);
-			return json.substring(start + 1, end);
-		} else {
-			// It's null
-			int end = json.indexOf(",", start);
-			if (end == -1) end = json.indexOf("}", start);
-			return json.substring(start, end).trim();
-		}
-	}
+		json.endObject();
 
-	private static String extractObjectOrNull(String json, String key) {
-		int idx = json.indexOf(key);
-		if (idx == -1) return null;
-		int start = idx + key.length();
-		if (start < json.length() && json.charAt(start) == 'n') { // null
-			return "null";
-		}
-		int objStart = json.indexOf("{", start);
-		if (objStart == -1) return null;
-		int depth = 0;
-		for (int i = objStart; i < json.length(); i++) {
-			char c = json.charAt(i);
-			if (c == '{') depth++;
-			else if (c == '}') {
-				depth--;
-				if (depth == 0) {
-					return json.substring(objStart, i + 1);
-				}
-			}
-		}
-		return null;
+		int oldStateId = StatePalette.stateId(parseState(blockRegistry, oldBlock, oldProps));
+		int newStateId = StatePalette.stateId(parseState(blockRegistry, newBlock, newProps));
+		out.accept(BlockPos.asLong(x, y, z), oldStateId, newStateId, timestamp);
 	}
 
-	private static String escape(String value) {
-		return value.replace("\\", "\\\\").replace("\"", "\\\"");
-	}
-
-	private static BlockState applyProperties(BlockState base, String propsJson) {
-		if (base == null || propsJson == null || propsJson.equals("null")) return base;
-		for (Property<?> prop : base.getProperties()) {
-			String key = "\"" + prop.getName() + "\":\"";
-			int idx = propsJson.indexOf(key);
-			if (idx == -1) continue;
-			int start = idx + key.length();
-			int end = propsJson.indexOf("\"", start);
-			if (end == -1) continue;
-			String valueStr = propsJson.substring(start, end);
-			base = setPropertyFromString(base, prop, valueStr);
+	private static Map<String, String> readProperties(JsonTokenizer json) throws IOException {
+		if (json.peek() == JsonTokenizer.Token.NULL) {
+			json.nextNull();
+			return null;
 		}
-		return base;
+		Map<String, String> props = new HashMap<>();
+		json.beginObject();
+		while (json.hasNext()) {
+			String name = json.nextName();
+			props.put(name, json.nextString());
+		}
+		json.endObject();
+		return props;
 	}
 
-	@SuppressWarnings("unchecked")
-	private static <T extends Comparable<T>> BlockState setPropertyFromString(BlockState state, Property<T> prop, String valueStr) {
-		for (T allowed : prop.getPossibleValues()) {
-			if (allowed.toString().equals(valueStr)) {
-				return state.setValue(prop, allowed);
+	/**
+	 * @return the state, or null for no block or a block that is not registered (any more)
+	 */
+	private static BlockState parseState(Registry<Block> blockRegistry, String blockId, Map<String, String> props) {
+		if (blockId == null || blockId.equals("null")) return null;
+		ResourceLocation id = ResourceLocation.tryParse(blockId);
+		Block block = id == null ? null : blockRegistry.get(id);
+		if (block == null) return null;
+		BlockState state = block.defaultBlockState();
+		if (props != null) {
+			for (Property<?> prop : state.getProperties()) {
+				String value = props.get(prop.getName());
+				if (value != null) {
+					state = StatePalette.withValue(state, prop, value);
+				}
 			}
 		}
 		return state;
 	}
 }
-
@@ -2,30 +2,57 @@ package com.blockbase;
 
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Registry;
+import net.minecraft.resources.ResourceKey;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.Block;
 import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.dimension.DimensionType;
 import net.minecraft.world.level.storage.LevelResource;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * Tracks block changes in the world.
+ * Tracks block changes in one dimension (see {@link TrackerShards}).
  * Thread-safe to handle both client and server-side changes.
+ * Changes are coalesced per position in a {@link WorkingTree}, so repeated edits
+ * of the same block do not grow memory.
+ *
+ * The track* methods only publish a primitive record into a {@link ChangeQueue};
+ * the queue is drained into the working tree once per server tick (see
+ * {@link #drainPending()}), and before any read of the tracked changes. In steady
+ * state they allocate nothing; the game tests in src/gametest check that.
  */
 public class BlockTracker {
-	private final List<BlockChange> changes;
+	private static final int QUEUE_CAPACITY = 1 << 16;
+	// Rewrite the journal once it is this many times larger than the live working tree
+	private static final long JOURNAL_COMPACT_RATIO = 4;
+	private static final long JOURNAL_COMPACT_MIN_BYTES = 1 << 20;
+	// Debug log every Nth tracked event (-Dblockbase.captureLogSample=1 logs all of them, 0 disables)
+	private static final int LOG_SAMPLE_EVERY = Integer.getInteger("blockbase.captureLogSample", 256);
+
+	private final ResourceKey<Level> dimension;
+	private volatile WorkingTree changes; // current generation, replaced when staged
+	private final ChangeQueue queue;
+	private final ChangeQueue.Sink sink;
+	private final BurstDetector bursts;
+	private volatile ChangeJournal journal;
+	private volatile boolean hasStagedGenerations; // their events are only in the journal until committed
+	private volatile WorkingTree.Visitor[] listeners = new WorkingTree.Visitor[0]; // copied on write
 	private boolean isTracking;
+	private long sampleCounter; // racy across threads, only used to thin out debug logging
 
-	public BlockTracker() {
-		// Use CopyOnWriteArrayList for thread safety
-		this.changes = new CopyOnWriteArrayList<>();
+	public BlockTracker(ResourceKey<Level> dimension) {
+		this.dimension = dimension;
+		this.changes = new WorkingTree();
+		this.queue = new ChangeQueue(QUEUE_CAPACITY, ChangeQueue.OverflowPolicy.DRAIN_INLINE);
+		this.sink = this::apply;
+		this.bursts = new BurstDetector();
 		this.isTracking = true;
 	}
 
@@ -39,14 +66,8 @@ public class BlockTracker {
 		if (!isTracking) return;
 		
 		long timestamp = world.getGameTime(); // Minecraft world time
-		BlockChange change = new BlockChange(pos, null, newState, timestamp);
-		changes.add(change);
-		
-		Blockbase.LOGGER.info("Tracked block place at ({}, {}, {}): {}", 
-			pos.getX(), 
-			pos.getY(), 
-			pos.getZ(), 
-			newState.getBlock().getName().getString());
+		queue.publish(pos.asLong(), ChangeQueue.NO_STATE, Block.getId(newState), timestamp, sink);
+		logSampled("place", pos, null, newState);
 	}
 
 	/**
@@ -59,14 +80,8 @@ public class BlockTracker {
 		if (!isTracking) return;
 		
 		long timestamp = world.getGameTime(); // Minecraft world time
-		BlockChange change = new BlockChange(pos, oldState, null, timestamp);
-		changes.add(change);
-		
-		Blockbase.LOGGER.info("Tracked block break at ({}, {}, {}): {}", 
-			pos.getX(), 
-			pos.getY(), 
-			pos.getZ(), 
-			oldState.getBlock().getName().getString());
+		queue.publish(pos.asLong(), Block.getId(oldState), ChangeQueue.NO_STATE, timestamp, sink);
+		logSampled("break", pos, oldState, null);
 	}
 
 	/**
@@ -80,29 +95,167 @@ public class BlockTracker {
 		if (!isTracking) return;
 		
 		long timestamp = world.getGameTime();
-		BlockChange change = new BlockChange(pos, oldState, newState, timestamp);
-		changes.add(change);
-		
-		Blockbase.LOGGER.debug("Tracked block modify at ({}, {}, {}): {} -> {}", 
-			pos.getX(), 
-			pos.getY(), 
-			pos.getZ(), 
-			oldState.getBlock().getName().getString(), newState.getBlock().getName().getString());
+		queue.publish(pos.asLong(), Block.getId(oldState), Block.getId(newState), timestamp, sink);
+		logSampled("modify", pos, oldState, newState);
+	}
+
+	/**
+	 * Report a server-side block write that is about to happen, before any per-block tracking.
+	 * Sections receiving many writes in one tick are captured as snapshots instead.
+	 * @param oldState The state currently at {@code pos}
+	 * @return true if the write is covered by a section snapshot and needs no per-block tracking
+	 */
+	public boolean trackWrite(Level world, BlockPos pos, BlockState oldState) {
+		if (!isTracking) return false;
+		MinecraftServer server = world.getServer();
+		if (server == null || !server.isSameThread()) return false;
+		return bursts.onWrite(world, pos, oldState);
+	}
+
+	/**
+	 * Called at the end of every server tick: drains queued events, then records the
+	 * section snapshots of any mass edits made during the tick.
+	 */
+	public void endTick() {
+		drainPending();
+		bursts.endTick(this::applyBurst);
+	}
+
+	private void applyBurst(BurstSnapshot burst) {
+		changes.recordBurst(burst);
+		ChangeJournal current = journal;
+		if (current != null) {
+			current.appendBurst(burst);
+		}
+		for (WorkingTree.Visitor listener : listeners) {
+			burst.expand(listener);
+		}
+	}
+
+	/**
+	 * Be told about every change recorded from now on. Listeners run on the server thread,
+	 * where queued events are drained at the end of each tick or before a read of the
+	 * tracked changes. Mass edits are reported position by position at the end of their
+	 * tick. Listeners must be quick; they run inside the drain.
+	 */
+	public synchronized void addListener(WorkingTree.Visitor listener) {
+		WorkingTree.Visitor[] next = Arrays.copyOf(listeners, listeners.length + 1);
+		next[listeners.length] = listener;
+		listeners = next;
+	}
+
+	public synchronized void removeListener(WorkingTree.Visitor listener) {
+		List<WorkingTree.Visitor> next = new ArrayList<>(Arrays.asList(listeners));
+		if (next.remove(listener)) {
+			listeners = next.toArray(new WorkingTree.Visitor[0]);
+		}
 	}
 
 	/**
-	 * Get all tracked changes.
-	 * @return A copy of the list of all block changes
+	 * Debug log one in every LOG_SAMPLE_EVERY tracked events.
+	 * The track* methods run for every block update, so this must not allocate unless it
+	 * actually logs; state names are only built for the sampled events.
+	 */
+	private void logSampled(String action, BlockPos pos, BlockState oldState, BlockState newState) {
+		if (!Blockbase.LOGGER.isDebugEnabled() || LOG_SAMPLE_EVERY <= 0) return;
+		if (sampleCounter++ % LOG_SAMPLE_EVERY != 0) return;
+		Blockbase.LOGGER.debug("Tracked block {} at ({}, {}, {}): {} -> {} (logging 1 in {} events)",
+			action,
+			pos.getX(),
+			pos.getY(),
+			pos.getZ(),
+			oldState == null ? "none" : StatePalette.describe(oldState),
+			newState == null ? "none" : StatePalette.describe(newState),
+			LOG_SAMPLE_EVERY);
+	}
+
+	/**
+	 * Move all queued change records into the working tree.
+	 * Called once per server tick; reads of the tracked changes also drain first. Server
+	 * thread only, since draining also appends to the journal and runs the listeners.
+	 * @return the number of records drained
+	 */
+	public int drainPending() {
+		return queue.drain(sink);
+	}
+
+	private void apply(long pos, int oldStateId, int newStateId, long tick) {
+		changes.record(pos, oldStateId, newStateId, tick);
+		ChangeJournal current = journal;
+		if (current != null) {
+			current.append(pos, oldStateId, newStateId, tick);
+		}
+		for (WorkingTree.Visitor listener : listeners) { // Nothing allocated when there are none
+			listener.accept(pos, oldStateId, newStateId, tick);
+		}
+	}
+
+	/**
+	 * Get all tracked changes, coalesced to one entry per position. Server thread only.
+	 * @return A copy of the list of all block changes, in first-touched order
 	 */
 	public List<BlockChange> getChanges() {
-		return new ArrayList<>(changes);
+		drainPending();
+		return changes.toList();
+	}
+
+	/**
+	 * Visit tracked changes within a radius of the center, touching only nearby chunk sections.
+	 * Server thread only.
+	 */
+	public void forEachInRadius(BlockPos center, int radius, WorkingTree.Visitor visitor) {
+		drainPending();
+		changes.forEachInRadius(center, radius, visitor);
+	}
+
+	/**
+	 * Visit tracked changes inside an inclusive bounding box. Server thread only.
+	 */
+	public void forEachInBox(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, WorkingTree.Visitor visitor) {
+		drainPending();
+		changes.forEachInBox(minX, minY, minZ, maxX, maxY, maxZ, visitor);
+	}
+
+	/**
+	 * Seal the current generation of changes and start a fresh one, in O(1).
+	 * The returned tree is immutable and is handed to the staging area as is;
+	 * edits from now on are recorded in the new generation.
+	 * @return the sealed generation (possibly empty)
+	 */
+	public WorkingTree sealGeneration() {
+		drainPending();
+		WorkingTree sealed = changes;
+		changes = sealed.seal();
+		hasStagedGenerations = true;
+		return sealed;
 	}
 
 	/**
-	 * Clear all tracked changes.
+	 * Called once sealed generations have been committed. The journal still holds their
+	 * events, so it is rewritten to contain only the current generation.
+	 */
+	public void generationsCommitted() {
+		drainPending();
+		hasStagedGenerations = false;
+		ChangeJournal current = journal;
+		if (current != null) {
+			current.rewrite(changes);
+		}
+	}
+
+	/**
+	 * Clear all tracked changes, including any that are still queued or captured as
+	 * section snapshots this tick.
 	 */
 	public void clearChanges() {
+		drainPending();
+		bursts.discard();
 		changes.clear();
+		hasStagedGenerations = false;
+		ChangeJournal current = journal;
+		if (current != null) {
+			current.truncate();
+		}
 		Blockbase.LOGGER.debug("Cleared all tracked block changes");
 	}
 
@@ -111,9 +264,24 @@ public class BlockTracker {
 	 * @return The count of changes
 	 */
 	public int getChangeCount() {
+		drainPending();
 		return changes.size();
 	}
 
+	/**
+	 * @return the dimension this tracker records
+	 */
+	public ResourceKey<Level> getDimension() {
+		return dimension;
+	}
+
+	/**
+	 * @return the ingestion queue, for reporting its counters
+	 */
+	public ChangeQueue getQueue() {
+		return queue;
+	}
+
 	/**
 	 * Enable or disable tracking.
 	 * @param tracking True to enable tracking, false to disable
@@ -132,7 +300,10 @@ public class BlockTracker {
 	}
 	
 	/**
-	 * Save all tracked changes to a JSON file in the world folder.
+	 * Persist tracked changes by flushing new journal events to disk.
+	 * Only events since the last save are written; the write and fsync run on the
+	 * journal's background thread. If the journal has grown far beyond the working
+	 * tree it describes, it is rewritten from a snapshot instead.
 	 * @param world The world (used to get the save directory)
 	 */
 	public void saveChanges(Level world) {
@@ -141,118 +312,141 @@ public class BlockTracker {
 			return;
 		}
 		
-		try {
-			Path worldDir = getWorldDirectory(world);
-			if (worldDir == null) {
-				Blockbase.LOGGER.error("Could not determine world directory");
-				return;
-			}
-			
-			Path blockbaseDir = worldDir.resolve(".blockbase");
-			Files.createDirectories(blockbaseDir);
-			
-			Path changesFile = blockbaseDir.resolve("changes.json");
-			
-			Registry<Block> blockRegistry = world.registryAccess().registryOrThrow(Registry.BLOCK_REGISTRY);
-			
-			StringBuilder json = new StringBuilder();
-			json.append("[\n");
-			
-			for (int i = 0; i < changes.size(); i++) {
-				BlockChange change = changes.get(i);
-				json.append("  ").append(change.toJsonString(blockRegistry));
-				if (i < changes.size() - 1) {
-					json.append(",");
-				}
-				json.append("\n");
-			}
-			
-			json.append("]");
-			
-			Files.writeString(changesFile, json.toString());
-			Blockbase.LOGGER.info("Saved {} block changes to {}", changes.size(), changesFile);
-			
-		} catch (IOException e) {
-			Blockbase.LOGGER.error("Failed to save block changes", e);
+		drainPending();
+		ChangeJournal current = journal;
+		if (current == null) {
+			Blockbase.LOGGER.warn("Change journal is not open, skipping save");
+			return;
+		}
+		
+		long liveBytes = changes.estimatedSize() * ChangeJournal.RECORD_BYTES;
+		if (!hasStagedGenerations && current.sizeInBytes() > Math.max(JOURNAL_COMPACT_MIN_BYTES, liveBytes * JOURNAL_COMPACT_RATIO)) {
+			Blockbase.LOGGER.debug("Compacting change journal ({} bytes for about {} changes)", current.sizeInBytes(), changes.estimatedSize());
+			current.rewrite(changes);
+		} else {
+			current.flush();
 		}
 	}
 	
 	/**
-	 * Load changes from a JSON file in the world folder.
+	 * Load the working tree for this dimension and open its journal for appending.
+	 * A legacy changes.json file is imported once and then replaced by the journal.
+	 * Server thread only.
 	 * @param world The world (used to get the save directory)
 	 */
 	public void loadChanges(Level world) {
+		Path blockbaseDir = beginLoad(world);
+		if (blockbaseDir != null) {
+			readChanges(world, blockbaseDir);
+		}
+	}
+
+	/**
+	 * The server-thread half of {@link #loadChanges}: close the journal and clear the
+	 * working tree. Server thread only.
+	 * @return the directory to read the changes from with {@link #readChanges}, or null if
+	 *         there is nothing to load
+	 */
+	Path beginLoad(Level world) {
 		if (world.isClientSide()) {
 			Blockbase.LOGGER.warn("Cannot load changes on client side");
-			return;
+			return null;
+		}
+		
+		Path worldDir = getWorldDirectory(world);
+		if (worldDir == null) {
+			Blockbase.LOGGER.warn("Could not determine world directory, skipping load");
+			return null;
 		}
 		
+		closeJournal();
+		clearChanges();
+		return worldDir.resolve(".blockbase");
+	}
+
+	/**
+	 * The I/O half of {@link #loadChanges}: replay the files in {@code blockbaseDir} into
+	 * the working tree and open the journal. Only touches the working tree and the journal,
+	 * so it can run on another thread while the server thread waits for it without draining.
+	 */
+	void readChanges(Level world, Path blockbaseDir) {
+		Path changesFile = blockbaseDir.resolve("changes.json");
+		Path journalFile = blockbaseDir.resolve(ChangeJournal.FILE_NAME);
+		
 		try {
-			Path worldDir = getWorldDirectory(world);
-			if (worldDir == null) {
-				Blockbase.LOGGER.warn("Could not determine world directory, skipping load");
-				return;
-			}
+			boolean migrated = loadLegacyChanges(world, changesFile);
+			long valid = ChangeJournal.replay(journalFile, changes::record);
+			journal = ChangeJournal.open(journalFile, valid);
 			
-			Path changesFile = worldDir.resolve(".blockbase").resolve("changes.json");
-			
-			if (!Files.exists(changesFile)) {
-				Blockbase.LOGGER.debug("No changes file found at {}, starting fresh", changesFile);
-				return;
+			if (migrated) {
+				journal.rewrite(changes).get();
+				Files.deleteIfExists(changesFile);
+				Blockbase.LOGGER.info("Migrated {} to {}", changesFile, journalFile);
 			}
-			
-			String jsonContent = Files.readString(changesFile);
-			
-			// Parse JSON array (simple parser for MVP)
-			// Remove outer brackets and split by }, (with lookahead for comma)
-			String trimmed = jsonContent.trim();
-			if (!trimmed.startsWith("[") || !trimmed.endsWith("]")) {
-				Blockbase.LOGGER.error("Invalid JSON format in changes file");
-				return;
-			}
-			
-			trimmed = trimmed.substring(1, trimmed.length() - 1).trim();
-			
-			if (trimmed.isEmpty()) {
-				Blockbase.LOGGER.debug("Changes file is empty");
-				return;
-			}
-			
-			Registry<Block> blockRegistry = world.registryAccess().registryOrThrow(Registry.BLOCK_REGISTRY);
-			
-			// Split by }, but keep the closing brace
-			String[] changeStrings = trimmed.split("\\},\\s*");
-			
-			changes.clear();
-			int loaded = 0;
-			
-			for (String changeStr : changeStrings) {
-				// Add back the closing brace if it was removed
-				if (!changeStr.trim().endsWith("}")) {
-					changeStr = changeStr.trim() + "}";
-				}
-				
-				// Remove leading whitespace and newlines
-				changeStr = changeStr.trim();
-				
-				BlockChange change = BlockChange.fromJsonString(changeStr, blockRegistry);
-				if (change != null) {
-					changes.add(change);
-					loaded++;
-				}
+			Blockbase.LOGGER.info("Loaded {} block changes from {}", changes.size(), journalFile);
+		} catch (Exception e) {
+			Blockbase.LOGGER.error("Failed to load block changes", e);
+		}
+	}
+	
+	/**
+	 * Flush the journal, wait for it to reach disk and close it. Server thread only.
+	 */
+	public void closeJournal() {
+		ChangeJournal current = detachJournal();
+		if (current != null) {
+			current.close();
+		}
+	}
+
+	/**
+	 * Drain what is queued into the journal and stop journaling. Server thread only; the
+	 * returned journal can then be closed on any thread.
+	 * @return the journal, or null if none was open
+	 */
+	ChangeJournal detachJournal() {
+		ChangeJournal current = journal;
+		if (current == null) return null;
+		drainPending();
+		journal = null;
+		return current;
+	}
+	
+	/**
+	 * Import a changes.json file written by older versions of the mod.
+	 * @return true if the file existed and was read
+	 */
+	private boolean loadLegacyChanges(Level world, Path changesFile) throws IOException {
+		if (!Files.exists(changesFile)) {
+			return false;
+		}
+		
+		Registry<Block> blockRegistry = world.registryAccess().registryOrThrow(Registry.BLOCK_REGISTRY);
+		int[] loaded = {0};
+		
+		// Stream the array straight into the change queue; the file is never held in memory
+		try (JsonTokenizer json = new JsonTokenizer(Files.newBufferedReader(changesFile))) {
+			json.beginArray();
+			while (json.hasNext()) {
+				BlockChange.readJson(json, blockRegistry, (pos, oldStateId, newStateId, timestamp) -> {
+					changes.record(pos, oldStateId, newStateId, timestamp);
+					loaded[0]++;
+				});
 			}
-			
-			Blockbase.LOGGER.info("Loaded {} block changes from {}", loaded, changesFile);
-			
+			json.endArray();
 		} catch (IOException e) {
-			Blockbase.LOGGER.error("Failed to load block changes", e);
+			Blockbase.LOGGER.error("Invalid JSON format in changes file after {} changes", loaded[0], e);
+			return false;
 		}
+		
+		Blockbase.LOGGER.info("Loaded {} legacy block changes from {}", loaded[0], changesFile);
+		return true;
 	}
 	
 	/**
-	 * Get the world save directory path.
+	 * Get the save directory of this tracker's dimension (the world root for the overworld).
 	 * @param world The world
-	 * @return The path to the world save directory, or null if not available
+	 * @return The path to the dimension's save directory, or null if not available
 	 */
 	private Path getWorldDirectory(Level world) {
 		if (world.getServer() == null) {
@@ -261,7 +455,7 @@ public class BlockTracker {
 		
 		MinecraftServer server = world.getServer();
 		Path worldPath = server.getWorldPath(LevelResource.ROOT);
-		return worldPath;
+		return DimensionType.getStorageFolder(dimension, worldPath);
 	}
 }
 
@@ -11,8 +11,6 @@ import org.slf4j.LoggerFactory;
 
 import net.minecraft.core.BlockPos;
 import net.minecraft.world.level.block.state.BlockState;
-import net.minecraft.world.level.Level;
-import net.minecraft.world.phys.Vec3;
 
 public class Blockbase implements ModInitializer {
 	public static final String MOD_ID = "blockbase";
@@ -22,12 +20,15 @@ public class Blockbase implements ModInitializer {
 	// That way, it's clear which mod wrote info, warnings, and errors.
 	public static final Logger LOGGER = LoggerFactory.getLogger(MOD_ID);
 
-	// BlockTracker instance to track all block changes
-	public static final BlockTracker blockTracker = new BlockTracker();
+	// One BlockTracker per dimension, created when the server starts
+	public static final TrackerShards trackers = new TrackerShards();
 
 	// StagingArea instance to track staged changes (for commits)
 	public static final StagingArea stagingArea = new StagingArea();
 
+	// How often new tracked events are flushed to the change journal
+	private static final int JOURNAL_FLUSH_TICKS = 20;
+
 	@Override
 	public void onInitialize() {
 		// This code runs as soon as Minecraft is in a mod-load-ready state.
@@ -44,6 +45,9 @@ public class Blockbase implements ModInitializer {
 		
 		// Register server lifecycle events for loading/saving changes
 		registerServerEvents();
+
+		// Answer diff requests from clients that do not host the world
+		DiffNetwork.registerServer();
 		
 		LOGGER.info("Blockbase mod initialized - block tracking enabled");
 	}
@@ -51,20 +55,9 @@ public class Blockbase implements ModInitializer {
 	private void registerBlockEvents() {
 		// Register block break event
 		PlayerBlockBreakEvents.BEFORE.register((world, player, pos, state, blockEntity) -> {
-			if (!world.isClientSide()) { // Only track on server side
-				blockTracker.trackBlockBreak(pos, state, world);
-				
-				// Get player's actual position (with decimal precision)
-				Vec3 playerPos = player.position();
-				
-				LOGGER.info("Block broken at block ({}, {}, {}), player position ({}, {}, {}) by {}", 
-					pos.getX(), 
-					pos.getY(), 
-					pos.getZ(),
-					String.format("%.4f", playerPos.x),
-					String.format("%.4f", playerPos.y),
-					String.format("%.4f", playerPos.z),
-					player.getName().getString());
+			BlockTracker tracker = world.isClientSide() ? null : trackers.get(world); // Only track on server side
+			if (tracker != null) {
+				tracker.trackBlockBreak(pos, state, world);
 			}
 			return true; // Allow the break to proceed
 		});
@@ -83,31 +76,24 @@ public class Blockbase implements ModInitializer {
 	}
 	
 	private void registerServerEvents() {
-		// Load changes when server starts
+		// Load every dimension's changes when server starts
 		ServerLifecycleEvents.SERVER_STARTED.register(server -> {
-			// Load changes from the overworld
-			Level overworld = server.getLevel(Level.OVERWORLD);
-			if (overworld != null) {
-				blockTracker.loadChanges(overworld);
-			}
+			trackers.loadAll(server);
 		});
 		
-		// Save changes periodically (every 15 seconds = 300 ticks)
+		// Drain queued block events and mass-edit snapshots into the working trees once per tick,
+		// and flush new events to the change journals every second
 		ServerTickEvents.END_SERVER_TICK.register(server -> {
-			if (server.getTickCount() % 300 == 0) { // Every 15 seconds
-				Level overworld = server.getLevel(Level.OVERWORLD);
-				if (overworld != null && blockTracker.getChangeCount() > 0) {
-					blockTracker.saveChanges(overworld);
-				}
+			trackers.endTick();
+			if (server.getTickCount() % JOURNAL_FLUSH_TICKS == 0) {
+				trackers.saveAll(server);
 			}
 		});
 		
-		// Save changes when server stops
+		// Flush and close the journals and repository storage when server stops
 		ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
-			Level overworld = server.getLevel(Level.OVERWORLD);
-			if (overworld != null && blockTracker.getChangeCount() > 0) {
-				blockTracker.saveChanges(overworld);
-			}
+			trackers.closeAll();
+			Repository.closeStorage();
 		});
 		
 		LOGGER.info("Server lifecycle events registered");
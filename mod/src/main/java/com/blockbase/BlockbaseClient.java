@@ -28,6 +28,7 @@ public class BlockbaseClient implements ClientModInitializer {
 		));
 
 		ClientTickEvents.END_CLIENT_TICK.register(client -> {
+			DiffViewManager.checkDimension(client.level);
 			if (client.player == null || client.level == null) return;
 
 			// Use single keybinding: Shift+G exits; G cycles
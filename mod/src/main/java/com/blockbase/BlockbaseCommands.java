@@ -2,26 +2,42 @@ package com.blockbase;
 
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
 import com.mojang.brigadier.arguments.StringArgumentType;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import net.minecraft.commands.CommandSourceStack;
 import net.minecraft.commands.Commands;
+import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.state.BlockState;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.SimpleDateFormat;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 
 /**
  * Registers all /blockbase commands.
  */
 public class BlockbaseCommands {
+	private static final int BLAME_LIMIT = 5;
+	private static final int DIFF_BLOCK_LIMIT = 5;
+	private static final int MAX_SCAN_RADIUS = 256;
+	private static final int SCAN_LIST_LIMIT = 5;
 
 	public static void register(CommandDispatcher<CommandSourceStack> dispatcher) {
 		// Register under both /bb and /blockbase (alias), prefer /bb in help text
@@ -59,6 +75,19 @@ public class BlockbaseCommands {
 					Commands.literal("log")
 						.executes(BlockbaseCommands::logCommand)
 				)
+				.then(
+					Commands.literal("blame")
+						.then(
+							Commands.argument("x", IntegerArgumentType.integer())
+								.then(
+									Commands.argument("y", IntegerArgumentType.integer())
+										.then(
+											Commands.argument("z", IntegerArgumentType.integer())
+												.executes(BlockbaseCommands::blameCommand)
+										)
+								)
+						)
+				)
 				.then(
 					Commands.literal("reset")
 						.then(
@@ -73,10 +102,38 @@ public class BlockbaseCommands {
 					Commands.literal("status")
 						.executes(BlockbaseCommands::statusCommand)
 				)
+				.then(
+					Commands.literal("verify")
+						.then(
+							Commands.argument("commitId", StringArgumentType.string())
+								.executes(BlockbaseCommands::verifyCommand)
+						)
+				)
+				.then(
+					Commands.literal("gc")
+						.executes(BlockbaseCommands::gcCommand)
+				)
+				.then(
+					Commands.literal("export")
+						.then(
+							Commands.argument("commitId", StringArgumentType.string())
+								.then(
+									Commands.literal("json")
+										.executes(BlockbaseCommands::exportJsonCommand)
+								)
+						)
+				)
 				.then(
 					Commands.literal("push")
 						.executes(BlockbaseCommands::pushCommand)
 				)
+				.then(
+					Commands.literal("debug")
+						.then(
+							Commands.literal("cache")
+								.executes(BlockbaseCommands::debugCacheCommand)
+						)
+				)
 				.then(
 					Commands.literal("diff")
 						.executes(BlockbaseCommands::diffEnterCommand)
@@ -84,6 +141,24 @@ public class BlockbaseCommands {
 							Commands.literal("clear")
 								.executes(BlockbaseCommands::diffClearCommand)
 						)
+						.then(
+							Commands.literal("scan")
+								.then(
+									Commands.argument("radius", IntegerArgumentType.integer(1, MAX_SCAN_RADIUS))
+										.executes(context -> diffScanCommand(context, null))
+										.then(
+											Commands.argument("commitId", StringArgumentType.string())
+												.executes(context -> diffScanCommand(context, StringArgumentType.getString(context, "commitId")))
+										)
+								)
+						)
+						.then(
+							Commands.argument("from", StringArgumentType.string())
+								.then(
+									Commands.argument("to", StringArgumentType.string())
+										.executes(BlockbaseCommands::diffCommitsCommand)
+								)
+						)
 				)
 				.then(
 					Commands.literal("remote")
@@ -112,18 +187,48 @@ public class BlockbaseCommands {
 			" - /bb commit \"message\" : Commit staged changes with a message\n" +
 			" - /bb add .  : Stage all currently tracked changes\n" +
 			" - /bb log    : Show recent commits\n" +
+			" - /bb blame <x> <y> <z> : Show the latest commits that changed a block\n" +
 			" - /bb reset --hard <commitId> : Reset world to a specific commit (destructive)\n" +
 			" - /bb push   : Push local commits to remote backend\n" +
+			" - /bb export <commitId> json : Write a commit as readable JSON to .blockbase/exports\n" +
+			" - /bb verify <commitId> : Check a commit's stored data against its hashes\n" +
+			" - /bb gc     : Pack stored objects into a single pack file (runs in the background)\n" +
 			" - /bb diff   : Enter visual diff mode (G to toggle, Shift+G to exit)\n" +
 			" - /bb diff clear : Exit visual diff mode\n" +
+			" - /bb diff <from> <to> : Summarize what changed between two commits\n" +
+			" - /bb diff scan <radius> [commitId] : Check the positions a commit (default HEAD) recorded around you against the world, including untracked edits to them\n" +
 			" - /bb remote add origin <url> : Set remote backend URL for this repo\n" +
 			" - /bb remote show : Display current remote URL\n" +
 			" - /bb help   : Show this help message\n" +
-			" - /bb status : Show tracked change status"
+			" - /bb status : Show tracked change status\n" +
+			" - /bb debug cache : Show commit cache hits, misses and evictions"
 		), false);
 		return 1;
 	}
 
+	private static int debugCacheCommand(CommandContext<CommandSourceStack> context) {
+		try {
+			CommitCache.Stats stats = Repository.getCacheStats(context.getSource().getServer());
+			context.getSource().sendSuccess(new net.minecraft.network.chat.TextComponent(String.format(
+				"[Blockbase] Commit cache: %d hits, %d misses (%.1f%% hit rate), %d evictions; %d entries, %.1f of %.1f MB",
+				stats.hits,
+				stats.misses,
+				stats.hitRate() * 100,
+				stats.evictions,
+				stats.entries,
+				stats.weight / (1024.0 * 1024.0),
+				stats.maxWeight / (1024.0 * 1024.0)
+			)), false);
+			return 1;
+		} catch (IOException e) {
+			Blockbase.LOGGER.error("Failed to open repository storage", e);
+			context.getSource().sendFailure(new net.minecraft.network.chat.TextComponent(
+				"[Blockbase] Failed to open repository storage. Check logs for details."
+			));
+			return 0;
+		}
+	}
+
 	private static int statusCommand(CommandContext<CommandSourceStack> context) {
 		Level world = context.getSource().getLevel();
 
@@ -131,8 +236,10 @@ public class BlockbaseCommands {
 		Repository repo = Repository.load(world);
 		boolean isRepoInitialized = repo != null;
 
-		List<BlockChange> changes = Blockbase.blockTracker.getChanges();
+		BlockTracker tracker = Blockbase.trackers.get(world);
+		List<BlockChange> changes = tracker != null ? tracker.getChanges() : List.of();
 		int totalChanges = changes.size();
+		int otherDimensionChanges = Blockbase.trackers.getChangeCount() - totalChanges;
 
 		List<BlockChange> staged = Blockbase.stagingArea.getStagedChanges();
 		int stagedCount = staged.size();
@@ -185,56 +292,49 @@ public class BlockbaseCommands {
 		if (isRepoInitialized) {
 			repoInfo = String.format("initialized (repo: %s)", repo.getName());
 			// Try to show HEAD (latest commit short id)
-			Path commitsDir = Repository.getCommitsDirectory(world);
-			String head = null;
-			if (commitsDir != null && java.nio.file.Files.exists(commitsDir)) {
-				try {
-					head = java.nio.file.Files.list(commitsDir)
-						.filter(p -> p.getFileName().toString().endsWith(".json"))
-						.max((a, b) -> {
-							try {
-								long at = java.nio.file.Files.getLastModifiedTime(a).toMillis();
-								long bt = java.nio.file.Files.getLastModifiedTime(b).toMillis();
-								return Long.compare(at, bt);
-							} catch (java.io.IOException e) {
-								return 0;
-							}
-						})
-						.map(p -> {
-							try {
-								String json = java.nio.file.Files.readString(p);
-								String id = extractString(json, "\"id\":\"");
-								if (id == null) return null;
-								return id.length() > 7 ? id.substring(0, 7) : id;
-							} catch (java.io.IOException e) {
-								return null;
-							}
-						})
-						.orElse(null);
-				} catch (java.io.IOException ignore) {}
-			}
+			String head = Repository.getLatestCommitId(world);
 			if (head != null) {
-				headInfo = String.format(" (HEAD %s)", head);
+				headInfo = String.format(" (HEAD %s)", head.length() > 7 ? head.substring(0, 7) : head);
 			}
 		} else {
 			repoInfo = "not initialized (use /bb init)";
 		}
+		String queueInfo = "not tracking this dimension";
+		if (tracker != null) {
+			ChangeQueue queue = tracker.getQueue();
+			queueInfo = String.format("%d published, %d dropped, %d overflows, peak depth %d/%d",
+				queue.getPublishedCount(),
+				queue.getDroppedCount(),
+				queue.getOverflowCount(),
+				queue.getHighWatermark(),
+				queue.getCapacity());
+		}
+		String stagedDimension = Blockbase.stagingArea.getDimension() != null
+			? Blockbase.stagingArea.getDimension().location().toString()
+			: "-";
+
 		context.getSource().sendSuccess(
 			new net.minecraft.network.chat.TextComponent(String.format(
 				"[Blockbase] Status:\n" +
-				" - Tracked changes (total): %d\n" +
+				" - Tracked changes in %s (total): %d\n" +
 				" - Tracked changes by block:\n%s" +
-				" - Staged changes (total): %d\n" +
+				" - Tracked changes in other dimensions: %d\n" +
+				" - Staged changes from %s (total): %d\n" +
 				" - Staged changes by block:\n%s" +
 				" - Current branch: %s%s\n" +
-				" - Repository: %s",
+				" - Repository: %s\n" +
+				" - Capture queue: %s",
+				world.dimension().location(),
 				totalChanges,
 				trackedBreakdown.toString(),
+				otherDimensionChanges,
+				stagedDimension,
 				stagedCount,
 				stagedBreakdown.toString(),
 				branchInfo,
 				headInfo,
-				repoInfo
+				repoInfo,
+				queueInfo
 			)),
 			false
 		);
@@ -265,6 +365,140 @@ public class BlockbaseCommands {
 		}
 	}
 
+	private static int diffCommitsCommand(CommandContext<CommandSourceStack> context) {
+		if (Repository.load(context.getSource().getLevel()) == null) {
+			context.getSource().sendFailure(
+				new net.minecraft.network.chat.TextComponent(
+					"[Blockbase] No repository found. Run /blockbase init first."
+				)
+			);
+			return 0;
+		}
+
+		MinecraftServer server = context.getSource().getServer();
+		List<String> commitIds = Repository.listCommits(server);
+		String from = resolveCommit(context, commitIds, StringArgumentType.getString(context, "from"));
+		String to = from == null ? null : resolveCommit(context, commitIds, StringArgumentType.getString(context, "to"));
+		if (to == null) {
+			return 0;
+		}
+		String range = shortId(from) + ".." + shortId(to);
+
+		// Large ranges take a while; keep the server ticking and reply when done
+		CommandSourceStack source = context.getSource();
+		long start = System.nanoTime();
+		CompletableFuture.supplyAsync(() -> {
+			try {
+				return Repository.diffCommits(server, from, to);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}).whenComplete((diff, error) -> server.execute(() -> {
+			if (error != null) {
+				Blockbase.LOGGER.error("Failed to diff commits {}", range, error);
+				source.sendFailure(new net.minecraft.network.chat.TextComponent(
+					"[Blockbase] Failed to diff commits. Check logs for details."
+				));
+				return;
+			}
+			StringBuilder blocks = new StringBuilder();
+			int shown = 0;
+			for (Map.Entry<String, Integer> entry : diff.countByBlock().entrySet()) {
+				if (shown++ == DIFF_BLOCK_LIMIT) break;
+				blocks.append(String.format("\n  - %s: %d changes", entry.getKey(), entry.getValue()));
+			}
+			source.sendSuccess(new net.minecraft.network.chat.TextComponent(String.format(
+				"[Blockbase] Diff %s (%d commits, %d sections, %d ms):\n - Placed: %d\n - Broken: %d\n - Modified: %d%s",
+				range,
+				diff.getCommitCount(),
+				diff.getSectionCount(),
+				(System.nanoTime() - start) / 1_000_000,
+				diff.count(BlockChange.ChangeType.PLACED),
+				diff.count(BlockChange.ChangeType.BROKEN),
+				diff.count(BlockChange.ChangeType.MODIFIED),
+				blocks
+			)), false);
+		}));
+		return 1;
+	}
+
+	/**
+	 * @param prefix id prefix of the commit to compare against, or null for HEAD
+	 */
+	private static int diffScanCommand(CommandContext<CommandSourceStack> context, String prefix) {
+		ServerLevel world = context.getSource().getLevel();
+		if (Repository.load(world) == null) {
+			context.getSource().sendFailure(
+				new net.minecraft.network.chat.TextComponent(
+					"[Blockbase] No repository found. Run /blockbase init first."
+				)
+			);
+			return 0;
+		}
+
+		MinecraftServer server = context.getSource().getServer();
+		String commitId;
+		if (prefix != null) {
+			commitId = resolveCommit(context, Repository.listCommits(server), prefix);
+		} else {
+			commitId = Repository.getHeadId(server);
+			if (commitId == null) {
+				context.getSource().sendFailure(new net.minecraft.network.chat.TextComponent("[Blockbase] No commits to compare against."));
+			}
+		}
+		if (commitId == null) {
+			return 0;
+		}
+
+		int radius = IntegerArgumentType.getInteger(context, "radius");
+		net.minecraft.world.phys.Vec3 position = context.getSource().getPosition();
+		BlockPos center = new BlockPos(position.x, position.y, position.z);
+		BlockPos min = center.offset(-radius, -radius, -radius);
+		BlockPos max = center.offset(radius, radius, radius);
+		CommandSourceStack source = context.getSource();
+		String shortId = shortId(commitId);
+		long start = System.nanoTime();
+		WorldScan.scan(world, commitId, min, max).whenComplete((scan, error) -> server.execute(() -> {
+			if (error != null) {
+				Blockbase.LOGGER.error("Failed to scan against commit {}", commitId, error);
+				source.sendFailure(new net.minecraft.network.chat.TextComponent(
+					"[Blockbase] Failed to scan the world. Check logs for details."
+				));
+				return;
+			}
+			DiffCalculator.DiffResult result = scan.getResult();
+			StringBuilder examples = new StringBuilder();
+			int shown = 0;
+			for (Set<BlockPos> positions : List.of(result.added, result.removed, result.modified)) {
+				for (BlockPos pos : positions) {
+					if (shown++ == SCAN_LIST_LIMIT) break;
+					BlockState prev = result.previousStates.get(pos);
+					BlockState now = world.getBlockState(pos);
+					examples.append(String.format("\n  - %d, %d, %d: %s -> %s", pos.getX(), pos.getY(), pos.getZ(),
+						prev != null ? StatePalette.describe(prev) : "none",
+						now != null && !now.isAir() ? StatePalette.describe(now) : "none"));
+				}
+			}
+			source.sendSuccess(new net.minecraft.network.chat.TextComponent(String.format(
+				"[Blockbase] Scanned %d sections against commit %s (%d unchanged by palette, %d not loaded, %d ms):\n - Added: %d\n - Removed: %d\n - Modified: %d%s",
+				scan.getSectionCount(),
+				shortId,
+				scan.getSkippedCount(),
+				scan.getUnloadedCount(),
+				(System.nanoTime() - start) / 1_000_000,
+				result.added.size(),
+				result.removed.size(),
+				result.modified.size(),
+				examples
+			)), false);
+		}));
+		return 1;
+	}
+
+	private static String shortId(String id) {
+		return id.length() > 7 ? id.substring(0, 7) : id;
+	}
+
 	private static int rootCommand(CommandContext<CommandSourceStack> context) {
 		// No subcommand: show basic usage hint
 		context.getSource().sendSuccess(
@@ -288,8 +522,9 @@ public class BlockbaseCommands {
 			return 0;
 		}
 
-		List<BlockChange> changes = Blockbase.blockTracker.getChanges();
-		if (changes.isEmpty()) {
+		BlockTracker tracker = Blockbase.trackers.get(world);
+		int count = tracker != null ? tracker.getChangeCount() : 0;
+		if (count == 0) {
 			context.getSource().sendSuccess(
 				new net.minecraft.network.chat.TextComponent("[Blockbase] No changes to add."),
 				false
@@ -297,12 +532,26 @@ public class BlockbaseCommands {
 			return 1;
 		}
 
-		Blockbase.stagingArea.stageAll(changes);
+		ResourceKey<Level> stagedDimension = Blockbase.stagingArea.getDimension();
+		if (stagedDimension != null && stagedDimension != world.dimension()) {
+			context.getSource().sendFailure(
+				new net.minecraft.network.chat.TextComponent(String.format(
+					"[Blockbase] Changes from %s are already staged. Commit them before adding changes from %s.",
+					stagedDimension.location(),
+					world.dimension().location()
+				))
+			);
+			return 0;
+		}
+
+		// Hand the current generation to staging as is; new edits start a fresh one
+		Blockbase.stagingArea.stage(world.dimension(), tracker.sealGeneration());
 
 		context.getSource().sendSuccess(
 			new net.minecraft.network.chat.TextComponent(String.format(
-				"[Blockbase] Added %d changes to staging (use /bb status to view details).",
-				changes.size()
+				"[Blockbase] Added %d changes from %s to staging (use /bb status to view details).",
+				count,
+				world.dimension().location()
 			)),
 			false
 		);
@@ -372,15 +621,32 @@ public class BlockbaseCommands {
 			author = context.getSource().getTextName();
 		}
 
+		// The commit belongs to the dimension the staged changes were made in
+		ResourceKey<Level> dimension = Blockbase.stagingArea.getDimension();
+		Level stagedWorld = world.getServer() != null && dimension != null ? world.getServer().getLevel(dimension) : null;
+		if (stagedWorld == null) {
+			stagedWorld = world;
+		}
+
 		// Create commit and compute its ID
-		Commit commit = Commit.create(message.trim(), author, parentId, staged, world);
+		Commit commit = Commit.create(message.trim(), author, parentId, staged, stagedWorld);
 
-		// Save commit to disk
-		Repository.saveCommit(world, commit);
+		// Save commit to disk; on failure the changes stay staged
+		if (!Repository.saveCommit(world, commit)) {
+			context.getSource().sendFailure(
+				new net.minecraft.network.chat.TextComponent(
+					"[Blockbase] Failed to save commit. Check logs for details."
+				)
+			);
+			return 0;
+		}
 
-		// Clear staged changes and current tracked changes (working directory is now "clean")
+		// Clear staged changes; edits made since /bb add stay tracked
 		Blockbase.stagingArea.clear();
-		Blockbase.blockTracker.clearChanges();
+		BlockTracker stagedTracker = Blockbase.trackers.get(stagedWorld);
+		if (stagedTracker != null) {
+			stagedTracker.generationsCommitted();
+		}
 
 		// Show short commit ID (first 7 chars) for readability
 		String shortId = commit.getId().length() > 7 ? commit.getId().substring(0, 7) : commit.getId();
@@ -412,8 +678,9 @@ public class BlockbaseCommands {
 			return 0;
 		}
 
-		Path commitsDir = Repository.getCommitsDirectory(world);
-		if (commitsDir == null || !Files.exists(commitsDir)) {
+		MinecraftServer server = context.getSource().getServer();
+		List<String> commitIds = Repository.listCommits(server);
+		if (commitIds.isEmpty()) {
 			context.getSource().sendSuccess(
 				new net.minecraft.network.chat.TextComponent("[Blockbase] No commits yet."),
 				false
@@ -422,34 +689,12 @@ public class BlockbaseCommands {
 		}
 
 		try {
-			List<Path> commitFiles = Files.list(commitsDir)
-				.filter(p -> p.getFileName().toString().endsWith(".json"))
-				.sorted((a, b) -> {
-					try {
-						long at = Files.getLastModifiedTime(a).toMillis();
-						long bt = Files.getLastModifiedTime(b).toMillis();
-						return Long.compare(bt, at); // newest first
-					} catch (IOException e) {
-						return 0;
-					}
-				})
-				.limit(10) // show latest 10 commits
-				.collect(Collectors.toList());
-
-			if (commitFiles.isEmpty()) {
-				context.getSource().sendSuccess(
-					new net.minecraft.network.chat.TextComponent("[Blockbase] No commits yet."),
-					false
-				);
-				return 1;
-			}
-
-			for (Path path : commitFiles) {
-				String json = Files.readString(path);
-
-				String id = extractString(json, "\"id\":\"");
-				String message = unescapeJson(extractString(json, "\"message\":\""));
-				String author = extractString(json, "\"author\":\"");
+			// Show the latest 10 commits, newest first; only their metadata is decoded
+			for (int i = commitIds.size() - 1; i >= Math.max(0, commitIds.size() - 10); i--) {
+				Commit commit = Repository.readCommit(server, commitIds.get(i), false);
+				String id = commit.getId();
+				String message = commit.getMessage();
+				String author = commit.getAuthor();
 
 				String shortId = id != null && id.length() > 7 ? id.substring(0, 7) : id;
 
@@ -478,64 +723,223 @@ public class BlockbaseCommands {
 		}
 	}
 
-	// Simple JSON helpers for extracting fields in commit log
-	private static long extractLong(String json, String key) {
-		int start = json.indexOf(key);
-		if (start == -1) {
-			return 0L;
+	private static int blameCommand(CommandContext<CommandSourceStack> context) {
+		Level world = context.getSource().getLevel();
+		if (Repository.load(world) == null) {
+			context.getSource().sendFailure(
+				new net.minecraft.network.chat.TextComponent(
+					"[Blockbase] No repository found. Run /bb init first."
+				)
+			);
+			return 0;
 		}
-		start += key.length();
-		int end = json.indexOf(",", start);
-		if (end == -1) {
-			end = json.indexOf("}", start);
+
+		BlockPos pos = new BlockPos(
+			IntegerArgumentType.getInteger(context, "x"),
+			IntegerArgumentType.getInteger(context, "y"),
+			IntegerArgumentType.getInteger(context, "z")
+		);
+		MinecraftServer server = context.getSource().getServer();
+		try {
+			// The section index narrows history to commits that touched this block's section
+			List<String> candidates = Repository.commitsTouching(server, world.dimension(), pos, pos);
+			int shown = 0;
+			for (int i = candidates.size() - 1; i >= 0 && shown < BLAME_LIMIT; i--) {
+				ChangeCursor changes = Repository.openChanges(server, candidates.get(i));
+				if (changes.getDimension() != world.dimension()) continue;
+				changes.setBounds(pos, pos);
+				if (!changes.next()) continue;
+
+				Commit commit = changes.getCommit();
+				String id = commit.getId();
+				String shortId = id != null && id.length() > 7 ? id.substring(0, 7) : id;
+				BlockState oldState = changes.getOldState();
+				BlockState newState = changes.getNewState();
+				context.getSource().sendSuccess(new net.minecraft.network.chat.TextComponent(String.format(
+					"commit %s | %s | %s | %s -> %s",
+					shortId,
+					commit.getAuthor(),
+					commit.getMessage(),
+					oldState != null ? StatePalette.describe(oldState) : "none",
+					newState != null ? StatePalette.describe(newState) : "none"
+				)), false);
+				shown++;
+			}
+			if (shown == 0) {
+				context.getSource().sendSuccess(new net.minecraft.network.chat.TextComponent(String.format(
+					"[Blockbase] No commit changed %d, %d, %d.", pos.getX(), pos.getY(), pos.getZ()
+				)), false);
+			}
+			return 1;
+		} catch (IOException e) {
+			Blockbase.LOGGER.error("Failed to read history for {}", pos, e);
+			context.getSource().sendFailure(
+				new net.minecraft.network.chat.TextComponent(
+					"[Blockbase] Failed to read history. Check logs for details."
+				)
+			);
+			return 0;
 		}
-		return Long.parseLong(json.substring(start, end).trim());
 	}
 
-	private static String extractString(String json, String key) {
-		int start = json.indexOf(key);
-		if (start == -1) {
-			return "";
+	/**
+	 * Resolve a commit id prefix against the given commit ids, reporting missing or
+	 * ambiguous matches to the command source.
+	 * @return the matching commit id, or null if there is not exactly one
+	 */
+	private static String resolveCommit(CommandContext<CommandSourceStack> context, List<String> commitIds, String prefix) {
+		List<String> matching = commitIds.stream()
+			.filter(id -> id.startsWith(prefix))
+			.collect(Collectors.toList());
+
+		if (matching.isEmpty()) {
+			context.getSource().sendFailure(
+				new net.minecraft.network.chat.TextComponent(
+					String.format("[Blockbase] No commit found with id starting with '%s'.", prefix)
+				)
+			);
+			return null;
 		}
-		start += key.length();
-		int end = json.indexOf("\"", start);
-		if (end == -1) {
-			return "";
+
+		if (matching.size() > 1) {
+			String ids = matching.stream()
+				.map(id -> id.length() > 7 ? id.substring(0, 7) : id)
+				.collect(Collectors.joining(", "));
+			context.getSource().sendFailure(
+				new net.minecraft.network.chat.TextComponent(
+					String.format("[Blockbase] Ambiguous commit id '%s'. Matches: %s", prefix, ids)
+				)
+			);
+			return null;
 		}
-		return json.substring(start, end);
+
+		return matching.get(0);
 	}
 
-	// Minimal JSON unescape for common sequences in our stored fields
-	private static String unescapeJson(String s) {
-		if (s == null || s.isEmpty()) return s;
-		// Order matters: unescape escaped backslashes first
-		return s.replace("\\\\", "\\")
-				.replace("\\\"", "\"")
-				.replace("\\n", "\n")
-				.replace("\\t", "\t")
-				.replace("\\r", "\r");
+	private static int verifyCommand(CommandContext<CommandSourceStack> context) {
+		if (Repository.load(context.getSource().getLevel()) == null) {
+			context.getSource().sendFailure(
+				new net.minecraft.network.chat.TextComponent(
+					"[Blockbase] No repository found. Run /blockbase init first."
+				)
+			);
+			return 0;
+		}
+
+		MinecraftServer server = context.getSource().getServer();
+		String commitId = resolveCommit(context, Repository.listCommits(server), StringArgumentType.getString(context, "commitId"));
+		if (commitId == null) {
+			return 0;
+		}
+		String shortId = commitId.length() > 7 ? commitId.substring(0, 7) : commitId;
+
+		try {
+			List<String> problems = Repository.verifyCommit(server, commitId);
+			if (problems.isEmpty()) {
+				context.getSource().sendSuccess(new net.minecraft.network.chat.TextComponent(
+					"[Blockbase] Commit " + shortId + " is intact."
+				), false);
+				return 1;
+			}
+			context.getSource().sendFailure(new net.minecraft.network.chat.TextComponent(String.format(
+				"[Blockbase] Commit %s is damaged:\n - %s", shortId, String.join("\n - ", problems)
+			)));
+			return 0;
+		} catch (IOException e) {
+			Blockbase.LOGGER.error("Failed to verify commit {}", commitId, e);
+			context.getSource().sendFailure(
+				new net.minecraft.network.chat.TextComponent(
+					"[Blockbase] Failed to verify commit. Check logs for details."
+				)
+			);
+			return 0;
+		}
 	}
 
-	// Split a JSON array inner content into top-level object strings
-	private static List<String> splitTopLevelJsonObjects(String arrayInner) {
-		java.util.ArrayList<String> out = new java.util.ArrayList<>();
-		int depth = 0;
-		int start = -1;
-		for (int i = 0; i < arrayInner.length(); i++) {
-			char c = arrayInner.charAt(i);
-			if (c == '{') {
-				if (depth == 0) start = i;
-				depth++;
-			} else if (c == '}') {
-				depth--;
-				if (depth == 0 && start != -1) {
-					out.add(arrayInner.substring(start, i + 1).trim());
-					start = -1;
-				}
+	private static int gcCommand(CommandContext<CommandSourceStack> context) {
+		CommandSourceStack source = context.getSource();
+		MinecraftServer server = source.getServer();
+		if (Repository.load(source.getLevel()) == null) {
+			source.sendFailure(
+				new net.minecraft.network.chat.TextComponent(
+					"[Blockbase] No repository found. Run /blockbase init first."
+				)
+			);
+			return 0;
+		}
+
+		source.sendSuccess(new net.minecraft.network.chat.TextComponent("[Blockbase] Packing objects in the background..."), false);
+		long start = System.nanoTime();
+		CompletableFuture.supplyAsync(() -> {
+			try {
+				return Repository.gc(server);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}).whenComplete((packed, error) -> server.execute(() -> {
+			if (error != null) {
+				Blockbase.LOGGER.error("Failed to pack objects", error);
+				source.sendFailure(new net.minecraft.network.chat.TextComponent("[Blockbase] Failed to pack objects. Check logs for details."));
+			} else if (packed == 0) {
+				source.sendSuccess(new net.minecraft.network.chat.TextComponent("[Blockbase] Nothing to pack."), false);
+			} else {
+				source.sendSuccess(new net.minecraft.network.chat.TextComponent(String.format(
+					"[Blockbase] Packed %d objects in %d ms.", packed, (System.nanoTime() - start) / 1_000_000
+				)), false);
 			}
+		}));
+		return 1;
+	}
+
+	private static int exportJsonCommand(CommandContext<CommandSourceStack> context) {
+		Level world = context.getSource().getLevel();
+
+		Repository repo = Repository.load(world);
+		if (repo == null) {
+			context.getSource().sendFailure(
+				new net.minecraft.network.chat.TextComponent(
+					"[Blockbase] No repository found. Run /blockbase init first."
+				)
+			);
+			return 0;
+		}
+
+		MinecraftServer server = context.getSource().getServer();
+		String commitId = resolveCommit(context, Repository.listCommits(server), StringArgumentType.getString(context, "commitId"));
+		if (commitId == null) {
+			return 0;
+		}
+
+		try {
+			var registry = world.registryAccess().registryOrThrow(net.minecraft.core.Registry.BLOCK_REGISTRY);
+			Path exportFile = Repository.getExportsDirectory(server).resolve(commitId + ".json");
+			Files.createDirectories(exportFile.getParent());
+			int count;
+			try (java.io.Writer out = Files.newBufferedWriter(exportFile)) {
+				count = Commit.writeJson(out, Repository.openChanges(server, commitId), registry);
+			}
+
+			context.getSource().sendSuccess(
+				new net.minecraft.network.chat.TextComponent(String.format(
+					"[Blockbase] Exported commit %s (%d changes) to %s",
+					commitId.length() > 7 ? commitId.substring(0, 7) : commitId,
+					count,
+					exportFile
+				)),
+				false
+			);
+			return 1;
+		} catch (IOException e) {
+			Blockbase.LOGGER.error("Failed to export commit {}", commitId, e);
+			context.getSource().sendFailure(
+				new net.minecraft.network.chat.TextComponent(
+					"[Blockbase] Failed to export commit. Check logs for details."
+				)
+			);
+			return 0;
 		}
-		return out;
 	}
+
 	private static int resetHardCommand(CommandContext<CommandSourceStack> context) {
 		Level world = context.getSource().getLevel();
 
@@ -551,7 +955,7 @@ public class BlockbaseCommands {
 		}
 
 		// Safety warning if there are uncommitted changes
-		if (Blockbase.blockTracker.getChangeCount() > 0 || Blockbase.stagingArea.getStagedCount() > 0) {
+		if (Blockbase.trackers.getChangeCount() > 0 || Blockbase.stagingArea.getStagedCount() > 0) {
 			context.getSource().sendSuccess(
 				new net.minecraft.network.chat.TextComponent(
 					"[Blockbase] Warning: uncommitted or staged changes will be lost by reset --hard."
@@ -562,29 +966,10 @@ public class BlockbaseCommands {
 
 		String prefix = StringArgumentType.getString(context, "commitId");
 
-		Path commitsDir = Repository.getCommitsDirectory(world);
-		if (commitsDir == null || !Files.exists(commitsDir)) {
-			context.getSource().sendFailure(
-				new net.minecraft.network.chat.TextComponent(
-					"[Blockbase] No commits directory found. Nothing to reset."
-				)
-			);
-			return 0;
-		}
-
 		try {
-			// Load all commit files sorted by time (oldest first)
-			List<Path> allCommits = Files.list(commitsDir)
-				.filter(p -> p.getFileName().toString().endsWith(".json"))
-				.sorted(Comparator.comparing(p -> {
-					try {
-						return Files.getLastModifiedTime(p).toMillis();
-					} catch (IOException e) {
-						return 0L;
-					}
-				}))
-				.collect(Collectors.toList());
-
+			// All commits, oldest first
+			MinecraftServer server = context.getSource().getServer();
+			List<String> allCommits = Repository.listCommits(server);
 			if (allCommits.isEmpty()) {
 				context.getSource().sendFailure(
 					new net.minecraft.network.chat.TextComponent(
@@ -594,60 +979,14 @@ public class BlockbaseCommands {
 				return 0;
 			}
 
-			// Find target commit by prefix (match against id inside JSON)
-			List<Path> matching = allCommits.stream().filter(p -> {
-				try {
-					String json = Files.readString(p);
-					String id = extractString(json, "\"id\":\"");
-					return id != null && id.startsWith(prefix);
-				} catch (IOException e) {
-					return false;
-				}
-			}).collect(Collectors.toList());
-
-			if (matching.isEmpty()) {
-				context.getSource().sendFailure(
-					new net.minecraft.network.chat.TextComponent(
-						String.format("[Blockbase] No commit found with id starting with '%s'.", prefix)
-					)
-				);
-				return 0;
-			}
-
-			if (matching.size() > 1) {
-				String ids = matching.stream().map(p -> {
-						try {
-							String json = Files.readString(p);
-							String id = extractString(json, "\"id\":\"");
-							if (id == null) return "?";
-							return id.length() > 7 ? id.substring(0, 7) : id;
-						} catch (IOException e) {
-							return "?";
-						}
-					})
-					.collect(Collectors.joining(", "));
-				context.getSource().sendFailure(
-					new net.minecraft.network.chat.TextComponent(
-						String.format("[Blockbase] Ambiguous commit id '%s'. Matches: %s", prefix, ids)
-					)
-				);
-				return 0;
-			}
-
-			Path targetPath = matching.get(0);
-			String targetJson = Files.readString(targetPath);
-			String fullId = extractString(targetJson, "\"id\":\"");
-			if (fullId == null || fullId.isEmpty()) {
-				context.getSource().sendFailure(
-					new net.minecraft.network.chat.TextComponent(
-						"[Blockbase] Failed to parse commit file (missing id)."
-					)
-				);
+			// Find target commit by prefix
+			String fullId = resolveCommit(context, allCommits, prefix);
+			if (fullId == null) {
 				return 0;
 			}
 
 			// Find index of target in ordered list
-			int targetIndex = allCommits.indexOf(targetPath);
+			int targetIndex = allCommits.indexOf(fullId);
 			if (targetIndex == -1) {
 				context.getSource().sendFailure(
 					new net.minecraft.network.chat.TextComponent(
@@ -658,7 +997,7 @@ public class BlockbaseCommands {
 			}
 
 			// Commits after the target need to be reverted (from newest to oldest)
-			List<Path> toRevert = allCommits.subList(targetIndex + 1, allCommits.size());
+			List<String> toRevert = allCommits.subList(targetIndex + 1, allCommits.size());
 			if (toRevert.isEmpty()) {
 				context.getSource().sendSuccess(
 					new net.minecraft.network.chat.TextComponent(
@@ -669,59 +1008,52 @@ public class BlockbaseCommands {
 				return 1;
 			}
 
-			var registry = world.registryAccess().registryOrThrow(net.minecraft.core.Registry.BLOCK_REGISTRY);
+			// Reverting newest to oldest leaves each position in the old state of its earliest
+			// reverted change, so collect those first (oldest commit first). Everything is read
+			// before touching the world, so a corrupt commit aborts the reset.
+			Map<ResourceKey<Level>, LongArrayList> positions = new LinkedHashMap<>();
+			Map<ResourceKey<Level>, IntArrayList> states = new LinkedHashMap<>();
+			Map<ResourceKey<Level>, LongOpenHashSet> seen = new HashMap<>();
 			int applied = 0;
-
-			for (int i = toRevert.size() - 1; i >= 0; i--) {
-				Path commitPath = toRevert.get(i);
-				String json = Files.readString(commitPath);
-
-				// Parse changes array
-				int idx = json.indexOf("\"changes\":[");
-				if (idx == -1) {
-					continue;
-				}
-				int start = idx + "\"changes\":[".length();
-				int end = json.indexOf("]", start);
-				if (end == -1) {
-					continue;
+			for (String id : toRevert) {
+				ChangeCursor changes = Repository.openChanges(server, id);
+				ResourceKey<Level> dimension = changes.getDimension();
+				LongOpenHashSet dimensionSeen = seen.computeIfAbsent(dimension, d -> new LongOpenHashSet());
+				while (changes.next()) {
+					long pos = changes.getPackedPosition();
+					if (dimensionSeen.add(pos)) {
+						positions.computeIfAbsent(dimension, d -> new LongArrayList()).add(pos);
+						states.computeIfAbsent(dimension, d -> new IntArrayList()).add(changes.getOldStateId());
+					}
+					applied++;
 				}
-				String changesPart = json.substring(start, end).trim();
-				if (changesPart.isEmpty()) {
+			}
+
+			for (Map.Entry<ResourceKey<Level>, LongArrayList> entry : positions.entrySet()) {
+				// Replay each commit into the dimension it was recorded in
+				Level target = world.getServer() != null ? world.getServer().getLevel(entry.getKey()) : world;
+				if (target == null) {
+					Blockbase.LOGGER.warn("Skipping changes in dimension {}: it is not loaded", entry.getKey().location());
 					continue;
 				}
-
-				java.util.List<String> changeObjs = splitTopLevelJsonObjects(changesPart);
-				for (int j = changeObjs.size() - 1; j >= 0; j--) {
-					String changeStr = changeObjs.get(j);
-					BlockChange change = BlockChange.fromJsonString(changeStr, registry);
-					if (change == null) continue;
-
-					net.minecraft.core.BlockPos pos = change.getPosition();
-					net.minecraft.world.level.block.state.BlockState oldState = change.getOldState();
-
-					if (oldState != null) {
-						// Revert to old state
-						world.setBlock(pos, oldState, 3);
-					} else {
-						// Old state was null -> block did not exist before this commit, so set to AIR
-						world.setBlock(pos, net.minecraft.world.level.block.Blocks.AIR.defaultBlockState(), 3);
-					}
-					applied++;
+				LongArrayList dimensionPositions = entry.getValue();
+				IntArrayList oldStates = states.get(entry.getKey());
+				for (int j = dimensionPositions.size() - 1; j >= 0; j--) {
+					net.minecraft.world.level.block.state.BlockState oldState = StatePalette.stateOf(oldStates.getInt(j));
+					// Old state was null -> block did not exist before these commits, so set to AIR
+					target.setBlock(net.minecraft.core.BlockPos.of(dimensionPositions.getLong(j)),
+						oldState != null ? oldState : net.minecraft.world.level.block.Blocks.AIR.defaultBlockState(), 3);
 				}
 			}
 
 			// Clear tracking and staging after reset
-			Blockbase.blockTracker.clearChanges();
+			for (BlockTracker tracker : Blockbase.trackers.all()) {
+				tracker.clearChanges();
+			}
 			Blockbase.stagingArea.clear();
 
-			// Prune commits newer than the target (like git reset --hard)
-			for (Path p : toRevert) {
-				try {
-					Files.deleteIfExists(p);
-				} catch (IOException ignore) {
-				}
-			}
+			// Drop commits newer than the target from the history (like git reset --hard)
+			Repository.setHead(server, fullId);
 
 			String shortId = fullId.length() > 7 ? fullId.substring(0, 7) : fullId;
 			context.getSource().sendSuccess(
@@ -786,72 +1118,30 @@ public class BlockbaseCommands {
 			return 0;
 		}
 
-		Path commitsDir = Repository.getCommitsDirectory(world);
-		if (commitsDir == null || !Files.exists(commitsDir)) {
+		MinecraftServer server = context.getSource().getServer();
+		List<String> commitIds = Repository.listCommits(server);
+		if (commitIds.isEmpty()) {
 			context.getSource().sendSuccess(new net.minecraft.network.chat.TextComponent("[Blockbase] No commits to push."), false);
 			return 1;
 		}
 
 		try {
-			List<Path> commitFiles = Files.list(commitsDir)
-				.filter(p -> p.getFileName().toString().endsWith(".json"))
-				.sorted((a, b) -> {
-					try {
-						long at = Files.getLastModifiedTime(a).toMillis();
-						long bt = Files.getLastModifiedTime(b).toMillis();
-						return Long.compare(at, bt); // oldest first
-					} catch (IOException e) {
-						return 0;
-					}
-				})
-				.collect(Collectors.toList());
-
-			if (commitFiles.isEmpty()) {
-				context.getSource().sendSuccess(new net.minecraft.network.chat.TextComponent("[Blockbase] No commits to push."), false);
-				return 1;
-			}
-
 			ApiClient client = new ApiClient(remote, null);
+			var registry = world.registryAccess().registryOrThrow(net.minecraft.core.Registry.BLOCK_REGISTRY);
 			String remoteRepoId = repo.getRemoteRepoId();
 			String targetRepoId = (remoteRepoId != null && !remoteRepoId.isEmpty()) ? remoteRepoId : repo.getId();
 			int pushed = 0;
 			int failed = 0;
-			for (Path path : commitFiles) {
-				String json = Files.readString(path);
-				String id = extractString(json, "\"id\":\"");
-				String message = unescapeJson(extractString(json, "\"message\":\""));
-				String author = extractString(json, "\"author\":\"");
-				long ts = extractLong(json, "\"timestamp\":");
+			for (String commitId : commitIds) {
+				Commit commit = Repository.readCommit(server, commitId, false);
+				String id = commit.getId();
+				long ts = commit.getTimestamp();
 				String timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX").format(new Date(ts == 0L ? System.currentTimeMillis() : ts));
 
-				// Extract raw changes array to forward as-is
-				String changesArray = "[]";
-				int idx = json.indexOf("\"changes\":[");
-				if (idx != -1) {
-					int start = idx + "\"changes\":".length();
-					// start should point to '['
-					int bracket = json.indexOf("[", start);
-					if (bracket != -1) {
-						int depth = 0;
-						int end = -1;
-						for (int i = bracket; i < json.length(); i++) {
-							char c = json.charAt(i);
-							if (c == '[') depth++;
-							else if (c == ']') {
-								depth--;
-								if (depth == 0) {
-                                    end = i;
-									break;
-								}
-							}
-						}
-						if (end != -1) {
-							changesArray = json.substring(bracket, end + 1);
-						}
-					}
-				}
-
-				ApiClient.ApiResult res = client.createCommit(targetRepoId, id, message, author, timestamp, changesArray);
+				// The backend takes self-describing changes rather than palette indices; they are
+				// streamed from the store into the request
+				ApiClient.ApiResult res = client.createCommit(targetRepoId, id, commit.getMessage(), commit.getAuthor(), timestamp,
+					out -> Commit.writeChangesJson(out, Repository.openChanges(server, id), registry));
 				if (res.ok) {
 					pushed++;
 				} else {
@@ -0,0 +1,132 @@
+package com.blockbase;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.PalettedContainer;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Detects mass edits and switches them from per-block tracking to section snapshots.
+ *
+ * Every server-side block write is counted per chunk section for the current tick. Once a
+ * section receives BURST_THRESHOLD writes, its block states are copied and rolled back over
+ * the writes already seen this tick, giving the section as it was when the tick started.
+ * Further writes to that section are not tracked individually; at the end of the tick the
+ * section is copied again and the pair is handed on as a {@link BurstSnapshot}.
+ *
+ * Not thread-safe: only the server thread may call this.
+ */
+public class BurstDetector {
+	// Writes to one section within one tick before it is treated as a mass edit (-Dblockbase.burstThreshold)
+	static final int BURST_THRESHOLD = Integer.getInteger("blockbase.burstThreshold", 32);
+
+	private final Long2IntOpenHashMap writes = new Long2IntOpenHashMap();
+	private final Long2ObjectOpenHashMap<OpenBurst> open = new Long2ObjectOpenHashMap<>();
+	// Writes seen this tick in sections that have not turned into a burst, oldest first.
+	// Cleared every tick but never shrunk, so steady-state counting does not allocate.
+	private final LongArrayList earlyPositions = new LongArrayList();
+	private final IntArrayList earlyOldIds = new IntArrayList();
+	private final ArrayList<Level> earlyLevels = new ArrayList<>();
+
+	private static final class OpenBurst {
+		final Level level;
+		final LevelChunkSection section;
+		final PalettedContainer<BlockState> before;
+
+		OpenBurst(Level level, LevelChunkSection section, PalettedContainer<BlockState> before) {
+			this.level = level;
+			this.section = section;
+			this.before = before;
+		}
+	}
+
+	/**
+	 * Count a block write that is about to happen.
+	 * @param oldState The state currently at {@code pos}
+	 * @return true if the write is covered by a section snapshot and must not be tracked per block
+	 */
+	public boolean onWrite(Level level, BlockPos pos, BlockState oldState) {
+		if (level.isOutsideBuildHeight(pos)) return false; // No section to snapshot; the write is rejected anyway
+		int x = pos.getX();
+		int y = pos.getY();
+		int z = pos.getZ();
+		long key = SectionPos.asLong(SectionPos.blockToSectionCoord(x), SectionPos.blockToSectionCoord(y), SectionPos.blockToSectionCoord(z));
+
+		OpenBurst burst = open.get(key);
+		if (burst != null) {
+			return burst.level == level; // Section keys are per dimension; fall back to per-block otherwise
+		}
+
+		int count = writes.addTo(key, 1) + 1;
+		if (count < BURST_THRESHOLD) {
+			earlyPositions.add(pos.asLong());
+			earlyOldIds.add(Block.getId(oldState));
+			earlyLevels.add(level);
+			return false;
+		}
+
+		LevelChunkSection section = level.getChunk(SectionPos.blockToSectionCoord(x), SectionPos.blockToSectionCoord(z))
+			.getSection(level.getSectionIndex(y));
+		PalettedContainer<BlockState> before = section.getStates().copy();
+		// Undo this tick's earlier writes to the section, newest first
+		for (int i = earlyPositions.size() - 1; i >= 0; i--) {
+			long p = earlyPositions.getLong(i);
+			if (earlyLevels.get(i) != level || sectionKey(p) != key) continue;
+			before.getAndSet(SectionPos.sectionRelative(BlockPos.getX(p)), SectionPos.sectionRelative(BlockPos.getY(p)),
+				SectionPos.sectionRelative(BlockPos.getZ(p)), Block.stateById(earlyOldIds.getInt(i)));
+		}
+		open.put(key, new OpenBurst(level, section, before));
+		Blockbase.LOGGER.debug("Section {} received {} writes this tick, switching to snapshot capture", SectionPos.of(key), count);
+		return true;
+	}
+
+	/**
+	 * Close all bursts opened this tick and reset the per-tick counters.
+	 * @param sink receives one snapshot per section that burst this tick
+	 */
+	public void endTick(Consumer<BurstSnapshot> sink) {
+		if (!open.isEmpty()) {
+			for (Long2ObjectMap.Entry<OpenBurst> entry : open.long2ObjectEntrySet()) {
+				OpenBurst burst = entry.getValue();
+				sink.accept(new BurstSnapshot(entry.getLongKey(), burst.before, burst.section.getStates().copy(), burst.level.getGameTime()));
+			}
+			open.clear();
+		}
+		if (!writes.isEmpty()) {
+			writes.clear();
+		}
+		earlyPositions.clear();
+		earlyOldIds.clear();
+		earlyLevels.clear();
+	}
+
+	/**
+	 * Drop the bursts opened this tick without recording them and reset the per-tick
+	 * counters. Used when the tracked changes are cleared mid-tick, e.g. by a reset.
+	 */
+	public void discard() {
+		open.clear();
+		writes.clear();
+		earlyPositions.clear();
+		earlyOldIds.clear();
+		earlyLevels.clear();
+	}
+
+	private static long sectionKey(long pos) {
+		return SectionPos.asLong(
+			SectionPos.blockToSectionCoord(BlockPos.getX(pos)),
+			SectionPos.blockToSectionCoord(BlockPos.getY(pos)),
+			SectionPos.blockToSectionCoord(BlockPos.getZ(pos)));
+	}
+}
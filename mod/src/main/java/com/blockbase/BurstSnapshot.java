@@ -0,0 +1,72 @@
+package com.blockbase;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.PalettedContainer;
+
+/**
+ * Before/after copies of one chunk section's block states around a mass edit
+ * (a /fill, an explosion...), recorded instead of one change per block.
+ *
+ * The copies are the section's own paletted storage, so a snapshot costs a few bits
+ * per block. They are never modified after construction, which lets the working tree
+ * and the journal writer expand the same snapshot on different threads.
+ */
+public final class BurstSnapshot {
+	private final long sectionKey;
+	private final PalettedContainer<BlockState> before;
+	private final PalettedContainer<BlockState> after;
+	private final long timestamp;
+
+	public BurstSnapshot(long sectionKey, PalettedContainer<BlockState> before, PalettedContainer<BlockState> after, long timestamp) {
+		this.sectionKey = sectionKey;
+		this.before = before;
+		this.after = after;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * @return the section this snapshot covers ({@link SectionPos#asLong(int, int, int)})
+	 */
+	public long getSectionKey() {
+		return sectionKey;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Combine with a later snapshot of the same section: this one's "before", the later "after".
+	 */
+	public BurstSnapshot followedBy(BurstSnapshot later) {
+		return new BurstSnapshot(sectionKey, before, later.after, later.timestamp);
+	}
+
+	/**
+	 * Visit every position whose state differs between the two copies.
+	 * @return the number of positions visited
+	 */
+	public int expand(WorkingTree.Visitor visitor) {
+		int baseX = SectionPos.sectionToBlockCoord(SectionPos.x(sectionKey));
+		int baseY = SectionPos.sectionToBlockCoord(SectionPos.y(sectionKey));
+		int baseZ = SectionPos.sectionToBlockCoord(SectionPos.z(sectionKey));
+		int changed = 0;
+		for (int y = 0; y < 16; y++) {
+			for (int z = 0; z < 16; z++) {
+				for (int x = 0; x < 16; x++) {
+					BlockState oldState = before.get(x, y, z);
+					BlockState newState = after.get(x, y, z);
+					if (oldState != newState) { // States are interned, identity is enough
+						visitor.accept(BlockPos.asLong(baseX + x, baseY + y, baseZ + z),
+							Block.getId(oldState), Block.getId(newState), timestamp);
+						changed++;
+					}
+				}
+			}
+		}
+		return changed;
+	}
+}
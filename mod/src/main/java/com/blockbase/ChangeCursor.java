@@ -0,0 +1,254 @@
+package com.blockbase;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.util.Arrays;
+
+/**
+ * Forward-only cursor over the changes of a stored commit, for replaying history without
+ * building a {@link BlockChange} per change. Positions and palette indices are read straight
+ * from the commit's run objects, one reused buffer holds the current run, and the accessors
+ * describe the current change only until the next call to {@link #next()}.
+ *
+ * With bounds set, runs whose chunk section lies outside them are skipped without being
+ * loaded, and changes outside them are skipped before their states are looked up.
+ *
+ * Not thread-safe.
+ */
+public final class ChangeCursor {
+	private final ObjectSource store;
+	private final Commit commit; // metadata only
+	private final ByteBuffer in; // commit object, at the next timestamp delta
+
+	private final int runCount;
+	private final long[] sectionKeys;
+	private final byte[] runIds;
+	private final int[] runSizes;
+
+	private boolean bounded;
+	private int minX, minY, minZ, maxX, maxY, maxZ;
+
+	private ByteBuffer run; // current run object, at the next change
+	private int runIndex = -1;
+	private int remaining; // changes left in the current run
+	private int paletteStart;
+	private int paletteSize;
+	private int[] palette; // resolved on first use, null until then
+	private int baseX, baseY, baseZ;
+	private int local;
+
+	private int x, y, z;
+	private int oldIndex, newIndex;
+	private long timestamp;
+
+	private ChangeCursor(ObjectSource store, ByteBuffer data) throws IOException {
+		this.store = store;
+		this.in = data.duplicate();
+		this.commit = CommitCodec.readMetadata(in);
+		CommitCodec.verifyChecksum(data);
+		runCount = CommitCodec.readVarInt(in);
+		sectionKeys = new long[runCount];
+		runIds = new byte[runCount * ObjectStore.ID_BYTES];
+		runSizes = new int[runCount];
+		for (int r = 0; r < runCount; r++) {
+			sectionKeys[r] = in.getLong();
+			in.get(runIds, r * ObjectStore.ID_BYTES, ObjectStore.ID_BYTES);
+			runSizes[r] = CommitCodec.readVarInt(in);
+		}
+	}
+
+	/**
+	 * Open a cursor over a commit in {@code store} (or a cache in front of it). Only the
+	 * commit object is read here; runs are loaded as the cursor reaches them.
+	 * @throws IOException if the commit does not exist or is corrupt
+	 */
+	public static ChangeCursor open(ObjectSource store, String commitId) throws IOException {
+		ByteBuffer data = store.get(commitId, null);
+		if (data == null) {
+			throw new IOException("No such commit: " + commitId);
+		}
+		try {
+			return new ChangeCursor(store, data);
+		} catch (RuntimeException e) {
+			throw new IOException("Truncated or corrupt commit data", e);
+		}
+	}
+
+	/**
+	 * @return the commit's metadata (it has no changes)
+	 */
+	public Commit getCommit() {
+		return commit;
+	}
+
+	public ResourceKey<Level> getDimension() {
+		return commit.getDimension();
+	}
+
+	/**
+	 * Only visit changes inside the box from {@code min} to {@code max} (inclusive).
+	 * Set before the first call to {@link #next()}.
+	 */
+	public void setBounds(BlockPos min, BlockPos max) {
+		bounded = true;
+		minX = Math.min(min.getX(), max.getX());
+		minY = Math.min(min.getY(), max.getY());
+		minZ = Math.min(min.getZ(), max.getZ());
+		maxX = Math.max(min.getX(), max.getX());
+		maxY = Math.max(min.getY(), max.getY());
+		maxZ = Math.max(min.getZ(), max.getZ());
+	}
+
+	/**
+	 * Move to the next change (inside the bounds, if set).
+	 * @return false when there are no more changes
+	 * @throws IOException if a run is missing or corrupt
+	 */
+	public boolean next() throws IOException {
+		try {
+			while (true) {
+				while (remaining == 0) {
+					if (runIndex + 1 >= runCount) {
+						runIndex = runCount;
+						return false;
+					}
+					runIndex++;
+					if (bounded && !sectionInBounds(sectionKeys[runIndex])) {
+						for (int i = 0; i < runSizes[runIndex]; i++) {
+							timestamp += CommitCodec.unZigZag(CommitCodec.readVarLong(in));
+						}
+						continue;
+					}
+					loadRun();
+				}
+
+				remaining--;
+				local += (int) CommitCodec.unZigZag(CommitCodec.readVarLong(run));
+				oldIndex = CommitCodec.readVarInt(run) - 1;
+				newIndex = CommitCodec.readVarInt(run) - 1;
+				timestamp += CommitCodec.unZigZag(CommitCodec.readVarLong(in));
+				if (oldIndex >= paletteSize || newIndex >= paletteSize || (local & ~0xFFF) != 0) {
+					throw new IOException("Corrupt change in run " + ObjectStore.hex(runId(runIndex)));
+				}
+				x = baseX + (local & 15);
+				y = baseY + (local >> 8);
+				z = baseZ + ((local >> 4) & 15);
+				if (!bounded || (x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ)) {
+					return true;
+				}
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Truncated or corrupt commit data", e);
+		}
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	public int getZ() {
+		return z;
+	}
+
+	/**
+	 * @return a new BlockPos for the current change
+	 */
+	public BlockPos getPosition() {
+		return new BlockPos(x, y, z);
+	}
+
+	/**
+	 * @return the current position packed with {@link BlockPos#asLong(int, int, int)}
+	 */
+	public long getPackedPosition() {
+		return BlockPos.asLong(x, y, z);
+	}
+
+	/**
+	 * @return the old state's registry id, or {@link ChangeQueue#NO_STATE}
+	 */
+	public int getOldStateId() throws IOException {
+		return StatePalette.lookup(palette(), oldIndex);
+	}
+
+	/**
+	 * @return the new state's registry id, or {@link ChangeQueue#NO_STATE}
+	 */
+	public int getNewStateId() throws IOException {
+		return StatePalette.lookup(palette(), newIndex);
+	}
+
+	public BlockState getOldState() throws IOException {
+		return StatePalette.stateOf(getOldStateId());
+	}
+
+	public BlockState getNewState() throws IOException {
+		return StatePalette.stateOf(getNewStateId());
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	private void loadRun() throws IOException {
+		byte[] id = runId(runIndex);
+		run = store.get(ObjectStore.hex(id), run);
+		if (run == null) {
+			throw new IOException("Missing run object " + ObjectStore.hex(id));
+		}
+		CommitCodec.readHeader(run, CommitCodec.RUN_MAGIC);
+		paletteSize = CommitCodec.readVarInt(run);
+		paletteStart = run.position();
+		for (int i = 0; i < paletteSize; i++) {
+			CommitCodec.skipString(run); // Names are only parsed if a change in the run is visited
+		}
+		palette = null;
+		int count = CommitCodec.readVarInt(run);
+		if (count != runSizes[runIndex]) {
+			throw new IOException("Run " + ObjectStore.hex(id) + " holds " + count + " changes, expected " + runSizes[runIndex]);
+		}
+		remaining = count;
+		local = 0;
+		baseX = SectionPos.sectionToBlockCoord(SectionPos.x(sectionKeys[runIndex]));
+		baseY = SectionPos.sectionToBlockCoord(SectionPos.y(sectionKeys[runIndex]));
+		baseZ = SectionPos.sectionToBlockCoord(SectionPos.z(sectionKeys[runIndex]));
+	}
+
+	private int[] palette() throws IOException {
+		if (palette == null) {
+			ByteBuffer names = run.duplicate().position(paletteStart);
+			String[] parsed = new String[paletteSize];
+			try {
+				for (int i = 0; i < paletteSize; i++) {
+					parsed[i] = CommitCodec.readString(names);
+				}
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Truncated palette in run " + ObjectStore.hex(runId(runIndex)), e);
+			}
+			palette = StatePalette.resolve(Arrays.asList(parsed));
+		}
+		return palette;
+	}
+
+	private boolean sectionInBounds(long sectionKey) {
+		int bx = SectionPos.sectionToBlockCoord(SectionPos.x(sectionKey));
+		int by = SectionPos.sectionToBlockCoord(SectionPos.y(sectionKey));
+		int bz = SectionPos.sectionToBlockCoord(SectionPos.z(sectionKey));
+		return bx + 15 >= minX && bx <= maxX && by + 15 >= minY && by <= maxY && bz + 15 >= minZ && bz <= maxZ;
+	}
+
+	private byte[] runId(int r) {
+		return Arrays.copyOfRange(runIds, r * ObjectStore.ID_BYTES, (r + 1) * ObjectStore.ID_BYTES);
+	}
+}
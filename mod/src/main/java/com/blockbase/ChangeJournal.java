@@ -0,0 +1,598 @@
+package com.blockbase;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead journal of working-tree events, stored in .blockbase/journal.bin.
+ *
+ * Layout: a 12-byte header (magic, format version, reserved) followed by frames of
+ * [int payloadLength][int crc32][payload]. Each payload is one flushed batch:
+ * [int paletteSize] then paletteSize x (short length, UTF-8 state name), then
+ * [int recordCount] and recordCount x (long pos, int oldIndex, int newIndex, long tick),
+ * where the indices point into the frame's own palette (-1 for no block). Each frame is
+ * self-describing, so a journal survives registry changes between game versions.
+ *
+ * Frames hold at most 65536 records so recovery can decode them in parallel.
+ *
+ * Events are buffered in memory as they are drained into the working tree; {@link #flush()}
+ * seals the buffer into a frame and hands it to a background writer, which appends every
+ * queued frame and then calls force() once (group fsync). Mass edits are queued as
+ * {@link BurstSnapshot}s and diffed into records on the writer thread. The journal is truncated when the
+ * working tree is committed, and rewritten from a snapshot when it grows much larger than
+ * the tree it describes.
+ */
+public class ChangeJournal implements AutoCloseable {
+	public static final String FILE_NAME = "journal.bin";
+
+	static final int MAGIC = 0x42424A31; // "BBJ1"
+	static final int VERSION = 2;
+	static final int HEADER_BYTES = 12;
+	static final int FRAME_HEADER_BYTES = 8;
+	static final int RECORD_BYTES = 24;
+
+	private static final int INITIAL_BUFFER_RECORDS = 1024;
+	private static final int MAX_FRAME_RECORDS = 1 << 16;
+
+	// Unsafe.invokeCleaner, if this JVM offers it, to release mappings before the GC does
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+	private static final boolean CAN_UNMAP;
+	private static volatile boolean unmapFailed;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			Blockbase.LOGGER.warn("This JVM cannot release file mappings early; change journals are read without mapping them", e);
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+		CAN_UNMAP = invokeCleaner != null;
+	}
+
+	private final Path file;
+	private final ExecutorService writer;
+	// Encoded frames (ByteBuffer) and unexpanded bursts (BurstSnapshot) in append order; guarded by this
+	private final ArrayDeque<Object> sealed = new ArrayDeque<>();
+	private ByteBuffer pending; // guarded by this
+	private int pendingRecords; // guarded by this
+	private long journalBytes; // guarded by this, bytes on disk plus sealed frames
+	private FileChannel channel; // only touched on the writer thread
+
+	private ChangeJournal(Path file, long validLength) {
+		this.file = file;
+		this.journalBytes = validLength;
+		this.pending = newBuffer(INITIAL_BUFFER_RECORDS);
+		this.writer = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "Blockbase-Journal");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Open the journal for appending, dropping any torn tail past {@code validLength}.
+	 * @param file The journal file
+	 * @param validLength Length of the intact prefix found during replay (0 if none)
+	 */
+	public static ChangeJournal open(Path file, long validLength) throws IOException {
+		Files.createDirectories(file.getParent());
+		ChangeJournal journal = new ChangeJournal(file, Math.max(validLength, HEADER_BYTES));
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if (validLength < HEADER_BYTES) {
+			channel.truncate(0);
+			writeHeader(channel);
+		} else if (channel.size() > validLength) {
+			channel.truncate(validLength);
+		}
+		channel.position(channel.size());
+		journal.channel = channel;
+		return journal;
+	}
+
+	/**
+	 * Buffer one event. Called from the thread draining the change queue.
+	 */
+	public synchronized void append(long pos, int oldStateId, int newStateId, long tick) {
+		if (pending.remaining() < RECORD_BYTES) {
+			ByteBuffer bigger = newBuffer(pending.capacity() / RECORD_BYTES * 2);
+			pending.flip();
+			bigger.put(pending);
+			pending = bigger;
+		}
+		pending.putLong(pos).putInt(oldStateId).putInt(newStateId).putLong(tick);
+		pendingRecords++;
+	}
+
+	/**
+	 * Queue a section snapshot. It is expanded into records on the writer thread, so the
+	 * per-block diff of a mass edit is never computed on the server thread.
+	 */
+	public synchronized void appendBurst(BurstSnapshot burst) {
+		sealPending(); // Keep events in order
+		sealed.add(burst);
+	}
+
+	/**
+	 * Seal buffered events into a frame and schedule it to be written and fsynced off-thread.
+	 * @return a future that completes once the data is durable
+	 */
+	public Future<?> flush() {
+		synchronized (this) {
+			if (pendingRecords == 0 && sealed.isEmpty()) {
+				return CompletableFuture.completedFuture(null);
+			}
+			sealPending();
+		}
+		return writer.submit(this::writeSealed);
+	}
+
+	private void sealPending() {
+		if (pendingRecords > 0) {
+			ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+			journalBytes += encodeFrames(pending, pendingRecords, frames);
+			sealed.addAll(frames);
+			pending.clear();
+			pendingRecords = 0;
+		}
+	}
+
+	/**
+	 * Discard all journaled events (the working tree was committed or reset).
+	 */
+	public Future<?> truncate() {
+		synchronized (this) {
+			sealed.clear();
+			pending.clear();
+			pendingRecords = 0;
+			journalBytes = HEADER_BYTES;
+		}
+		return writer.submit(() -> {
+			try {
+				channel.truncate(HEADER_BYTES);
+				channel.position(HEADER_BYTES);
+				channel.force(false);
+			} catch (IOException e) {
+				Blockbase.LOGGER.error("Failed to truncate change journal {}", file, e);
+			}
+		});
+	}
+
+	/**
+	 * Replace the journal with a single frame holding the given snapshot of the working tree.
+	 * Events buffered before this call are dropped once the new journal is in place, since
+	 * the snapshot already includes them; if it cannot be put in place they are appended to
+	 * the old journal instead, which then stays consistent.
+	 */
+	public Future<?> rewrite(WorkingTree snapshot) {
+		ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+		ArrayDeque<Object> superseded;
+		long snapshotBytes;
+		synchronized (this) {
+			sealPending();
+			superseded = new ArrayDeque<>(sealed);
+			sealed.clear();
+			int count = snapshot.size();
+			ByteBuffer records = newBuffer(Math.max(1, count));
+			int[] written = new int[1];
+			snapshot.forEach((pos, oldStateId, newStateId, timestamp) -> {
+				records.putLong(pos).putInt(oldStateId).putInt(newStateId).putLong(timestamp);
+				written[0]++;
+			});
+			snapshotBytes = HEADER_BYTES + encodeFrames(records, written[0], frames);
+			journalBytes = snapshotBytes;
+		}
+		return writer.submit(() -> {
+			if (!rotate(frames)) {
+				// Keep the old journal complete: it still needs the events the snapshot covered
+				try {
+					int written = 0;
+					for (Object item : superseded) {
+						written += writeItem(item);
+					}
+					if (written > 0) {
+						channel.force(false);
+					}
+					synchronized (this) {
+						journalBytes += channel.size() - snapshotBytes;
+					}
+				} catch (IOException e) {
+					Blockbase.LOGGER.error("Failed to append to change journal {}", file, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Write {@code frames} to a new journal file and swap it in for the current one.
+	 * @return true if the new journal is in place; otherwise the old channel is still in use
+	 */
+	private boolean rotate(ArrayDeque<ByteBuffer> frames) {
+		Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeHeader(out);
+			for (ByteBuffer frame : frames) {
+				while (frame.hasRemaining()) out.write(frame);
+			}
+			out.force(false);
+		} catch (IOException e) {
+			Blockbase.LOGGER.error("Failed to write compacted change journal {}", tmp, e);
+			return false;
+		}
+		// Open the compacted file before it replaces the journal, so a failed move or open
+		// leaves the old channel in place
+		FileChannel rotated = null;
+		try {
+			rotated = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			rotated.position(rotated.size());
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Blockbase.LOGGER.error("Failed to rotate change journal {}", file, e);
+			try {
+				if (rotated != null) rotated.close();
+				Files.deleteIfExists(tmp);
+			} catch (IOException cleanup) {
+				Blockbase.LOGGER.warn("Failed to remove compacted change journal {}", tmp, cleanup);
+			}
+			return false;
+		}
+		FileChannel old = channel;
+		channel = rotated;
+		try {
+			old.close();
+		} catch (IOException e) {
+			Blockbase.LOGGER.warn("Failed to close old change journal {}", file, e);
+		}
+		return true;
+	}
+
+	/**
+	 * @return approximate journal size in bytes, including frames not yet written
+	 */
+	public synchronized long sizeInBytes() {
+		return journalBytes;
+	}
+
+	/**
+	 * Flush remaining events, wait for them to reach disk and stop the writer thread.
+	 */
+	@Override
+	public void close() {
+		flush();
+		try {
+			// Runs after every previously submitted write, truncate or rewrite
+			writer.submit(() -> {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					Blockbase.LOGGER.warn("Failed to close change journal {}", file, e);
+				}
+			}).get();
+		} catch (Exception e) {
+			Blockbase.LOGGER.error("Failed to flush change journal {} on close", file, e);
+		}
+		writer.shutdown();
+	}
+
+	private void writeSealed() {
+		int frames = 0;
+		try {
+			while (true) {
+				Object next;
+				synchronized (this) {
+					next = sealed.poll();
+				}
+				if (next == null) break;
+				frames += writeItem(next);
+			}
+			if (frames > 0) {
+				channel.force(false); // One fsync for every frame written in this batch
+			}
+		} catch (IOException e) {
+			Blockbase.LOGGER.error("Failed to append to change journal {}", file, e);
+		}
+	}
+
+	/**
+	 * Write one sealed frame or burst to the channel, without forcing it.
+	 * @return the number of frames written
+	 */
+	private int writeItem(Object item) throws IOException {
+		if (item instanceof BurstSnapshot burst) {
+			int frames = 0;
+			for (ByteBuffer frame : encodeBurst(burst)) {
+				while (frame.hasRemaining()) {
+					channel.write(frame);
+				}
+				frames++;
+			}
+			return frames;
+		}
+		ByteBuffer frame = (ByteBuffer) item;
+		while (frame.hasRemaining()) {
+			channel.write(frame);
+		}
+		return 1;
+	}
+
+	private ArrayDeque<ByteBuffer> encodeBurst(BurstSnapshot burst) {
+		ByteBuffer records = newBuffer(16 * 16 * 16);
+		int count = burst.expand((pos, oldStateId, newStateId, timestamp) ->
+			records.putLong(pos).putInt(oldStateId).putInt(newStateId).putLong(timestamp));
+		ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+		long bytes = encodeFrames(records, count, frames);
+		synchronized (this) {
+			journalBytes += bytes;
+		}
+		return frames;
+	}
+
+	/**
+	 * Split buffered records into frames of at most MAX_FRAME_RECORDS, so recovery can
+	 * decode them in parallel. Each frame gets a palette of just the states it uses.
+	 * @return total encoded size in bytes
+	 */
+	private static long encodeFrames(ByteBuffer records, int recordCount, ArrayDeque<ByteBuffer> out) {
+		ByteBuffer body = records.duplicate();
+		body.flip();
+		long bytes = 0;
+		CRC32 crc = new CRC32();
+		StatePalette palette = new StatePalette();
+		for (int first = 0; first < recordCount; first += MAX_FRAME_RECORDS) {
+			int count = Math.min(MAX_FRAME_RECORDS, recordCount - first);
+			int base = body.position();
+			palette.clear();
+			for (int i = 0, p = base; i < count; i++, p += RECORD_BYTES) {
+				palette.indexOf(body.getInt(p + 8));
+				palette.indexOf(body.getInt(p + 12));
+			}
+			byte[][] names = new byte[palette.size()][];
+			int paletteBytes = 4;
+			for (int i = 0; i < names.length; i++) {
+				names[i] = palette.name(i).getBytes(StandardCharsets.UTF_8);
+				paletteBytes += 2 + names[i].length;
+			}
+
+			int payloadLength = paletteBytes + 4 + count * RECORD_BYTES;
+			ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + payloadLength);
+			frame.putInt(payloadLength);
+			frame.putInt(0); // CRC placeholder
+			frame.putInt(names.length);
+			for (byte[] name : names) {
+				frame.putShort((short) name.length).put(name);
+			}
+			frame.putInt(count);
+			for (int i = 0, p = base; i < count; i++, p += RECORD_BYTES) {
+				frame.putLong(body.getLong(p))
+					.putInt(palette.indexOf(body.getInt(p + 8)))
+					.putInt(palette.indexOf(body.getInt(p + 12)))
+					.putLong(body.getLong(p + 16));
+			}
+			body.position(base + count * RECORD_BYTES);
+			crc.reset();
+			crc.update(frame.array(), FRAME_HEADER_BYTES, payloadLength);
+			frame.putInt(4, (int) crc.getValue());
+			frame.flip();
+			out.add(frame);
+			bytes += frame.remaining();
+		}
+		return bytes;
+	}
+
+	private static void writeHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(MAGIC).putInt(VERSION).putInt(0);
+		header.flip();
+		channel.position(0);
+		while (header.hasRemaining()) channel.write(header);
+	}
+
+	private static ByteBuffer newBuffer(int records) {
+		return ByteBuffer.allocate(records * RECORD_BYTES);
+	}
+
+	/**
+	 * Recover an existing journal into the sink, stopping at the first torn or corrupt frame.
+	 *
+	 * The file is memory-mapped and frame boundaries are found by walking the length
+	 * prefixes. Frames are then checksummed and decoded in parallel, and finally replayed
+	 * into the sink in file order on the calling thread. The journal is truncated once it is
+	 * reopened, so it is only mapped if the mapping can be released first (see
+	 * {@link #unmap}); otherwise it is read into memory instead.
+	 * @return length of the intact prefix (0 if the file is missing or unusable)
+	 */
+	public static long replay(Path file, ChangeQueue.Sink sink) throws IOException {
+		if (!Files.exists(file)) return 0;
+		long startNanos = System.nanoTime();
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			if (fileSize > Integer.MAX_VALUE) {
+				Blockbase.LOGGER.warn("Change journal {} is larger than 2 GiB; only the first 2 GiB will be recovered", file);
+			}
+			int limit = (int) Math.min(fileSize, Integer.MAX_VALUE);
+			if (limit < HEADER_BYTES) {
+				Blockbase.LOGGER.warn("Ignoring unrecognised change journal {}", file);
+				return 0;
+			}
+
+			ByteBuffer map = CAN_UNMAP ? channel.map(FileChannel.MapMode.READ_ONLY, 0, limit) : readFully(channel, limit);
+			try {
+				if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+					Blockbase.LOGGER.warn("Ignoring unrecognised change journal {}", file);
+					return 0;
+				}
+
+				// Walk length prefixes to find frame boundaries (cheap: one int per frame)
+				int[] offsets = new int[64];
+				int frameCount = 0;
+				int pos = HEADER_BYTES;
+				while (limit - pos >= FRAME_HEADER_BYTES) {
+					int length = map.getInt(pos);
+					if (length < 8 || length > limit - pos - FRAME_HEADER_BYTES) break;
+					if (frameCount == offsets.length) offsets = Arrays.copyOf(offsets, frameCount * 2);
+					offsets[frameCount++] = pos;
+					pos += FRAME_HEADER_BYTES + length;
+				}
+
+				// Checksum and decode frames in parallel; null marks a corrupt frame
+				DecodedFrame[] decoded = new DecodedFrame[frameCount];
+				int[] frameOffsets = offsets;
+				IntStream.range(0, frameCount).parallel().forEach(i -> decoded[i] = DecodedFrame.decode(map, frameOffsets[i]));
+				long decodeNanos = System.nanoTime() - startNanos;
+
+				long valid = HEADER_BYTES;
+				long records = 0;
+				int frames = 0;
+				for (DecodedFrame frame : decoded) {
+					if (frame == null) break; // Everything after a corrupt frame is discarded
+					frame.replay(sink);
+					valid = frame.end;
+					records += frame.count;
+					frames++;
+				}
+				if (valid < fileSize) {
+					Blockbase.LOGGER.warn("Dropped {} bytes of torn or corrupt data at the end of change journal {}", fileSize - valid, file);
+				}
+				Blockbase.LOGGER.info("Recovered {} journal events from {} frames ({} bytes) in {} ms (decode {} ms, {} cores)",
+					records, frames, valid,
+					(System.nanoTime() - startNanos) / 1_000_000,
+					decodeNanos / 1_000_000,
+					Runtime.getRuntime().availableProcessors());
+				return valid;
+			} finally {
+				if (map instanceof MappedByteBuffer mapped) {
+					unmap(mapped);
+				}
+			}
+		}
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, buffer.position()) < 0) break;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Release a mapping eagerly so the file can be truncated or deleted afterwards (Windows
+	 * refuses both while a mapping is alive). The caller must make sure nothing reads the
+	 * buffer any more. Failures are logged once.
+	 * @return false if the mapping is left for the GC to release; the file must then not be
+	 *         truncated or deleted
+	 */
+	static boolean unmap(MappedByteBuffer buffer) {
+		if (!CAN_UNMAP) return false;
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+			return true;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			if (!unmapFailed) {
+				unmapFailed = true;
+				Blockbase.LOGGER.warn("Failed to release a file mapping; mapped files are kept until the mappings are collected", e);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * One frame's records, decoded off the server thread.
+	 */
+	private static final class DecodedFrame {
+		final int count;
+		final long end;
+		final long[] positions;
+		final int[] oldIds;
+		final int[] newIds;
+		final long[] ticks;
+
+		private DecodedFrame(int count, long end) {
+			this.count = count;
+			this.end = end;
+			this.positions = new long[count];
+			this.oldIds = new int[count];
+			this.newIds = new int[count];
+			this.ticks = new long[count];
+		}
+
+		static DecodedFrame decode(ByteBuffer map, int offset) {
+			int length = map.getInt(offset);
+			int expectedCrc = map.getInt(offset + 4);
+			int payload = offset + FRAME_HEADER_BYTES;
+			ByteBuffer slice = map.duplicate();
+			slice.limit(payload + length).position(payload);
+			CRC32 crc = new CRC32();
+			crc.update(slice);
+			if ((int) crc.getValue() != expectedCrc) return null;
+
+			int end = payload + length;
+			int p = payload;
+			int paletteSize = map.getInt(p);
+			p += 4;
+			if (paletteSize < 0 || paletteSize > (length - 8) / 2) return null;
+			List<String> names = new ArrayList<>(paletteSize);
+			for (int i = 0; i < paletteSize; i++) {
+				int nameLength = map.getShort(p) & 0xFFFF;
+				p += 2;
+				if (nameLength > end - p) return null;
+				byte[] name = new byte[nameLength];
+				map.get(p, name);
+				names.add(new String(name, StandardCharsets.UTF_8));
+				p += nameLength;
+			}
+			if (end - p < 4) return null;
+			int count = map.getInt(p);
+			p += 4;
+			if (count < 0 || (long) count * RECORD_BYTES != end - p) return null;
+
+			int[] palette = StatePalette.resolve(names);
+			DecodedFrame frame = new DecodedFrame(count, end);
+			for (int i = 0; i < count; i++, p += RECORD_BYTES) {
+				int oldIndex = map.getInt(p + 8);
+				int newIndex = map.getInt(p + 12);
+				if (oldIndex < StatePalette.NO_INDEX || oldIndex >= paletteSize
+					|| newIndex < StatePalette.NO_INDEX || newIndex >= paletteSize) return null;
+				frame.positions[i] = map.getLong(p);
+				frame.oldIds[i] = StatePalette.lookup(palette, oldIndex);
+				frame.newIds[i] = StatePalette.lookup(palette, newIndex);
+				frame.ticks[i] = map.getLong(p + 16);
+			}
+			return frame;
+		}
+
+		void replay(ChangeQueue.Sink sink) {
+			for (int i = 0; i < count; i++) {
+				sink.accept(positions[i], oldIds[i], newIds[i], ticks[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package com.blockbase;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Preallocated multi-producer/single-consumer ring buffer of primitive change records.
+ *
+ * Mixins publish (packed pos, old state id, new state id, tick) without allocating or
+ * touching the tracker index; the tracker drains the ring once per tick. Each slot carries
+ * a sequence number so producers can claim slots with a single CAS and the consumer can
+ * tell when a claimed slot has actually been written.
+ */
+public class ChangeQueue {
+	/** State id used for "no block" (placements have no old state, breaks have no new state). */
+	public static final int NO_STATE = -1;
+
+	public enum OverflowPolicy {
+		DROP,        // Discard the event and count it
+		DRAIN_INLINE // Drain the ring on the publishing thread, then retry once
+	}
+
+	@FunctionalInterface
+	public interface Sink {
+		void accept(long pos, int oldStateId, int newStateId, long tick);
+	}
+
+	private final int capacity;
+	private final int mask;
+	private final long[] positions;
+	private final int[] oldIds;
+	private final int[] newIds;
+	private final long[] ticks;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicBoolean draining = new AtomicBoolean();
+	private long head; // only written by the thread holding 'draining'
+	private volatile OverflowPolicy overflowPolicy;
+
+	private final LongAdder published = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder overflows = new LongAdder();
+	private final LongAdder drained = new LongAdder();
+	private volatile long highWatermark;
+
+	public ChangeQueue(int capacity, OverflowPolicy overflowPolicy) {
+		if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+		}
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.positions = new long[capacity];
+		this.oldIds = new int[capacity];
+		this.newIds = new int[capacity];
+		this.ticks = new long[capacity];
+		this.sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			sequences.set(i, i);
+		}
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Publish a change record. Safe to call from any thread.
+	 * @return true if the record was queued, false if it was dropped
+	 */
+	public boolean publish(long pos, int oldStateId, int newStateId, long tick, Sink overflowSink) {
+		if (tryPublish(pos, oldStateId, newStateId, tick)) {
+			return true;
+		}
+		overflows.increment();
+		if (overflowPolicy == OverflowPolicy.DRAIN_INLINE && overflowSink != null) {
+			drain(overflowSink);
+			if (tryPublish(pos, oldStateId, newStateId, tick)) {
+				return true;
+			}
+		}
+		dropped.increment();
+		long droppedNow = dropped.sum();
+		if (Long.bitCount(droppedNow) == 1) { // 1, 2, 4, 8... keeps the log quiet under sustained lag
+			Blockbase.LOGGER.warn("Change queue saturated (capacity {}): {} events dropped so far", capacity, droppedNow);
+		}
+		return false;
+	}
+
+	private boolean tryPublish(long pos, int oldStateId, int newStateId, long tick) {
+		while (true) {
+			long t = tail.get();
+			int idx = (int) (t & mask);
+			long seq = sequences.get(idx);
+			if (seq == t) {
+				if (tail.compareAndSet(t, t + 1)) {
+					positions[idx] = pos;
+					oldIds[idx] = oldStateId;
+					newIds[idx] = newStateId;
+					ticks[idx] = tick;
+					sequences.lazySet(idx, t + 1);
+					published.increment();
+					return true;
+				}
+			} else if (seq < t) {
+				return false; // Slot still holds an undrained record from the previous lap
+			}
+			// Another producer claimed this slot; retry with the new tail
+		}
+	}
+
+	/**
+	 * Drain all currently published records into the sink. Only one thread drains at a
+	 * time; if another thread is already draining, this returns immediately.
+	 * @return the number of records drained
+	 */
+	public int drain(Sink sink) {
+		if (!draining.compareAndSet(false, true)) {
+			return 0;
+		}
+		int count = 0;
+		try {
+			long depth = tail.get() - head;
+			if (depth > highWatermark) {
+				highWatermark = depth;
+			}
+			while (true) {
+				int idx = (int) (head & mask);
+				if (sequences.get(idx) != head + 1) {
+					break; // Empty, or the producer that claimed this slot has not finished writing
+				}
+				sink.accept(positions[idx], oldIds[idx], newIds[idx], ticks[idx]);
+				sequences.lazySet(idx, head + capacity);
+				head++;
+				count++;
+			}
+		} finally {
+			draining.set(false);
+		}
+		if (count > 0) {
+			drained.add(count);
+		}
+		return count;
+	}
+
+	/**
+	 * @return approximate number of records waiting to be drained
+	 */
+	public int size() {
+		return (int) Math.max(0, tail.get() - head);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public long getPublishedCount() {
+		return published.sum();
+	}
+
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	public long getOverflowCount() {
+		return overflows.sum();
+	}
+
+	public long getDrainedCount() {
+		return drained.sum();
+	}
+
+	public long getHighWatermark() {
+		return highWatermark;
+	}
+}
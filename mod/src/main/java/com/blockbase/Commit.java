@@ -1,12 +1,14 @@
 package com.blockbase;
 
+import net.minecraft.core.BlockPos;
 import net.minecraft.core.Registry;
+import net.minecraft.resources.ResourceKey;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.Block;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -16,7 +18,8 @@ import java.util.List;
  *
  * For the MVP:
  * - Single branch ("main")
- * - Commits are stored as JSON files in .blockbase/commits/<commitId>.json
+ * - Commits are stored in the repository's {@link ObjectStore} (see {@link CommitCodec});
+ *   JSON commit files from older worlds are read with {@link #fromJson} and imported
  */
 public class Commit {
 
@@ -25,20 +28,24 @@ public class Commit {
 	private final String author;           // Author name (for now, simple string)
 	private final long timestamp;          // When the commit was created (ms since epoch)
 	private final String parentId;         // Previous commit ID (null if initial commit)
+	private final ResourceKey<Level> dimension; // Dimension the changes were made in
 	private final List<BlockChange> changes; // List of block changes included in this commit
+	private CommitTree tree;               // Hash tree the ID was derived from (null if not built here)
 
 	public Commit(String id,
 				  String message,
 				  String author,
 				  long timestamp,
 				  String parentId,
+				  ResourceKey<Level> dimension,
 				  List<BlockChange> changes) {
 		this.id = id;
 		this.message = message;
 		this.author = author;
 		this.timestamp = timestamp;
 		this.parentId = parentId;
-		this.changes = new ArrayList<>(changes);
+		this.dimension = dimension;
+		this.changes = changes; // Not copied: callers hand over a list they no longer modify
 	}
 
 	public String getId() {
@@ -61,18 +68,32 @@ public class Commit {
 		return parentId;
 	}
 
+	public ResourceKey<Level> getDimension() {
+		return dimension;
+	}
+
+	/**
+	 * @return the hash tree the ID was computed from, or null for commits that were read
+	 *         back rather than created with {@link #create} or {@link #withTree}
+	 */
+	public CommitTree getTree() {
+		return tree;
+	}
+
 	public List<BlockChange> getChanges() {
 		return Collections.unmodifiableList(changes);
 	}
 
 	/**
-	 * Create a new Commit from the given data and compute its SHA-1 ID.
+	 * Create a new Commit from the given data and compute its SHA-1 ID from the commit's
+	 * {@link CommitTree} (see {@link #idFor}).
 	 *
 	 * @param message   Commit message
 	 * @param author    Author name
 	 * @param parentId  Parent commit ID (null for initial commit)
-	 * @param changes   List of BlockChange objects to include
-	 * @param world     World used for block registry (for stable serialization of changes)
+	 * @param changes   List of BlockChange objects to include; the commit keeps them sorted
+	 *                  by section (see {@link CommitTree#inSectionOrder})
+	 * @param world     World the changes were made in; also provides the block registry
 	 * @return Commit with computed ID
 	 */
 	public static Commit create(String message,
@@ -80,182 +101,131 @@ public class Commit {
 								String parentId,
 								List<BlockChange> changes,
 								Level world) {
-		long timestamp = System.currentTimeMillis();
-
-		Registry<Block> blockRegistry = world.registryAccess().registryOrThrow(Registry.BLOCK_REGISTRY);
-
-		// Build a canonical string representation for hashing
-		StringBuilder sb = new StringBuilder();
-		sb.append("message=").append(message).append("\n");
-		sb.append("author=").append(author).append("\n");
-		sb.append("timestamp=").append(timestamp).append("\n");
-		sb.append("parent=").append(parentId == null ? "null" : parentId).append("\n");
-		sb.append("changes=[\n");
-		for (BlockChange change : changes) {
-			sb.append("  ").append(change.toJsonString(blockRegistry)).append("\n");
-		}
-		sb.append("]\n");
-
-		String id = sha1Hex(sb.toString());
-
-		return new Commit(id, message, author, timestamp, parentId, changes);
+		return withTree(message, author, System.currentTimeMillis(), parentId, world.dimension(), changes);
 	}
 
 	/**
-	 * Serialize this commit to JSON string.
+	 * Create a Commit with the given metadata, its {@link CommitTree} and the ID computed
+	 * from it. Used by {@link #create} and to import JSON commits, whose stored IDs were not
+	 * derived from a tree.
 	 */
-	public String toJson(Level world) {
-		Registry<Block> blockRegistry = world.registryAccess().registryOrThrow(Registry.BLOCK_REGISTRY);
-
-		StringBuilder sb = new StringBuilder();
-		sb.append("{");
-		sb.append("\"id\":\"").append(escape(id)).append("\",");
-		sb.append("\"message\":\"").append(escape(message)).append("\",");
-		sb.append("\"author\":\"").append(escape(author)).append("\",");
-		sb.append("\"timestamp\":").append(timestamp).append(",");
-		sb.append("\"parentId\":").append(parentId == null ? "null" : "\"" + escape(parentId) + "\"").append(",");
-		sb.append("\"changes\":[");
-
-		for (int i = 0; i < changes.size(); i++) {
-			BlockChange change = changes.get(i);
-			sb.append(change.toJsonString(blockRegistry));
-			if (i < changes.size() - 1) {
-				sb.append(",");
-			}
-		}
+	static Commit withTree(String message,
+						   String author,
+						   long timestamp,
+						   String parentId,
+						   ResourceKey<Level> dimension,
+						   List<BlockChange> changes) {
+		changes = CommitTree.inSectionOrder(changes);
+		CommitTree tree = CommitTree.build(changes);
+		String id = idFor(message, author, timestamp, parentId, dimension, tree);
 
-		sb.append("]");
-		sb.append("}");
-		return sb.toString();
+		Commit commit = new Commit(id, message, author, timestamp, parentId, dimension, changes);
+		commit.tree = tree;
+		return commit;
 	}
 
 	/**
-	 * Parse a Commit from its JSON string (as we serialize it), using the block registry
-	 * to reconstruct BlockChange states.
+	 * Write a stored commit as human-readable JSON, streaming its changes from {@code changes}
+	 * and writing each out in full (see {@link BlockChange#toJsonString(Registry)}). Used by
+	 * /bb export; commits themselves are stored with {@link CommitCodec}. The result can be
+	 * read back with {@link #fromJson}.
+	 * @return the number of changes written
 	 */
-	public static Commit fromJson(String json, Registry<Block> blockRegistry) {
-		try {
-			String id = extractString(json, "\"id\":\"");
-			String message = unescapeJson(extractString(json, "\"message\":\""));
-			String author = extractString(json, "\"author\":\"");
-			long timestamp = extractLong(json, "\"timestamp\":");
-			String parentId = extractNullableString(json, "\"parentId\":");
-
-			// Parse changes array
-			int idx = json.indexOf("\"changes\":[");
-			List<BlockChange> changes = new ArrayList<>();
-			if (idx != -1) {
-				int start = idx + "\"changes\":".length();
-				int bracket = json.indexOf("[", start);
-				if (bracket != -1) {
-					int depth = 0;
-					int end = -1;
-					for (int i = bracket; i < json.length(); i++) {
-						char c = json.charAt(i);
-						if (c == '[') depth++;
-						else if (c == ']') {
-							depth--;
-							if (depth == 0) { end = i; break; }
-						}
-					}
-					if (end != -1) {
-						String inner = json.substring(bracket + 1, end).trim();
-						if (!inner.isEmpty()) {
-							for (String obj : splitTopLevelJsonObjects(inner)) {
-								BlockChange ch = BlockChange.fromJsonString(obj, blockRegistry);
-								if (ch != null) changes.add(ch);
-							}
-						}
-					}
-				}
-			}
-			return new Commit(id, message, author, timestamp, parentId, changes);
-		} catch (Exception e) {
-			Blockbase.LOGGER.error("Failed to parse commit JSON", e);
-			return null;
-		}
-	}
-
-	private static long extractLong(String json, String key) {
-		int start = json.indexOf(key);
-		if (start == -1) return 0L;
-		start += key.length();
-		int end = json.indexOf(",", start);
-		if (end == -1) end = json.indexOf("}", start);
-		return Long.parseLong(json.substring(start, end).trim());
-	}
-
-	private static String extractString(String json, String key) {
-		int start = json.indexOf(key);
-		if (start == -1) return "";
-		start += key.length();
-		int end = json.indexOf("\"", start);
-		if (end == -1) return "";
-		return json.substring(start, end);
+	public static int writeJson(Writer out, ChangeCursor changes, Registry<Block> blockRegistry) throws IOException {
+		Commit commit = changes.getCommit();
+		out.write("{");
+		out.write("\"id\":\"" + Formats.escape(commit.id) + "\",");
+		out.write("\"message\":\"" + Formats.escape(commit.message) + "\",");
+		out.write("\"author\":\"" + Formats.escape(commit.author) + "\",");
+		out.write("\"timestamp\":" + commit.timestamp + ",");
+		out.write("\"parentId\":" + (commit.parentId == null ? "null" : "\"" + Formats.escape(commit.parentId) + "\"") + ",");
+		out.write("\"dimension\":\"" + commit.dimension.location() + "\",");
+		out.write("\"changes\":");
+		int count = writeChangesJson(out, changes, blockRegistry);
+		out.write("}");
+		return count;
 	}
 
-	private static String extractNullableString(String json, String key) {
-		int idx = json.indexOf(key);
-		if (idx == -1) return null;
-		int start = idx + key.length();
-		// Could be null or "value"
-		if (json.startsWith("null", start)) return null;
-		int q = json.indexOf("\"", start);
-		if (q == -1) return null;
-		int end = json.indexOf("\"", q + 1);
-		if (end == -1) return null;
-		return json.substring(q + 1, end);
-	}
-
-	private static String unescapeJson(String s) {
-		if (s == null || s.isEmpty()) return s;
-		return s.replace("\\\\", "\\")
-			.replace("\\\"", "\"")
-			.replace("\\n", "\n")
-			.replace("\\t", "\t")
-			.replace("\\r", "\r");
+	/**
+	 * Write the changes as a JSON array of self-describing change objects
+	 * (see {@link BlockChange#toJsonString(Registry)}), the format the backend expects.
+	 * @return the number of changes written
+	 */
+	public static int writeChangesJson(Writer out, ChangeCursor changes, Registry<Block> blockRegistry) throws IOException {
+		out.write("[");
+		int count = 0;
+		while (changes.next()) {
+			if (count++ > 0) out.write(",");
+			BlockChange change = new BlockChange(changes.getPosition(), changes.getOldStateId(), changes.getNewStateId(), changes.getTimestamp());
+			out.write(change.toJsonString(blockRegistry));
+		}
+		out.write("]");
+		return count;
 	}
 
-	private static List<String> splitTopLevelJsonObjects(String arrayInner) {
-		ArrayList<String> out = new ArrayList<>();
-		int depth = 0;
-		int start = -1;
-		for (int i = 0; i < arrayInner.length(); i++) {
-			char c = arrayInner.charAt(i);
-			if (c == '{') {
-				if (depth == 0) start = i;
-				depth++;
-			} else if (c == '}') {
-				depth--;
-				if (depth == 0 && start != -1) {
-					out.add(arrayInner.substring(start, i + 1).trim());
-					start = -1;
-				}
-			}
-		}
-		return out;
+	/**
+	 * Parse a Commit from JSON, using the block registry to reconstruct BlockChange states.
+	 * Reads exports and the commit files written before the object store.
+	 * @throws IOException if the JSON is malformed
+	 */
+	public static Commit fromJson(JsonTokenizer json, Registry<Block> blockRegistry) throws IOException {
+		List<BlockChange> changes = new ArrayList<>();
+		Commit commit = readJson(json, blockRegistry, (pos, oldStateId, newStateId, timestamp) ->
+			changes.add(new BlockChange(BlockPos.of(pos), oldStateId, newStateId, timestamp)));
+		return new Commit(commit.id, commit.message, commit.author, commit.timestamp, commit.parentId, commit.dimension, changes);
 	}
 
-	private static String sha1Hex(String input) {
-		try {
-			MessageDigest digest = MessageDigest.getInstance("SHA-1");
-			byte[] hashBytes = digest.digest(input.getBytes(StandardCharsets.UTF_8));
-			StringBuilder hex = new StringBuilder();
-			for (byte b : hashBytes) {
-				String h = Integer.toHexString(0xff & b);
-				if (h.length() == 1) hex.append('0');
-				hex.append(h);
+	/**
+	 * Read a JSON commit (see {@link #fromJson}) in one pass, handing each change to
+	 * {@code changes} as it is read.
+	 * @return the commit's metadata, without changes
+	 * @throws IOException if the JSON is malformed
+	 */
+	public static Commit readJson(JsonTokenizer json, Registry<Block> blockRegistry, WorkingTree.Visitor changes) throws IOException {
+		String id = "";
+		String message = "";
+		String author = "";
+		long timestamp = 0L;
+		String parentId = null;
+		ResourceKey<Level> dimension = Level.OVERWORLD;
+
+		json.beginObject();
+		while (json.hasNext()) {
+			switch (json.nextName()) {
+				case "id": id = json.nextString(); break;
+				case "message": message = json.nextString(); break;
+				case "author": author = json.nextString(); break;
+				case "timestamp": timestamp = json.nextLong(); break;
+				case "parentId": parentId = json.nextStringOrNull(); break;
+				case "dimension": dimension = Formats.parseDimension(json.nextString()); break;
+				case "changes":
+					json.beginArray();
+					while (json.hasNext()) {
+						BlockChange.readJson(json, blockRegistry, changes);
+					}
+					json.endArray();
+					break;
+				default: json.skipValue(); break;
 			}
-			return hex.toString();
-		} catch (NoSuchAlgorithmException e) {
-			// SHA-1 should always be available; if not, log and fall back to random UUID
-			Blockbase.LOGGER.error("SHA-1 algorithm not available, falling back to random ID", e);
-			return java.util.UUID.randomUUID().toString().replace("-", "");
 		}
+		json.endObject();
+		return new Commit(id, message, author, timestamp, parentId, dimension, Collections.emptyList());
 	}
 
-	private static String escape(String value) {
-		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	/**
+	 * SHA-1 of the canonical representation of a commit: its metadata, the root of its hash
+	 * tree and the hash of its change timestamps.
+	 */
+	static String idFor(String message, String author, long timestamp, String parentId,
+						ResourceKey<Level> dimension, CommitTree tree) {
+		String canonical = "message=" + message + "\n" +
+			"author=" + author + "\n" +
+			"timestamp=" + timestamp + "\n" +
+			"parent=" + (parentId == null ? "null" : parentId) + "\n" +
+			"dimension=" + dimension.location() + "\n" +
+			"tree=" + tree.root() + "\n" +
+			"times=" + tree.timesHash() + "\n";
+		return ObjectStore.hash(canonical.getBytes(StandardCharsets.UTF_8));
 	}
 }
 
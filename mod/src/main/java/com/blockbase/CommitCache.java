@@ -0,0 +1,186 @@
+package com.blockbase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Repository-wide cache of decoded commit data in front of the {@link ObjectStore}: inflated
+ * objects (commit objects, their runs and keyframes) and commit metadata, so repeated log
+ * listings, diff toggles and pushes read from memory.
+ *
+ * Entries are weighed by their estimated heap size and the least recently used are evicted
+ * once the total passes the limit. Objects never change once stored, so entries only need
+ * invalidating when the write path stores an id again ({@link #invalidate}).
+ *
+ * Cached buffers are handed out as read-only duplicates. Thread-safe.
+ */
+public final class CommitCache implements ObjectSource {
+	public static final long DEFAULT_MAX_WEIGHT = 64L << 20;
+
+	// Rough per-entry overhead: the map entry, key string and buffer or commit object
+	private static final int ENTRY_OVERHEAD = 160;
+	private static final String METADATA_PREFIX = "commit ";
+
+	private final ObjectStore store;
+	private final long maxWeight;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true); // guarded by this
+	private long weight; // guarded by this
+	private long hits; // guarded by this
+	private long misses; // guarded by this
+	private long evictions; // guarded by this
+
+	public CommitCache(ObjectStore store, long maxWeight) {
+		this.store = store;
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * Counters and size of the cache at one moment.
+	 */
+	public static final class Stats {
+		public final long hits;
+		public final long misses;
+		public final long evictions;
+		public final int entries;
+		public final long weight;
+		public final long maxWeight;
+
+		Stats(long hits, long misses, long evictions, int entries, long weight, long maxWeight) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.entries = entries;
+			this.weight = weight;
+			this.maxWeight = maxWeight;
+		}
+
+		public double hitRate() {
+			long lookups = hits + misses;
+			return lookups == 0 ? 0 : (double) hits / lookups;
+		}
+	}
+
+	/**
+	 * @param buffer ignored; cached objects are shared
+	 * @return a read-only buffer holding the object's bytes, or null if there is no such object
+	 */
+	@Override
+	public ByteBuffer get(String id, ByteBuffer buffer) throws IOException {
+		Object cached = lookup(id);
+		if (cached != null) {
+			return ((ByteBuffer) cached).asReadOnlyBuffer();
+		}
+		ByteBuffer data = store.get(id, null);
+		if (data == null) {
+			return null;
+		}
+		insert(id, data, data.capacity());
+		return data.asReadOnlyBuffer();
+	}
+
+	@Override
+	public boolean contains(String id) {
+		synchronized (this) {
+			if (entries.containsKey(id)) return true;
+		}
+		return store.contains(id);
+	}
+
+	/**
+	 * @return the metadata of a stored commit (it has no changes)
+	 * @throws IOException if the commit does not exist or cannot be read
+	 */
+	public Commit metadata(String id) throws IOException {
+		Object cached = lookup(METADATA_PREFIX + id);
+		if (cached != null) {
+			return (Commit) cached;
+		}
+		// One lookup per call: the object is used if it happens to be cached, but is not
+		// cached for this, since only the metadata is kept
+		ByteBuffer data = peek(id);
+		if (data == null) {
+			data = store.get(id, null);
+		}
+		if (data == null) {
+			throw new IOException("No such commit: " + id);
+		}
+		Commit commit = CommitCodec.decode(data, false, store);
+		insert(METADATA_PREFIX + id, commit, 2L * (commit.getId().length() + commit.getMessage().length()
+			+ commit.getAuthor().length() + (commit.getParentId() == null ? 0 : commit.getParentId().length())));
+		return commit;
+	}
+
+	/**
+	 * Drop everything cached for {@code id}.
+	 */
+	public synchronized void invalidate(String id) {
+		remove(id);
+		remove(METADATA_PREFIX + id);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0;
+	}
+
+	public synchronized Stats stats() {
+		return new Stats(hits, misses, evictions, entries.size(), weight, maxWeight);
+	}
+
+	private synchronized Object lookup(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.value;
+	}
+
+	/**
+	 * @return the cached object, without counting a hit or miss, or null
+	 */
+	private synchronized ByteBuffer peek(String id) {
+		Entry entry = entries.get(id);
+		return entry == null ? null : ((ByteBuffer) entry.value).asReadOnlyBuffer();
+	}
+
+	private synchronized void insert(String key, Object value, long size) {
+		long entryWeight = size + ENTRY_OVERHEAD;
+		if (entryWeight > maxWeight) {
+			return;
+		}
+		Entry previous = entries.put(key, new Entry(value, entryWeight));
+		if (previous != null) {
+			weight -= previous.weight;
+		}
+		weight += entryWeight;
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while (weight > maxWeight && eldest.hasNext()) {
+			Map.Entry<String, Entry> next = eldest.next();
+			weight -= next.getValue().weight;
+			eldest.remove();
+			evictions++;
+		}
+	}
+
+	private void remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			weight -= entry.weight;
+		}
+	}
+
+	private static final class Entry {
+		final Object value;
+		final long weight;
+
+		Entry(Object value, long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+}
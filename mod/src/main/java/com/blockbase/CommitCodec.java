@@ -0,0 +1,405 @@
+package com.blockbase;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Binary commit format, stored in the {@link ObjectStore}.
+ *
+ * A commit is split into runs: its changes are sorted by section key and index within the
+ * section, and each section's changes are cut into runs of at most MAX_RUN_CHANGES. Every run is a separate object keyed by its
+ * content hash and holds only section-relative positions and states, so a run that repeats
+ * an earlier one (re-placing the same module in the same spot of a section) is stored once.
+ *
+ * Run object: a 12-byte header (RUN_MAGIC, format version, reserved), a palette (varint
+ * count of varint length + UTF-8 state names), a varint change count and per change a
+ * zig-zag varint delta of the section-relative index ((y << 8) | (z << 4) | x), then
+ * varint oldIndex + 1 and varint newIndex + 1 (0 means no block).
+ *
+ * Commit object: a 12-byte header (magic, format version, reserved), the metadata strings
+ * (id, message, author, parent, dimension; varint length + UTF-8, parent empty if none),
+ * the varint commit timestamp, a varint run count with (long section key, 20-byte run id,
+ * varint change count) per run, then a zig-zag varint game-time delta per change. The
+ * object ends with a CRC32 of everything before it.
+ *
+ * The commit id is derived from the commit's {@link CommitTree}, so it can be checked
+ * against the runs.
+ */
+public final class CommitCodec {
+	static final int MAGIC = 0x42424331; // "BBC1"
+	static final int RUN_MAGIC = 0x42425231; // "BBR1"
+	static final int VERSION = 3;
+	static final int RUN_VERSION = 2;
+	static final int HEADER_BYTES = 12;
+	static final int MAX_RUN_CHANGES = 4096;
+	// Commit objects are streamed out in pieces of about this size
+	static final int STREAM_BUFFER_BYTES = 8192;
+
+	private CommitCodec() {}
+
+	/**
+	 * Encode a commit, adding any of its runs that are not stored yet to {@code batch}. The
+	 * runs are taken from the commit's {@link CommitTree}.
+	 * @return the commit object, to be stored under the commit id after the runs
+	 * @throws IllegalArgumentException if the commit has no tree (it was read back, not created)
+	 */
+	public static byte[] encode(Commit commit, ObjectStore.Batch batch) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(128 + commit.getChanges().size() * 2);
+		encode(commit, batch, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encode a commit as {@link #encode(Commit, ObjectStore.Batch)} does, streaming the
+	 * commit object to {@code sink} through a small buffer instead of building it in memory.
+	 * @return the number of bytes written
+	 */
+	public static long encode(Commit commit, ObjectStore.Batch batch, OutputStream sink) throws IOException {
+		List<BlockChange> changes = commit.getChanges();
+		Output out = new Output(STREAM_BUFFER_BYTES + 64);
+		CRC32 crc = new CRC32();
+		long written = 0;
+		CommitTree tree = commit.getTree();
+		if (tree == null) {
+			throw new IllegalArgumentException("Commit " + commit.getId() + " has no hash tree to encode");
+		}
+		writeHeader(out, MAGIC, VERSION);
+		out.writeString(commit.getId());
+		out.writeString(commit.getMessage());
+		out.writeString(commit.getAuthor());
+		out.writeString(commit.getParentId() == null ? "" : commit.getParentId());
+		out.writeString(commit.getDimension().location().toString());
+		out.writeVarLong(commit.getTimestamp());
+
+		out.writeVarInt(tree.runCount());
+		int start = 0;
+		for (int r = 0; r < tree.runCount(); r++) {
+			String runId = tree.runId(r);
+			int size = tree.runSize(r);
+			if (!batch.contains(runId)) {
+				batch.put(runId, encodeRun(changes, start, start + size));
+			}
+			start += size;
+			out.writeLong(tree.runKey(r));
+			out.write(ObjectStore.idBytes(runId), 0, ObjectStore.ID_BYTES);
+			out.writeVarInt(size);
+			if (out.size() >= STREAM_BUFFER_BYTES) {
+				written += drain(out, crc, sink);
+			}
+		}
+
+		long t = 0;
+		for (BlockChange change : changes) {
+			out.writeVarLong(zigZag(change.getTimestamp() - t));
+			t = change.getTimestamp();
+			if (out.size() >= STREAM_BUFFER_BYTES) {
+				written += drain(out, crc, sink);
+			}
+		}
+
+		written += drain(out, crc, sink);
+		out.writeInt((int) crc.getValue());
+		sink.write(out.buffer(), 0, out.size());
+		return written + out.size();
+	}
+
+	/**
+	 * Move what {@code out} holds to {@code sink}, adding it to the checksum.
+	 * @return the number of bytes moved
+	 */
+	private static int drain(Output out, CRC32 crc, OutputStream sink) throws IOException {
+		int size = out.size();
+		crc.update(out.buffer(), 0, size);
+		sink.write(out.buffer(), 0, size);
+		out.reset();
+		return size;
+	}
+
+	static byte[] encodeRun(List<BlockChange> changes, int from, int to) {
+		StatePalette palette = new StatePalette();
+		int[] oldIndices = new int[to - from];
+		int[] newIndices = new int[to - from];
+		for (int i = from; i < to; i++) {
+			oldIndices[i - from] = palette.indexOf(changes.get(i).getOldStateId());
+			newIndices[i - from] = palette.indexOf(changes.get(i).getNewStateId());
+		}
+
+		Output out = new Output(HEADER_BYTES + palette.size() * 32 + (to - from) * 4);
+		writeHeader(out, RUN_MAGIC, RUN_VERSION);
+		out.writeVarInt(palette.size());
+		for (int i = 0; i < palette.size(); i++) {
+			out.writeString(palette.name(i));
+		}
+		out.writeVarInt(to - from);
+		int previous = 0;
+		for (int i = from; i < to; i++) {
+			BlockPos pos = changes.get(i).getPosition();
+			int local = (SectionPos.sectionRelative(pos.getY()) << 8) | (SectionPos.sectionRelative(pos.getZ()) << 4) | SectionPos.sectionRelative(pos.getX());
+			out.writeVarLong(zigZag(local - previous));
+			out.writeVarInt(oldIndices[i - from] + 1);
+			out.writeVarInt(newIndices[i - from] + 1);
+			previous = local;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode a commit object written by {@link #encode(Commit, ObjectStore.Batch)}.
+	 * @param store where to load the commit's runs from; only needed with {@code withChanges}
+	 * @param withChanges false to stop after the metadata (the commit then has no changes),
+	 *                    which is all listings like /bb log need
+	 * @throws IOException if the data is truncated, corrupt, from an unknown format version,
+	 *                     or refers to a run that is missing from the store
+	 */
+	public static Commit decode(ByteBuffer data, boolean withChanges, ObjectStore store) throws IOException {
+		try {
+			ByteBuffer in = data.duplicate();
+			Commit metadata = readMetadata(in);
+			if (!withChanges) {
+				return metadata;
+			}
+			verifyChecksum(data);
+			List<BlockChange> changes = decodeRuns(in, store);
+			return new Commit(metadata.getId(), metadata.getMessage(), metadata.getAuthor(), metadata.getTimestamp(),
+				metadata.getParentId(), metadata.getDimension(), changes);
+		} catch (RuntimeException e) {
+			throw new IOException("Truncated or corrupt commit data", e);
+		}
+	}
+
+	/**
+	 * Read the header and metadata of a commit object, leaving {@code in} at the run table.
+	 * @return the commit without its changes
+	 */
+	static Commit readMetadata(ByteBuffer in) throws IOException {
+		readHeader(in, MAGIC);
+		String id = readString(in);
+		String message = readString(in);
+		String author = readString(in);
+		String parentId = readString(in);
+		ResourceKey<Level> dimension = Formats.parseDimension(readString(in));
+		long timestamp = readVarLong(in);
+		return new Commit(id, message, author, timestamp, parentId.isEmpty() ? null : parentId, dimension, Collections.emptyList());
+	}
+
+	/**
+	 * @return the number of changes in a commit object, from its run table
+	 */
+	static long changeCount(ByteBuffer data) throws IOException {
+		try {
+			ByteBuffer in = data.duplicate();
+			readMetadata(in);
+			int runCount = readVarInt(in);
+			long total = 0;
+			for (int r = 0; r < runCount; r++) {
+				in.position(in.position() + 8 + ObjectStore.ID_BYTES);
+				total += readVarInt(in);
+			}
+			return total;
+		} catch (RuntimeException e) {
+			throw new IOException("Truncated or corrupt commit data", e);
+		}
+	}
+
+	/**
+	 * @return the distinct chunk sections a commit object touches, from its run table
+	 */
+	static long[] sectionKeys(ByteBuffer data) throws IOException {
+		try {
+			ByteBuffer in = data.duplicate();
+			readMetadata(in);
+			int runCount = readVarInt(in);
+			long[] keys = new long[runCount];
+			for (int r = 0; r < runCount; r++) {
+				keys[r] = in.getLong();
+				in.position(in.position() + ObjectStore.ID_BYTES);
+				readVarInt(in);
+			}
+			return Arrays.stream(keys).distinct().toArray();
+		} catch (RuntimeException e) {
+			throw new IOException("Truncated or corrupt commit data", e);
+		}
+	}
+
+	private static List<BlockChange> decodeRuns(ByteBuffer in, ObjectStore store) throws IOException {
+		int runCount = readVarInt(in);
+		long[] sectionKeys = new long[runCount];
+		String[] runIds = new String[runCount];
+		int[] runSizes = new int[runCount];
+		int total = 0;
+		byte[] idBytes = new byte[ObjectStore.ID_BYTES];
+		for (int r = 0; r < runCount; r++) {
+			sectionKeys[r] = in.getLong();
+			in.get(idBytes);
+			runIds[r] = ObjectStore.hex(idBytes);
+			runSizes[r] = readVarInt(in);
+			total += runSizes[r];
+		}
+
+		List<BlockChange> changes = new ArrayList<>(total);
+		long t = 0;
+		for (int r = 0; r < runCount; r++) {
+			byte[] run = store.get(runIds[r]);
+			if (run == null) {
+				throw new IOException("Missing run object " + runIds[r]);
+			}
+			ByteBuffer rin = ByteBuffer.wrap(run);
+			readHeader(rin, RUN_MAGIC);
+			int paletteSize = readVarInt(rin);
+			List<String> names = new ArrayList<>(paletteSize);
+			for (int i = 0; i < paletteSize; i++) {
+				names.add(readString(rin));
+			}
+			int[] palette = StatePalette.resolve(names);
+			int count = readVarInt(rin);
+			if (count != runSizes[r]) {
+				throw new IOException("Run " + runIds[r] + " holds " + count + " changes, expected " + runSizes[r]);
+			}
+			int baseX = SectionPos.sectionToBlockCoord(SectionPos.x(sectionKeys[r]));
+			int baseY = SectionPos.sectionToBlockCoord(SectionPos.y(sectionKeys[r]));
+			int baseZ = SectionPos.sectionToBlockCoord(SectionPos.z(sectionKeys[r]));
+			int local = 0;
+			for (int i = 0; i < count; i++) {
+				local += (int) unZigZag(readVarLong(rin));
+				int oldIndex = readVarInt(rin) - 1;
+				int newIndex = readVarInt(rin) - 1;
+				t += unZigZag(readVarLong(in));
+				if (oldIndex >= paletteSize || newIndex >= paletteSize || (local & ~0xFFF) != 0) {
+					throw new IOException("Corrupt change " + i + " in run " + runIds[r]);
+				}
+				BlockPos pos = new BlockPos(baseX + (local & 15), baseY + (local >> 8), baseZ + ((local >> 4) & 15));
+				changes.add(new BlockChange(pos, StatePalette.lookup(palette, oldIndex), StatePalette.lookup(palette, newIndex), t));
+			}
+		}
+		return changes;
+	}
+
+	static void writeHeader(Output out, int magic, int version) {
+		out.writeInt(magic);
+		out.writeInt(version);
+		out.writeInt(0);
+	}
+
+	/**
+	 * @return the format version
+	 */
+	static int readHeader(ByteBuffer in, int magic) throws IOException {
+		if (in.remaining() < HEADER_BYTES || in.getInt() != magic) {
+			throw new IOException("Not a Blockbase " + (magic == MAGIC ? "commit" : "run") + " object");
+		}
+		int version = in.getInt();
+		if (version != (magic == MAGIC ? VERSION : RUN_VERSION)) {
+			throw new IOException("Unsupported format version " + version);
+		}
+		in.getInt(); // reserved
+		return version;
+	}
+
+	static void verifyChecksum(ByteBuffer data) throws IOException {
+		ByteBuffer body = data.duplicate();
+		int end = body.limit() - 4;
+		int expected = body.getInt(end);
+		body.limit(end);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		if ((int) crc.getValue() != expected) {
+			throw new IOException("Commit checksum mismatch");
+		}
+	}
+
+	static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static int readVarInt(ByteBuffer in) throws IOException {
+		long value = readVarLong(in);
+		if (value < 0 || value > Integer.MAX_VALUE) {
+			throw new IOException("Varint out of range: " + value);
+		}
+		return (int) value;
+	}
+
+	static long readVarLong(ByteBuffer in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	static String readString(ByteBuffer in) throws IOException {
+		int length = readVarInt(in);
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static void skipString(ByteBuffer in) throws IOException {
+		int length = readVarInt(in);
+		in.position(in.position() + length);
+	}
+
+	/**
+	 * Growable output buffer with varint helpers; exposes its backing array for the checksum.
+	 */
+	static final class Output extends ByteArrayOutputStream {
+		Output(int initialSize) {
+			super(initialSize);
+		}
+
+		byte[] buffer() {
+			return buf;
+		}
+
+		void writeLong(long value) {
+			writeInt((int) (value >>> 32));
+			writeInt((int) value);
+		}
+
+		void writeInt(int value) {
+			write(value >>> 24);
+			write(value >>> 16);
+			write(value >>> 8);
+			write(value);
+		}
+
+		void writeVarInt(int value) {
+			writeVarLong(value & 0xFFFFFFFFL);
+		}
+
+		void writeVarLong(long value) {
+			while ((value & ~0x7FL) != 0) {
+				write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		void writeString(String value) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(bytes.length);
+			write(bytes, 0, bytes.length);
+		}
+	}
+}
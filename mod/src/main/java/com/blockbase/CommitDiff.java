@@ -0,0 +1,297 @@
+package com.blockbase;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+
+/**
+ * Net change between two commits, computed from stored history alone.
+ *
+ * Only the chunk sections touched by a commit on either side of the two commits' common
+ * ancestor can differ, so just those are rebuilt. They are grouped by tile, a square of
+ * 4 by 4 section columns (64 by 64 blocks), and each group replays both commits over
+ * its bounding box (at most one tile wide, and as tall as the sections it holds) in
+ * parallel on the common fork/join pool. A position edited several times ends up with its last state, so
+ * each changed position is reported once, from its state in the first commit to its
+ * state in the second.
+ */
+public final class CommitDiff {
+	// Tiles are 1 << TILE_SHIFT sections wide along x and z; one fork/join task rebuilds one tile
+	private static final int TILE_SHIFT = 2;
+
+	private final Map<ResourceKey<Level>, List<BlockChange>> changes;
+	private final int commits;
+	private final int sections;
+
+	private CommitDiff(Map<ResourceKey<Level>, List<BlockChange>> changes, int commits, int sections) {
+		this.changes = changes;
+		this.commits = commits;
+		this.sections = sections;
+	}
+
+	/**
+	 * @param from the commit to diff from
+	 * @param to   the commit to diff to
+	 * @param index with the graph, used to skip commits that did not touch a group; may be null
+	 */
+	public static CommitDiff compute(ObjectSource store, CommitGraph graph, SectionIndex index, String from, String to) throws IOException {
+		int[] fromHistory = graph.historyOffsets(from);
+		int[] toHistory = graph.historyOffsets(to);
+		if (fromHistory.length == 0 || toHistory.length == 0) {
+			throw new IOException("No such commit: " + (fromHistory.length == 0 ? from : to));
+		}
+		// Histories are oldest first, so the shared ancestors are their common prefix
+		int shared = 0;
+		while (shared < fromHistory.length && shared < toHistory.length && fromHistory[shared] == toHistory[shared]) {
+			shared++;
+		}
+
+		Map<ResourceKey<Level>, long[]> touched = new LinkedHashMap<>();
+		int commits = 0;
+		for (int[] history : new int[][] {fromHistory, toHistory}) {
+			for (int i = shared; i < history.length; i++) {
+				String id = graph.idAt(history[i]);
+				ByteBuffer data = store.get(id, null);
+				if (data == null) {
+					throw new IOException("Missing commit " + id);
+				}
+				ResourceKey<Level> dimension = CommitCodec.readMetadata(data.duplicate()).getDimension();
+				long[] keys = CommitCodec.sectionKeys(data);
+				touched.merge(dimension, keys, CommitDiff::concat);
+				commits++;
+			}
+		}
+
+		List<Group> groups = new ArrayList<>();
+		int sections = 0;
+		for (Map.Entry<ResourceKey<Level>, long[]> entry : touched.entrySet()) {
+			Map<Long, List<Long>> tiles = Arrays.stream(entry.getValue()).distinct().boxed()
+				.collect(Collectors.groupingBy(CommitDiff::tileOf, TreeMap::new, Collectors.toList()));
+			for (List<Long> tile : tiles.values()) {
+				sections += tile.size();
+				groups.add(new Group(entry.getKey(), tile.stream().mapToLong(Long::longValue).sorted().toArray()));
+			}
+		}
+
+		ForkJoinPool.commonPool().invoke(new DiffGroups(store, graph, index, from, to, groups, 0, groups.size()));
+		Map<ResourceKey<Level>, List<BlockChange>> changes = new LinkedHashMap<>();
+		for (Group group : groups) {
+			if (group.error != null) {
+				throw group.error;
+			}
+			if (!group.changes.isEmpty()) {
+				changes.computeIfAbsent(group.dimension, d -> new ArrayList<>()).addAll(group.changes);
+			}
+		}
+		return new CommitDiff(changes, commits, sections);
+	}
+
+	/**
+	 * @return the changed positions per dimension, each from its state in the first commit
+	 *         to its state in the second
+	 */
+	public Map<ResourceKey<Level>, List<BlockChange>> getChanges() {
+		return Collections.unmodifiableMap(changes);
+	}
+
+	/**
+	 * @return the number of commits between the two, on either side of their common ancestor
+	 */
+	public int getCommitCount() {
+		return commits;
+	}
+
+	/**
+	 * @return the number of chunk sections rebuilt
+	 */
+	public int getSectionCount() {
+		return sections;
+	}
+
+	public int count(BlockChange.ChangeType type) {
+		int count = 0;
+		for (List<BlockChange> list : changes.values()) {
+			for (BlockChange change : list) {
+				if (change.getType() == type) count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of changes per block name, most changed first
+	 */
+	public Map<String, Integer> countByBlock() {
+		Map<String, Integer> counts = new TreeMap<>();
+		for (List<BlockChange> list : changes.values()) {
+			for (BlockChange change : list) {
+				BlockState state = change.getNewState() != null ? change.getNewState() : change.getOldState();
+				if (state == null) continue;
+				counts.merge(state.getBlock().getName().getString(), 1, Integer::sum);
+			}
+		}
+		Map<String, Integer> sorted = new LinkedHashMap<>();
+		counts.entrySet().stream()
+			.sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+			.forEach(e -> sorted.put(e.getKey(), e.getValue()));
+		return sorted;
+	}
+
+	/**
+	 * @return the tile holding a section, packed as (tile x, tile z)
+	 */
+	private static long tileOf(long sectionKey) {
+		int x = SectionPos.x(sectionKey) >> TILE_SHIFT;
+		int z = SectionPos.z(sectionKey) >> TILE_SHIFT;
+		return ((long) x << 32) | (z & 0xFFFFFFFFL);
+	}
+
+	private static long[] concat(long[] a, long[] b) {
+		long[] out = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, out, a.length, b.length);
+		return out;
+	}
+
+	/**
+	 * Air and an untracked position both mean "no block".
+	 */
+	private static int normalize(int stateId) {
+		if (stateId == ChangeQueue.NO_STATE) return stateId;
+		BlockState state = StatePalette.stateOf(stateId);
+		return state == null || state.isAir() ? ChangeQueue.NO_STATE : stateId;
+	}
+
+	/**
+	 * Sections of one tile of one dimension rebuilt by one task, and what the task found.
+	 */
+	private static final class Group {
+		final ResourceKey<Level> dimension;
+		final long[] keys; // ascending
+		final List<BlockChange> changes = new ArrayList<>();
+		IOException error;
+
+		Group(ResourceKey<Level> dimension, long[] keys) {
+			this.dimension = dimension;
+			this.keys = keys;
+		}
+
+		void diff(ObjectSource store, CommitGraph graph, SectionIndex index, String from, String to) throws IOException {
+			int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+			int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+			for (long key : keys) {
+				minX = Math.min(minX, SectionPos.x(key));
+				minY = Math.min(minY, SectionPos.y(key));
+				minZ = Math.min(minZ, SectionPos.z(key));
+				maxX = Math.max(maxX, SectionPos.x(key));
+				maxY = Math.max(maxY, SectionPos.y(key));
+				maxZ = Math.max(maxZ, SectionPos.z(key));
+			}
+			BlockPos min = new BlockPos(SectionPos.sectionToBlockCoord(minX), SectionPos.sectionToBlockCoord(minY), SectionPos.sectionToBlockCoord(minZ));
+			BlockPos max = new BlockPos(SectionPos.sectionToBlockCoord(maxX) + 15, SectionPos.sectionToBlockCoord(maxY) + 15, SectionPos.sectionToBlockCoord(maxZ) + 15);
+
+			Long2ObjectOpenHashMap<Int2IntOpenHashMap> before = rebuild(store, graph, index, from, min, max);
+			Long2ObjectOpenHashMap<Int2IntOpenHashMap> after = rebuild(store, graph, index, to, min, max);
+			for (long key : keys) {
+				Int2IntOpenHashMap old = before.get(key);
+				Int2IntOpenHashMap now = after.get(key);
+				int[] locals = union(old, now);
+				int baseX = SectionPos.sectionToBlockCoord(SectionPos.x(key));
+				int baseY = SectionPos.sectionToBlockCoord(SectionPos.y(key));
+				int baseZ = SectionPos.sectionToBlockCoord(SectionPos.z(key));
+				for (int local : locals) {
+					int oldId = normalize(old == null ? ChangeQueue.NO_STATE : old.get(local));
+					int newId = normalize(now == null ? ChangeQueue.NO_STATE : now.get(local));
+					if (oldId == newId) continue;
+					BlockPos pos = new BlockPos(baseX + (local & 15), baseY + (local >>> 8), baseZ + ((local >>> 4) & 15));
+					changes.add(new BlockChange(pos, oldId, newId, 0));
+				}
+			}
+		}
+
+		/**
+		 * @return section key -> (section-relative index -> state id) as of {@code commitId},
+		 *         for this group's sections only
+		 */
+		private Long2ObjectOpenHashMap<Int2IntOpenHashMap> rebuild(ObjectSource store, CommitGraph graph, SectionIndex index,
+																	String commitId, BlockPos min, BlockPos max) throws IOException {
+			Long2ObjectOpenHashMap<Int2IntOpenHashMap> state = new Long2ObjectOpenHashMap<>();
+			Keyframes.replay(store, graph, index, commitId, dimension, min, max, (d, x, y, z, stateId) -> {
+				long key = SectionPos.asLong(SectionPos.blockToSectionCoord(x), SectionPos.blockToSectionCoord(y), SectionPos.blockToSectionCoord(z));
+				if (Arrays.binarySearch(keys, key) < 0) return;
+				Int2IntOpenHashMap section = state.get(key);
+				if (section == null) {
+					section = new Int2IntOpenHashMap();
+					section.defaultReturnValue(ChangeQueue.NO_STATE);
+					state.put(key, section);
+				}
+				section.put((SectionPos.sectionRelative(y) << 8) | (SectionPos.sectionRelative(z) << 4) | SectionPos.sectionRelative(x), stateId);
+			});
+			return state;
+		}
+
+		private static int[] union(Int2IntOpenHashMap a, Int2IntOpenHashMap b) {
+			int[] left = a == null ? new int[0] : a.keySet().toIntArray();
+			int[] right = b == null ? new int[0] : b.keySet().toIntArray();
+			int[] all = Arrays.copyOf(left, left.length + right.length);
+			System.arraycopy(right, 0, all, left.length, right.length);
+			return Arrays.stream(all).distinct().sorted().toArray();
+		}
+	}
+
+	private static final class DiffGroups extends RecursiveAction {
+		private final ObjectSource store;
+		private final CommitGraph graph;
+		private final SectionIndex index;
+		private final String from;
+		private final String to;
+		private final List<Group> groups;
+		private final int start;
+		private final int end;
+
+		DiffGroups(ObjectSource store, CommitGraph graph, SectionIndex index, String from, String to, List<Group> groups, int start, int end) {
+			this.store = store;
+			this.graph = graph;
+			this.index = index;
+			this.from = from;
+			this.to = to;
+			this.groups = groups;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= 1) {
+				for (int i = start; i < end; i++) {
+					Group group = groups.get(i);
+					try {
+						group.diff(store, graph, index, from, to);
+					} catch (IOException e) {
+						group.error = e;
+					}
+				}
+				return;
+			}
+			int mid = (start + end) >>> 1;
+			invokeAll(new DiffGroups(store, graph, index, from, to, groups, start, mid),
+				new DiffGroups(store, graph, index, from, to, groups, mid, end));
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package com.blockbase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only index of every commit ever stored, in .blockbase/commit-graph.
+ *
+ * Layout: a 12-byte header (magic, format version, reserved) followed by fixed-size records
+ * of (20-byte id, 20-byte parent id or zeros, long timestamp, int parent offset), where the
+ * parent offset is the parent's record number (-1 if it has none or it is not in the graph).
+ * History order and ancestry come from here, so walking a history reads no commit objects.
+ *
+ * The whole graph is loaded into memory when opened; a torn record at the end of the file
+ * is dropped. Thread-safe.
+ */
+public class CommitGraph implements AutoCloseable {
+	public static final String FILE_NAME = "commit-graph";
+
+	static final int MAGIC = 0x42424731; // "BBG1"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 12;
+	static final int RECORD_BYTES = 2 * ObjectStore.ID_BYTES + 12;
+
+	private static final byte[] NO_PARENT = new byte[ObjectStore.ID_BYTES];
+
+	private final FileChannel channel;
+	private final Map<String, Integer> offsets = new HashMap<>(); // guarded by this
+	private final List<String> ids = new ArrayList<>(); // guarded by this
+	private int[] parents = new int[64]; // guarded by this
+	private long[] timestamps = new long[64]; // guarded by this
+
+	private CommitGraph(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Open (creating if needed) the commit graph file and load it.
+	 */
+	public static CommitGraph open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			CommitGraph graph = new CommitGraph(channel);
+			long size = channel.size();
+			if (size < HEADER_BYTES) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).putInt(0);
+				header.flip();
+				channel.truncate(0);
+				channel.write(header, 0);
+				channel.force(true);
+				return graph;
+			}
+
+			ByteBuffer data = ByteBuffer.allocate((int) size);
+			while (data.hasRemaining() && channel.read(data, data.position()) >= 0) {
+				// Keep reading until the buffer is full
+			}
+			data.flip();
+			if (data.getInt() != MAGIC || data.getInt() != VERSION) {
+				throw new IOException("Not a Blockbase commit graph: " + file);
+			}
+			data.getInt(); // reserved
+
+			byte[] id = new byte[ObjectStore.ID_BYTES];
+			byte[] parent = new byte[ObjectStore.ID_BYTES];
+			while (data.remaining() >= RECORD_BYTES) {
+				data.get(id).get(parent);
+				long timestamp = data.getLong();
+				int parentOffset = data.getInt();
+				graph.add(ObjectStore.hex(id), parentOffset, timestamp);
+			}
+			long valid = HEADER_BYTES + (long) graph.size() * RECORD_BYTES;
+			if (valid != size) {
+				Blockbase.LOGGER.warn("Dropping torn record at the end of {}", file);
+				channel.truncate(valid);
+			}
+			return graph;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Record a newly stored commit. Does nothing if it is already in the graph.
+	 * @param parentId the parent commit, or null
+	 * @return the commit's record number
+	 */
+	public synchronized int append(String id, String parentId, long timestamp) throws IOException {
+		Integer existing = offsets.get(id);
+		if (existing != null) {
+			return existing;
+		}
+		int parentOffset = parentId == null ? -1 : offsets.getOrDefault(parentId, -1);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+		record.put(ObjectStore.idBytes(id));
+		record.put(parentId == null ? NO_PARENT : ObjectStore.idBytes(parentId));
+		record.putLong(timestamp).putInt(parentOffset);
+		record.flip();
+		long position = HEADER_BYTES + (long) ids.size() * RECORD_BYTES;
+		while (record.hasRemaining()) {
+			position += channel.write(record, position);
+		}
+		channel.force(false);
+		return add(id, parentOffset, timestamp);
+	}
+
+	public synchronized boolean contains(String id) {
+		return offsets.containsKey(id);
+	}
+
+	public synchronized int size() {
+		return ids.size();
+	}
+
+	/**
+	 * @return the commit timestamp (ms since epoch), or -1 if the commit is not in the graph
+	 */
+	public synchronized long timestampOf(String id) {
+		Integer offset = offsets.get(id);
+		return offset == null ? -1 : timestamps[offset];
+	}
+
+	/**
+	 * @return the parent of {@code id}, or null if it has none or is not in the graph
+	 */
+	public synchronized String parentOf(String id) {
+		Integer offset = offsets.get(id);
+		if (offset == null || parents[offset] < 0) return null;
+		return ids.get(parents[offset]);
+	}
+
+	/**
+	 * @return the record number of {@code id}, or -1 if it is not in the graph
+	 */
+	public synchronized int offsetOf(String id) {
+		return offsets.getOrDefault(id, -1);
+	}
+
+	public synchronized String idAt(int offset) {
+		return ids.get(offset);
+	}
+
+	/**
+	 * @return the record numbers of {@code head} and its ancestors, oldest first; ascending,
+	 *         since a parent is always recorded before its children
+	 */
+	public synchronized int[] historyOffsets(String head) {
+		Integer offset = head == null ? null : offsets.get(head);
+		if (offset == null) {
+			return new int[0];
+		}
+		int length = 0;
+		for (int i = offset; i >= 0; i = parents[i]) {
+			length++;
+		}
+		int[] out = new int[length];
+		for (int i = offset; i >= 0; i = parents[i]) {
+			out[--length] = i;
+		}
+		return out;
+	}
+
+	/**
+	 * @return {@code head} and its ancestors, oldest first (empty if head is null or unknown)
+	 */
+	public synchronized List<String> history(String head) {
+		Integer offset = head == null ? null : offsets.get(head);
+		if (offset == null) {
+			return Collections.emptyList();
+		}
+		List<String> out = new ArrayList<>();
+		for (int i = offset; i >= 0; i = parents[i]) { // Parents always point backwards
+			out.add(ids.get(i));
+		}
+		Collections.reverse(out);
+		return out;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		channel.close();
+	}
+
+	private int add(String id, int parentOffset, long timestamp) {
+		int offset = ids.size();
+		if (offset == parents.length) {
+			parents = Arrays.copyOf(parents, offset * 2);
+			timestamps = Arrays.copyOf(timestamps, offset * 2);
+		}
+		// A parent offset can only point backwards; anything else is treated as no parent
+		parents[offset] = parentOffset < offset ? parentOffset : -1;
+		timestamps[offset] = timestamp;
+		ids.add(id);
+		offsets.put(id, offset);
+		return offset;
+	}
+}
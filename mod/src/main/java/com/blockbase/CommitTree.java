@@ -0,0 +1,305 @@
+package com.blockbase;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Hash tree over a commit's changes. A commit's id is derived from its root (see
+ * {@link Commit#idFor}).
+ *
+ * The leaves are the commit's runs (see {@link CommitCodec}), identified by the hash of
+ * their encoded object. A section's runs hold its changes sorted by index within the
+ * section, so they only depend on which changes the section has, not on the order they
+ * were made in. A section's hash is the SHA-1 of the ids of its runs in that order, and the
+ * root is the SHA-1 of (long section key, section hash) for every section in key order. A
+ * section with the same changes has the same hash in every commit, so verification and
+ * sync can compare section hashes and skip the sections that match.
+ *
+ * Building a tree encodes and hashes the runs in parallel on the common fork/join pool.
+ */
+public final class CommitTree {
+	// Runs one fork/join task handles before it stops splitting
+	private static final int RUNS_PER_TASK = 16;
+
+	private final long[] runKeys; // section key per run, in commit order
+	private final int[] runSizes;
+	private final String[] runIds;
+	private final String timesHash;
+	private final long[] sectionKeys; // ascending
+	private final String[] sectionHashes;
+	private final String root;
+
+	private CommitTree(long[] runKeys, int[] runSizes, String[] runIds, String timesHash) {
+		this.runKeys = runKeys;
+		this.runSizes = runSizes;
+		this.runIds = runIds;
+		this.timesHash = timesHash;
+
+		Integer[] order = new Integer[runKeys.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, Comparator.<Integer>comparingLong(i -> runKeys[i]).thenComparingInt(i -> i));
+		List<Long> keys = new ArrayList<>();
+		List<String> hashes = new ArrayList<>();
+		MessageDigest rootDigest = ObjectStore.sha1();
+		for (int start = 0; start < order.length; ) {
+			long key = runKeys[order[start]];
+			MessageDigest section = ObjectStore.sha1();
+			int end = start;
+			while (end < order.length && runKeys[order[end]] == key) {
+				section.update(ObjectStore.idBytes(runIds[order[end]]));
+				end++;
+			}
+			byte[] hash = section.digest();
+			rootDigest.update(ByteBuffer.allocate(8).putLong(0, key));
+			rootDigest.update(hash);
+			keys.add(key);
+			hashes.add(ObjectStore.hex(hash));
+			start = end;
+		}
+		this.sectionKeys = keys.stream().mapToLong(Long::longValue).toArray();
+		this.sectionHashes = hashes.toArray(new String[0]);
+		this.root = ObjectStore.hex(rootDigest.digest());
+	}
+
+	/**
+	 * @return a copy of {@code changes} sorted by section key and then by index within the
+	 *         section, the order {@link #build} expects; the timestamps move with their
+	 *         changes, and the sort is stable, so repeated positions keep their order
+	 */
+	public static List<BlockChange> inSectionOrder(List<BlockChange> changes) {
+		List<BlockChange> sorted = new ArrayList<>(changes);
+		sorted.sort(Comparator.<BlockChange>comparingLong(change -> sectionKey(change.getPosition()))
+			.thenComparingInt(change -> localIndex(change.getPosition())));
+		return sorted;
+	}
+
+	/**
+	 * Split changes into runs and hash them.
+	 * @param changes the changes in {@link #inSectionOrder} order
+	 * @throws IllegalArgumentException if they are not, as the section hashes would then
+	 *                                  depend on the order the changes were made in
+	 */
+	public static CommitTree build(List<BlockChange> changes) {
+		for (int i = 1; i < changes.size(); i++) {
+			BlockPos previous = changes.get(i - 1).getPosition();
+			BlockPos pos = changes.get(i).getPosition();
+			int order = Long.compare(sectionKey(previous), sectionKey(pos));
+			if (order > 0 || (order == 0 && localIndex(previous) > localIndex(pos))) {
+				throw new IllegalArgumentException("Changes are not in section order at " + pos);
+			}
+		}
+
+		List<long[]> runs = new ArrayList<>(); // (section key, start, end)
+		int start = 0;
+		while (start < changes.size()) {
+			long key = sectionKey(changes.get(start).getPosition());
+			int end = start + 1;
+			while (end < changes.size() && end - start < CommitCodec.MAX_RUN_CHANGES && sectionKey(changes.get(end).getPosition()) == key) {
+				end++;
+			}
+			runs.add(new long[] {key, start, end});
+			start = end;
+		}
+
+		long[] keys = new long[runs.size()];
+		int[] starts = new int[runs.size()];
+		int[] sizes = new int[runs.size()];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = runs.get(i)[0];
+			starts[i] = (int) runs.get(i)[1];
+			sizes[i] = (int) (runs.get(i)[2] - runs.get(i)[1]);
+		}
+		String[] ids = new String[keys.length];
+		ForkJoinPool.commonPool().invoke(new HashRuns(changes, starts, sizes, ids, 0, ids.length));
+
+		MessageDigest times = ObjectStore.sha1();
+		CommitCodec.Output out = new CommitCodec.Output(CommitCodec.STREAM_BUFFER_BYTES + 16);
+		long t = 0;
+		for (BlockChange change : changes) {
+			out.writeVarLong(CommitCodec.zigZag(change.getTimestamp() - t));
+			t = change.getTimestamp();
+			if (out.size() >= CommitCodec.STREAM_BUFFER_BYTES) {
+				times.update(out.buffer(), 0, out.size());
+				out.reset();
+			}
+		}
+		times.update(out.buffer(), 0, out.size());
+		return new CommitTree(keys, sizes, ids, ObjectStore.hex(times.digest()));
+	}
+
+	/**
+	 * Read the tree of a stored commit object from its run table; no run is loaded.
+	 * @throws IOException if the data is truncated or corrupt
+	 */
+	public static CommitTree read(ByteBuffer data) throws IOException {
+		try {
+			ByteBuffer in = data.duplicate();
+			CommitCodec.readMetadata(in);
+			int runCount = CommitCodec.readVarInt(in);
+			long[] keys = new long[runCount];
+			int[] sizes = new int[runCount];
+			String[] ids = new String[runCount];
+			byte[] id = new byte[ObjectStore.ID_BYTES];
+			for (int r = 0; r < runCount; r++) {
+				keys[r] = in.getLong();
+				in.get(id);
+				ids[r] = ObjectStore.hex(id);
+				sizes[r] = CommitCodec.readVarInt(in);
+			}
+			in.limit(data.limit() - 4); // The timestamps run up to the checksum
+			MessageDigest times = ObjectStore.sha1();
+			times.update(in);
+			return new CommitTree(keys, sizes, ids, ObjectStore.hex(times.digest()));
+		} catch (RuntimeException e) {
+			throw new IOException("Truncated or corrupt commit data", e);
+		}
+	}
+
+	/**
+	 * Load every run from {@code store} and check that it hashes to its id, in parallel.
+	 * @return the keys of the sections with a missing or damaged run, ascending; empty if all are intact
+	 */
+	public long[] verify(ObjectStore store) {
+		boolean[] bad = new boolean[runIds.length];
+		ForkJoinPool.commonPool().invoke(new VerifyRuns(store, bad, 0, runIds.length));
+		return java.util.stream.IntStream.range(0, bad.length)
+			.filter(i -> bad[i])
+			.mapToLong(i -> runKeys[i])
+			.distinct()
+			.sorted()
+			.toArray();
+	}
+
+	public String root() {
+		return root;
+	}
+
+	/**
+	 * @return SHA-1 of the commit's change timestamps, as encoded in the commit object
+	 */
+	public String timesHash() {
+		return timesHash;
+	}
+
+	/**
+	 * @return the keys of the sections the commit touches, ascending
+	 */
+	public long[] sectionKeys() {
+		return sectionKeys.clone();
+	}
+
+	/**
+	 * @return the hash of a section, or null if the commit does not touch it
+	 */
+	public String sectionHash(long sectionKey) {
+		int i = Arrays.binarySearch(sectionKeys, sectionKey);
+		return i < 0 ? null : sectionHashes[i];
+	}
+
+	int runCount() {
+		return runIds.length;
+	}
+
+	long runKey(int run) {
+		return runKeys[run];
+	}
+
+	int runSize(int run) {
+		return runSizes[run];
+	}
+
+	String runId(int run) {
+		return runIds[run];
+	}
+
+	private static long sectionKey(BlockPos pos) {
+		return SectionPos.asLong(
+			SectionPos.blockToSectionCoord(pos.getX()),
+			SectionPos.blockToSectionCoord(pos.getY()),
+			SectionPos.blockToSectionCoord(pos.getZ()));
+	}
+
+	private static int localIndex(BlockPos pos) {
+		return (SectionPos.sectionRelative(pos.getY()) << 8) | (SectionPos.sectionRelative(pos.getZ()) << 4) | SectionPos.sectionRelative(pos.getX());
+	}
+
+	private static final class HashRuns extends RecursiveAction {
+		private final List<BlockChange> changes;
+		private final int[] starts;
+		private final int[] sizes;
+		private final String[] ids;
+		private final int from;
+		private final int to;
+
+		HashRuns(List<BlockChange> changes, int[] starts, int[] sizes, String[] ids, int from, int to) {
+			this.changes = changes;
+			this.starts = starts;
+			this.sizes = sizes;
+			this.ids = ids;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= RUNS_PER_TASK) {
+				for (int i = from; i < to; i++) {
+					ids[i] = ObjectStore.hash(CommitCodec.encodeRun(changes, starts[i], starts[i] + sizes[i]));
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new HashRuns(changes, starts, sizes, ids, from, mid), new HashRuns(changes, starts, sizes, ids, mid, to));
+		}
+	}
+
+	private final class VerifyRuns extends RecursiveAction {
+		private final ObjectStore store;
+		private final boolean[] bad;
+		private final int from;
+		private final int to;
+
+		VerifyRuns(ObjectStore store, boolean[] bad, int from, int to) {
+			this.store = store;
+			this.bad = bad;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= RUNS_PER_TASK) {
+				ByteBuffer buffer = null;
+				for (int i = from; i < to; i++) {
+					try {
+						buffer = store.get(runIds[i], buffer);
+						if (buffer == null) {
+							bad[i] = true;
+							continue;
+						}
+						MessageDigest digest = ObjectStore.sha1();
+						digest.update(buffer.duplicate());
+						bad[i] = !ObjectStore.hex(digest.digest()).equals(runIds[i]);
+					} catch (IOException e) {
+						bad[i] = true;
+					}
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new VerifyRuns(store, bad, from, mid), new VerifyRuns(store, bad, mid, to));
+		}
+	}
+}
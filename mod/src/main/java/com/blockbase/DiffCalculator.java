@@ -1,22 +1,86 @@
 package com.blockbase;
 
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import net.minecraft.core.BlockPos;
-import net.minecraft.core.Registry;
+import net.minecraft.core.SectionPos;
 import net.minecraft.server.MinecraftServer;
-import net.minecraft.world.level.storage.LevelResource;
-import net.minecraft.world.level.Level;
+import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.PalettedContainer;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Computes a lightweight diff between the current world and a target (previous) commit.
  * MVP strategy: Compare only positions that were touched in the target commit to keep it fast.
  */
 public class DiffCalculator {
+	// Runs the replay and compare stages of diff computations, one at a time
+	private static final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "Blockbase-Diff");
+		t.setDaemon(true);
+		return t;
+	});
+	// Check for cancellation and report progress once per this many replayed or read positions
+	private static final int PROGRESS_EVERY = 4096;
+	// Chunk sections copied per server thread task, so a large radius is spread over several ticks
+	private static final int SECTIONS_PER_TASK = 256;
+
+	/**
+	 * Progress of one computation, written by the stages and read by the HUD. Also the
+	 * handle to cancel it.
+	 */
+	public static final class Progress {
+		private volatile String stage = "Starting";
+		private volatile int done;
+		private volatile int total; // 0 while unknown
+		private volatile boolean cancelled;
+
+		public String getStage() {
+			return stage;
+		}
+
+		public int getDone() {
+			return done;
+		}
+
+		/**
+		 * @return the amount of work in the current stage, or 0 if it is not known up front
+		 */
+		public int getTotal() {
+			return total;
+		}
+
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		void set(String stage, int done, int total) {
+			this.stage = stage;
+			this.done = done;
+			this.total = total;
+		}
+
+		private void step(int done) {
+			this.done = done;
+			if (cancelled) {
+				throw new CancellationException();
+			}
+		}
+	}
 
 	public static class DiffResult {
 		public final Map<BlockPos, BlockState> previousStates; // what the target commit had
@@ -33,99 +97,197 @@ public class DiffCalculator {
 			this.removed = removed;
 			this.modified = modified;
 		}
+
+		/**
+		 * An empty diff that {@link #update} can still add to.
+		 */
+		static DiffResult empty() {
+			return new DiffResult(new ConcurrentHashMap<>(), ConcurrentHashMap.newKeySet(), ConcurrentHashMap.newKeySet(), ConcurrentHashMap.newKeySet());
+		}
+
+		/**
+		 * Add the positions of a diff covering other positions, such as one received in parts.
+		 */
+		void addAll(DiffResult part) {
+			previousStates.putAll(part.previousStates);
+			added.addAll(part.added);
+			removed.addAll(part.removed);
+			modified.addAll(part.modified);
+		}
+
+		/**
+		 * Reclassify one position after its block changed to {@code now}, in O(1). The sets
+		 * are concurrent, so this may run on the server thread while the overlay renders them.
+		 */
+		public void update(BlockPos pos, BlockState now) {
+			BlockState prev = previousStates.get(pos);
+			boolean prevIsAir = (prev == null) || prev.isAir();
+			boolean nowIsAir = (now == null) || now.isAir();
+			added.remove(pos);
+			removed.remove(pos);
+			modified.remove(pos);
+			if (prevIsAir && !nowIsAir) {
+				added.add(pos);
+			} else if (!prevIsAir && nowIsAir) {
+				removed.add(pos);
+			} else if (!prevIsAir && !statesEqual(prev, now)) {
+				modified.add(pos);
+			}
+		}
 	}
 
 	/**
-	 * Compute diff within a player-centered radius by building:
-	 * - Previous snapshot: replay commits up to target to get per-pos previous state
-	 * - Current snapshot: scan current world in radius for non-air blocks
-	 * Then diff the union.
+	 * The positions of interest around the center and a copy of each loaded chunk section
+	 * holding one, captured on the server thread for comparison off it.
 	 */
-	public static DiffResult compute(Level world, BlockPos center, int radius) {
-		List<Path> chronological = getCommitsChronological(world);
-		if (chronological == null || chronological.isEmpty()) {
-			return new DiffResult(Collections.emptyMap(), Collections.emptySet(), Collections.emptySet(), Collections.emptySet());
+	private static final class Snapshot {
+		final Map<BlockPos, BlockState> previousStates;
+		final Set<BlockPos> positions;
+		final long[] keys; // sections holding a position
+		final Long2ObjectOpenHashMap<PalettedContainer<BlockState>> sections = new Long2ObjectOpenHashMap<>(); // null value: not loaded
+
+		Snapshot(Map<BlockPos, BlockState> previousStates, Set<BlockPos> positions, long[] keys) {
+			this.previousStates = previousStates;
+			this.positions = positions;
+			this.keys = keys;
 		}
+	}
+
+	/**
+	 * Compute the diff within {@code radius} of {@code center} between {@code level} and the
+	 * target commit. History is replayed on the diff worker; the tracked and staged positions
+	 * and copies of the chunk sections holding them are taken on the server thread, which
+	 * owns the tracker and the world; the copies are compared on the diff worker again.
+	 * Sections are copied SECTIONS_PER_TASK at a time, each batch queued from the worker so
+	 * the server runs it between ticks rather than all at once. Positions in chunks that are
+	 * not loaded are left out rather than loaded.
+	 * @return the result; it completes exceptionally with a CancellationException if
+	 *         {@code progress} is cancelled first
+	 */
+	public static CompletableFuture<DiffResult> computeAsync(ServerLevel level, BlockPos center, int radius, Progress progress) {
+		MinecraftServer server = level.getServer();
+		return CompletableFuture.supplyAsync(() -> replay(server, level, center, radius, progress), worker)
+			.thenCompose(previousStates -> previousStates == null
+				? CompletableFuture.completedFuture(DiffResult.empty())
+				: CompletableFuture.supplyAsync(() -> capture(level, center, radius, previousStates, progress), server::execute)
+					.thenComposeAsync(snapshot -> copySections(level, snapshot, 0, progress), worker)
+					.thenApplyAsync(snapshot -> compare(snapshot, progress), worker));
+	}
 
+	/**
+	 * Build the previous snapshot from the nearest keyframe and the commits after it up to
+	 * the target; sections outside the radius's bounding box are never loaded.
+	 * @return the target commit's states inside the radius, or null if there are no commits
+	 */
+	private static Map<BlockPos, BlockState> replay(MinecraftServer server, ServerLevel level, BlockPos center, int radius, Progress progress) {
+		List<String> chronological = Repository.listCommits(server);
+		if (chronological.isEmpty()) {
+			return null;
+		}
+		String target = chronological.get(targetIndex(chronological));
+		Map<BlockPos, BlockState> previousStates = new HashMap<>();
+		BlockPos min = new BlockPos(center.getX() - radius, center.getY() - radius, center.getZ() - radius);
+		BlockPos max = new BlockPos(center.getX() + radius, center.getY() + radius, center.getZ() + radius);
+		progress.set("Replaying history", 0, 0);
+		int[] replayed = {0};
 		try {
-			int targetIdx = targetIndex(chronological);
-			var registry = world.registryAccess().registryOrThrow(Registry.BLOCK_REGISTRY);
-
-			Map<BlockPos, BlockState> previousStates = new HashMap<>();
-
-			// Build previous snapshot by replaying commits 0..targetIdx
-			for (int i = 0; i <= targetIdx; i++) {
-				String json = Files.readString(chronological.get(i));
-				Commit commit = Commit.fromJson(json, registry);
-				if (commit == null || commit.getChanges() == null) continue;
-				for (BlockChange ch : commit.getChanges()) {
-					BlockPos pos = ch.getPosition();
-					if (!withinRadius(center, pos, radius * radius)) continue;
-					// Apply resulting state at this position as of this commit
-					previousStates.put(pos, ch.getNewState());
-				}
+			Repository.replayTo(server, target, level.dimension(), min, max, (dimension, x, y, z, stateId) -> {
+				if (++replayed[0] % PROGRESS_EVERY == 0) progress.step(replayed[0]);
+				if (!withinRadius(center, x, y, z, radius * radius)) return;
+				// Later commits overwrite the state at a position
+				previousStates.put(new BlockPos(x, y, z), StatePalette.stateOf(stateId));
+			});
+		} catch (IOException e) {
+			// Replay may report a cancellation thrown from the visitor as a corrupt object
+			if (progress.isCancelled()) {
+				throw new CancellationException();
 			}
+			throw new CompletionException(e);
+		}
+		return previousStates;
+	}
 
-			// Determine positions of interest: any previously known positions, plus currently tracked changes (unstaged)
-			java.util.HashSet<BlockPos> positions = new java.util.HashSet<>(previousStates.keySet());
-			java.util.List<BlockChange> currentTracked = Blockbase.blockTracker.getChanges();
-			for (BlockChange ch : currentTracked) {
-				BlockPos pos = ch.getPosition();
-				if (withinRadius(center, pos, radius * radius)) {
-					positions.add(pos);
-				}
+	/**
+	 * Collect the positions of interest, the previously known ones plus uncommitted changes,
+	 * and the sections holding them. Runs on the server thread, where the tracker drains.
+	 */
+	private static Snapshot capture(ServerLevel level, BlockPos center, int radius, Map<BlockPos, BlockState> previousStates, Progress progress) {
+		if (progress.isCancelled()) {
+			throw new CancellationException();
+		}
+		Set<BlockPos> positions = new HashSet<>(previousStates.keySet());
+		WorkingTree.Visitor addPosition = (pos, oldStateId, newStateId, timestamp) -> positions.add(BlockPos.of(pos));
+		BlockTracker tracker = Blockbase.trackers.get(level.dimension());
+		if (tracker != null) {
+			tracker.forEachInRadius(center, radius, addPosition);
+		}
+		// Staged changes are no longer in the tracker until they are committed
+		if (Blockbase.stagingArea.getDimension() == level.dimension()) {
+			for (WorkingTree generation : Blockbase.stagingArea.getGenerations()) {
+				generation.forEachInRadius(center, radius, addPosition);
 			}
+		}
 
-			// Read current states only for positions of interest
-			Map<BlockPos, BlockState> currentStates = new HashMap<>();
-			for (BlockPos pos : positions) {
-				BlockState now = world.getBlockState(pos);
-				if (now != null && !now.isAir()) {
-					currentStates.put(pos, now);
-				}
-			}
+		LongOpenHashSet keys = new LongOpenHashSet();
+		for (BlockPos pos : positions) {
+			keys.add(SectionPos.asLong(SectionPos.blockToSectionCoord(pos.getX()), SectionPos.blockToSectionCoord(pos.getY()), SectionPos.blockToSectionCoord(pos.getZ())));
+		}
+		progress.set("Copying sections", 0, keys.size());
+		return new Snapshot(previousStates, positions, keys.toLongArray());
+	}
 
-			Set<BlockPos> added = new HashSet<>();
-			Set<BlockPos> removed = new HashSet<>();
-			Set<BlockPos> modified = new HashSet<>();
-
-			// Analyze additions/modifications
-			for (Map.Entry<BlockPos, BlockState> e : currentStates.entrySet()) {
-				BlockPos pos = e.getKey();
-				BlockState now = e.getValue();
-				BlockState prev = previousStates.get(pos);
-				boolean prevIsAir = (prev == null) || prev.isAir();
-				boolean nowIsAir = now == null || now.isAir();
-				if (prevIsAir && !nowIsAir) {
-					added.add(pos);
-				} else if (!prevIsAir && !nowIsAir && !statesEqual(prev, now)) {
-					modified.add(pos);
-				}
-			}
-			// Analyze removals using direct world reads for previous positions
-			for (Map.Entry<BlockPos, BlockState> e : previousStates.entrySet()) {
-				BlockPos pos = e.getKey();
-				BlockState prev = e.getValue();
-				// Only consider within radius (use given radius)
-				if (!withinRadius(center, pos, radius * radius)) continue;
-				BlockState now = world.getBlockState(pos);
-				boolean prevIsAir = (prev == null) || prev.isAir();
-				boolean nowIsAir = (now == null) || now.isAir();
-				if (!prevIsAir && nowIsAir) {
-					removed.add(pos);
-				}
+	/**
+	 * Copy the snapshot's sections from index {@code from} on, one batch per server thread
+	 * task. Called on the diff worker, so each batch is queued rather than run inline.
+	 */
+	private static CompletableFuture<Snapshot> copySections(ServerLevel level, Snapshot snapshot, int from, Progress progress) {
+		int to = Math.min(snapshot.keys.length, from + SECTIONS_PER_TASK);
+		return CompletableFuture.supplyAsync(() -> {
+			progress.step(from);
+			for (int i = from; i < to; i++) {
+				snapshot.sections.put(snapshot.keys[i], copySection(level, snapshot.keys[i]));
 			}
-			return new DiffResult(previousStates, added, removed, modified);
-		} catch (IOException e) {
-			Blockbase.LOGGER.error("Failed to compute diff", e);
-			return new DiffResult(Collections.emptyMap(), Collections.emptySet(), Collections.emptySet(), Collections.emptySet());
+			progress.set("Copying sections", to, snapshot.keys.length);
+			return snapshot;
+		}, level.getServer()::execute).thenComposeAsync(copied -> to < snapshot.keys.length
+			? copySections(level, copied, to, progress)
+			: CompletableFuture.completedFuture(copied), worker);
+	}
+
+	/**
+	 * @return a copy of the section's states, or null if its chunk is not loaded
+	 */
+	private static PalettedContainer<BlockState> copySection(ServerLevel level, long key) {
+		int chunkX = SectionPos.x(key);
+		int chunkZ = SectionPos.z(key);
+		int sectionY = SectionPos.y(key);
+		if (!level.hasChunk(chunkX, chunkZ) || sectionY < level.getMinSection() || sectionY >= level.getMaxSection()) return null;
+		LevelChunkSection section = level.getChunk(chunkX, chunkZ).getSection(level.getSectionIndexFromSectionY(sectionY));
+		return section.getStates().copy();
+	}
+
+	private static DiffResult compare(Snapshot snapshot, Progress progress) {
+		DiffResult result = new DiffResult(snapshot.previousStates, ConcurrentHashMap.newKeySet(), ConcurrentHashMap.newKeySet(), ConcurrentHashMap.newKeySet());
+		progress.set("Comparing", 0, snapshot.positions.size());
+		int compared = 0;
+		for (BlockPos pos : snapshot.positions) {
+			if (++compared % PROGRESS_EVERY == 0) progress.step(compared);
+			long key = SectionPos.asLong(SectionPos.blockToSectionCoord(pos.getX()), SectionPos.blockToSectionCoord(pos.getY()), SectionPos.blockToSectionCoord(pos.getZ()));
+			PalettedContainer<BlockState> section = snapshot.sections.get(key);
+			if (section == null) continue;
+			result.update(pos, section.get(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15));
 		}
+		return result;
 	}
 
-	private static boolean withinRadius(BlockPos center, BlockPos pos, int r2) {
-		int dx = pos.getX() - center.getX();
-		int dy = pos.getY() - center.getY();
-		int dz = pos.getZ() - center.getZ();
+	static boolean withinRadius(BlockPos center, BlockPos pos, int r2) {
+		return withinRadius(center, pos.getX(), pos.getY(), pos.getZ(), r2);
+	}
+
+	static boolean withinRadius(BlockPos center, int x, int y, int z, int r2) {
+		int dx = x - center.getX();
+		int dy = y - center.getY();
+		int dz = z - center.getZ();
 		return (dx * dx + dy * dy + dz * dz) <= r2;
 	}
 
@@ -137,57 +299,13 @@ public class DiffCalculator {
 		return a.getValues().equals(b.getValues());
 	}
 
-	/**
-	 * Get all commit files chronological (oldest first).
-	 */
-	private static List<Path> getCommitsChronological(Level world) {
-		// Primary path via server world dir (works on dedicated)
-		Path commitsDir = Repository.getCommitsDirectory(world);
-		List<Path> files = listChronological(commitsDir);
-		if (!files.isEmpty()) return files;
-		// Fallback for integrated singleplayer client where world.getServer() is null on client thread
-		try {
-			net.minecraft.client.Minecraft mc = net.minecraft.client.Minecraft.getInstance();
-			MinecraftServer server = mc.getSingleplayerServer();
-			if (server != null) {
-				Path worldDir = server.getWorldPath(LevelResource.ROOT);
-				if (worldDir != null) {
-					Path alt = worldDir.resolve(".blockbase").resolve("commits");
-					files = listChronological(alt);
-					if (!files.isEmpty()) return files;
-				}
-			}
-		} catch (Throwable ignore) {}
-		return Collections.emptyList();
-	}
-
-	private static List<Path> listChronological(Path dir) {
-		if (dir == null || !Files.exists(dir)) return Collections.emptyList();
-		try {
-			return Files.list(dir)
-				.filter(p -> p.getFileName().toString().endsWith(".json"))
-				.sorted((a, b) -> {
-					try {
-						long at = Files.getLastModifiedTime(a).toMillis();
-						long bt = Files.getLastModifiedTime(b).toMillis();
-						return Long.compare(at, bt); // oldest first
-					} catch (IOException e) {
-						return 0;
-					}
-				})
-				.toList();
-		} catch (IOException e) {
-			return Collections.emptyList();
-		}
-	}
-
 	/**
 	 * Get index of target commit:
 	 * - if ≥2 commits: pick the second latest (previous commit)
 	 * - if exactly 1 commit: pick that single commit
 	 * - otherwise: -1
 	 */
-	private static int targetIndex(List<Path> chronological) {
+	private static int targetIndex(List<String> chronological) {
 		if (chronological.isEmpty()) return -1;
 		if (chronological.size() == 1) return 0;
 		return chronological.size() - 2;
@@ -8,19 +8,29 @@ import net.minecraft.network.chat.TextComponent;
 public class DiffHudOverlay {
 	public static void init() {
 		HudRenderCallback.EVENT.register((poseStack, tickDelta) -> {
-			if (DiffViewManager.getMode() == DiffViewManager.Mode.OFF) return;
+			DiffCalculator.Progress progress = DiffViewManager.getProgress();
+			if (DiffViewManager.getMode() == DiffViewManager.Mode.OFF && progress == null) return;
 			Minecraft mc = Minecraft.getInstance();
 			if (mc.gui == null || mc.font == null) return;
 
 			PoseStack ps = poseStack;
 			var mode = DiffViewManager.getMode();
-			String title = mode == DiffViewManager.Mode.DIFF
-				? "Diff mode (G to toggle, Shift+G to exit)"
-				: "Current mode (G to toggle, Shift+G to exit)";
-
 			int x = 12;
 			int y = 12;
 			int color = 0xE5E5E5; // light gray
+			if (progress != null) {
+				int total = progress.getTotal();
+				String status = total > 0
+					? String.format("Computing diff: %s %d/%d (%d%%)", progress.getStage(), progress.getDone(), total, (int) (100L * progress.getDone() / total))
+					: String.format("Computing diff: %s %d", progress.getStage(), progress.getDone());
+				mc.font.draw(ps, new TextComponent(status), x, y, color);
+				if (mode == DiffViewManager.Mode.OFF) return;
+				y += 12;
+			}
+
+			String title = mode == DiffViewManager.Mode.DIFF
+				? "Diff mode (G to toggle, Shift+G to exit)"
+				: "Current mode (G to toggle, Shift+G to exit)";
 			mc.font.draw(ps, new TextComponent(title), x, y, color);
 
 			if (mode == DiffViewManager.Mode.DIFF) {
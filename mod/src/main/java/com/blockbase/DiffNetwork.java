@@ -1,17 +1,68 @@
 package com.blockbase;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
 import net.fabricmc.fabric.api.networking.v1.PacketByteBufs;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
 import net.minecraft.network.FriendlyByteBuf;
 import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Server->Client packets to control diff view from commands.
+ * Server->Client packets to control diff view from commands, and server-computed diffs for
+ * clients whose world is not hosted locally.
+ *
+ * A remote client asks for a diff on {@link #REQUEST} (int request number, long center, int
+ * radius; radius 0 cancels). The server computes it and answers on {@link #DATA} with a
+ * BEGIN packet, SECTIONS packets holding the changed chunk sections nearest to the center
+ * first, and an END packet. Each SECTIONS packet is deflated and decodes on its own: a state
+ * palette of names, then per section its key and one entry per changed block (2-byte packed
+ * position inside the section, varint (previous state palette index + 1) << 2 | kind).
  */
 public class DiffNetwork {
 	public static final ResourceLocation TOGGLE = new ResourceLocation(Blockbase.MOD_ID, "diff_toggle");
+	public static final ResourceLocation REQUEST = new ResourceLocation(Blockbase.MOD_ID, "diff_request");
+	public static final ResourceLocation DATA = new ResourceLocation(Blockbase.MOD_ID, "diff_data");
+
+	// Largest radius the server computes for a client
+	public static final int MAX_RADIUS = 128;
+	// Uncompressed payload after which a SECTIONS packet is sent
+	private static final int PACKET_RAW_BYTES = 64 * 1024;
+	// Largest uncompressed payload a client accepts
+	private static final int MAX_RAW_BYTES = 1024 * 1024;
+
+	private static final byte BEGIN = 0;
+	private static final byte SECTIONS = 1;
+	private static final byte END = 2;
+
+	static final int KIND_ADDED = 0;
+	static final int KIND_REMOVED = 1;
+	static final int KIND_MODIFIED = 2;
+
+	// Computation in flight per player, server side
+	private static final Map<UUID, DiffCalculator.Progress> jobs = new ConcurrentHashMap<>();
+	// Number of the client's latest request
+	private static int lastRequest;
 
 	public enum Action {
 		ENTER((byte)1),
@@ -30,6 +81,16 @@ public class DiffNetwork {
 		ServerPlayNetworking.send(player, TOGGLE, buf);
 	}
 
+	// Server register receiver
+	public static void registerServer() {
+		ServerPlayNetworking.registerGlobalReceiver(REQUEST, (server, player, handler, buf, responseSender) -> {
+			int request = buf.readVarInt();
+			BlockPos center = BlockPos.of(buf.readLong());
+			int radius = buf.readVarInt();
+			server.execute(() -> serve(server, player, request, center, radius));
+		});
+	}
+
 	// Client register receiver
 	public static void registerClient() {
 		ClientPlayNetworking.registerGlobalReceiver(TOGGLE, (client, handler, buf, responseSender) -> {
@@ -43,7 +104,239 @@ public class DiffNetwork {
 				}
 			});
 		});
+
+		ClientPlayNetworking.registerGlobalReceiver(DATA, (client, handler, buf, responseSender) -> {
+			byte kind = buf.readByte();
+			int request = buf.readVarInt();
+			if (kind == BEGIN) {
+				int sections = buf.readVarInt();
+				client.execute(() -> DiffViewManager.remoteBegin(request, sections));
+			} else if (kind == SECTIONS) {
+				int sections = buf.readVarInt();
+				int rawLength = buf.readVarInt();
+				byte[] compressed = buf.readByteArray();
+				DiffCalculator.DiffResult part;
+				try {
+					part = decode(compressed, rawLength);
+				} catch (IOException | RuntimeException e) {
+					Blockbase.LOGGER.error("[blockbase] Dropping malformed diff packet", e);
+					return;
+				}
+				client.execute(() -> DiffViewManager.remoteSections(request, part, sections));
+			} else {
+				client.execute(() -> DiffViewManager.remoteEnd(request));
+			}
+		});
+	}
+
+	/**
+	 * Whether diffs should be requested from the server: the world is not hosted by this
+	 * client and the server runs Blockbase.
+	 */
+	public static boolean isRemote(net.minecraft.client.Minecraft client) {
+		return client.getSingleplayerServer() == null && ClientPlayNetworking.canSend(REQUEST);
+	}
+
+	/**
+	 * Ask the server for the diff around {@code center}, replacing any earlier request.
+	 * @return the request number the answer carries
+	 */
+	public static int request(BlockPos center, int radius) {
+		int request = ++lastRequest;
+		FriendlyByteBuf buf = PacketByteBufs.create();
+		buf.writeVarInt(request);
+		buf.writeLong(center.asLong());
+		buf.writeVarInt(radius);
+		ClientPlayNetworking.send(REQUEST, buf);
+		return request;
+	}
+
+	/**
+	 * Tell the server to stop working on the last request.
+	 */
+	public static void cancelRequest() {
+		request(BlockPos.ZERO, 0);
+	}
+
+	private static void serve(MinecraftServer server, ServerPlayer player, int request, BlockPos center, int radius) {
+		DiffCalculator.Progress previous = jobs.remove(player.getUUID());
+		if (previous != null) {
+			previous.cancel();
+		}
+		if (radius <= 0) {
+			return;
+		}
+		DiffCalculator.Progress progress = new DiffCalculator.Progress();
+		jobs.put(player.getUUID(), progress);
+		DiffCalculator.computeAsync(player.getLevel(), center, Math.min(radius, MAX_RADIUS), progress).whenComplete((result, error) -> {
+			try {
+				if (error == null) {
+					stream(server, player, request, center, result, progress);
+				} else {
+					Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+					if (cause instanceof CancellationException) return;
+					Blockbase.LOGGER.error("[blockbase] Failed to compute diff for {}", player.getName().getString(), cause);
+				}
+				sendData(server, player, header(END, request));
+			} catch (CancellationException e) {
+				// Superseded by a newer request; the client ignores the rest of this one
+			} finally {
+				jobs.remove(player.getUUID(), progress);
+			}
+		});
+	}
+
+	/**
+	 * Send {@code result} in SECTIONS packets, nearest section first.
+	 * @throws CancellationException if {@code progress} is cancelled part way
+	 */
+	private static void stream(MinecraftServer server, ServerPlayer player, int request, BlockPos center,
+							   DiffCalculator.DiffResult result, DiffCalculator.Progress progress) {
+		Long2ObjectOpenHashMap<IntArrayList> bySection = new Long2ObjectOpenHashMap<>();
+		group(bySection, result.added, KIND_ADDED);
+		group(bySection, result.removed, KIND_REMOVED);
+		group(bySection, result.modified, KIND_MODIFIED);
+		Long[] keys = bySection.keySet().stream().toArray(Long[]::new);
+		Arrays.sort(keys, Comparator.comparingLong(key -> distanceSquared(center, key)));
+
+		FriendlyByteBuf begin = header(BEGIN, request);
+		begin.writeVarInt(keys.length);
+		sendData(server, player, begin);
+
+		StatePalette palette = new StatePalette();
+		CommitCodec.Output body = new CommitCodec.Output(PACKET_RAW_BYTES + 16 * 1024);
+		int sections = 0;
+		for (Long key : keys) {
+			encodeSection(body, palette, key, bySection.get(key), result.previousStates);
+			sections++;
+			if (body.size() >= PACKET_RAW_BYTES) {
+				if (progress.isCancelled()) throw new CancellationException();
+				sendData(server, player, sections(request, sections, palette, body));
+				palette.clear();
+				body.reset();
+				sections = 0;
+			}
+		}
+		if (sections > 0) {
+			sendData(server, player, sections(request, sections, palette, body));
+		}
+	}
+
+	/**
+	 * Append one section's entries to a SECTIONS payload body.
+	 * @param entries packed position << 2 | kind, as built by {@link #group}
+	 */
+	static void encodeSection(CommitCodec.Output body, StatePalette palette, long key, IntArrayList entries,
+							  Map<BlockPos, BlockState> previousStates) {
+		int[] sorted = entries.toIntArray();
+		Arrays.sort(sorted);
+		body.writeLong(key);
+		body.writeVarInt(sorted.length);
+		int baseX = SectionPos.sectionToBlockCoord(SectionPos.x(key));
+		int baseY = SectionPos.sectionToBlockCoord(SectionPos.y(key));
+		int baseZ = SectionPos.sectionToBlockCoord(SectionPos.z(key));
+		for (int entry : sorted) {
+			int local = entry >>> 2;
+			BlockState prev = previousStates.get(new BlockPos(baseX + (local >>> 8), baseY + (local & 15), baseZ + ((local >>> 4) & 15)));
+			body.write(local >>> 8);
+			body.write(local);
+			body.writeVarInt((palette.indexOf(StatePalette.stateId(prev)) + 1) << 2 | (entry & 3));
+		}
+	}
+
+	static void group(Long2ObjectOpenHashMap<IntArrayList> bySection, Set<BlockPos> positions, int kind) {
+		for (BlockPos pos : positions) {
+			long key = SectionPos.asLong(
+				SectionPos.blockToSectionCoord(pos.getX()),
+				SectionPos.blockToSectionCoord(pos.getY()),
+				SectionPos.blockToSectionCoord(pos.getZ()));
+			IntArrayList entries = bySection.computeIfAbsent(key, k -> new IntArrayList());
+			int local = (pos.getX() & 15) << 8 | (pos.getZ() & 15) << 4 | (pos.getY() & 15);
+			entries.add(local << 2 | kind);
+		}
+	}
+
+	private static long distanceSquared(BlockPos center, long sectionKey) {
+		long dx = SectionPos.sectionToBlockCoord(SectionPos.x(sectionKey)) + 8 - center.getX();
+		long dy = SectionPos.sectionToBlockCoord(SectionPos.y(sectionKey)) + 8 - center.getY();
+		long dz = SectionPos.sectionToBlockCoord(SectionPos.z(sectionKey)) + 8 - center.getZ();
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	private static FriendlyByteBuf header(byte kind, int request) {
+		FriendlyByteBuf buf = PacketByteBufs.create();
+		buf.writeByte(kind);
+		buf.writeVarInt(request);
+		return buf;
 	}
-}
 
+	private static FriendlyByteBuf sections(int request, int sections, StatePalette palette, CommitCodec.Output body) {
+		byte[] raw = payload(palette, body);
+		FriendlyByteBuf buf = header(SECTIONS, request);
+		buf.writeVarInt(sections);
+		buf.writeVarInt(raw.length);
+		buf.writeByteArray(ObjectStore.deflate(raw));
+		return buf;
+	}
+
+	/**
+	 * @return the uncompressed SECTIONS payload: the palette followed by {@code body}
+	 */
+	static byte[] payload(StatePalette palette, CommitCodec.Output body) {
+		CommitCodec.Output raw = new CommitCodec.Output(body.size() + 32 * palette.size() + 8);
+		raw.writeVarInt(palette.size());
+		for (int i = 0; i < palette.size(); i++) {
+			raw.writeString(palette.name(i));
+		}
+		raw.write(body.buffer(), 0, body.size());
+		return raw.toByteArray();
+	}
+
+	private static void sendData(MinecraftServer server, ServerPlayer player, FriendlyByteBuf buf) {
+		server.execute(() -> ServerPlayNetworking.send(player, DATA, buf));
+	}
+
+	/**
+	 * Decode one SECTIONS payload into a partial diff.
+	 */
+	static DiffCalculator.DiffResult decode(byte[] compressed, int rawLength) throws IOException {
+		if (rawLength < 0 || rawLength > MAX_RAW_BYTES) {
+			throw new IOException("Diff packet too large: " + rawLength);
+		}
+		ByteBuffer in = ObjectStore.inflate(ByteBuffer.wrap(compressed), rawLength, null);
+		int paletteSize = CommitCodec.readVarInt(in);
+		List<String> names = new ArrayList<>(paletteSize);
+		for (int i = 0; i < paletteSize; i++) {
+			names.add(CommitCodec.readString(in));
+		}
+		int[] resolved = StatePalette.resolve(names);
 
+		Map<BlockPos, BlockState> previousStates = new HashMap<>();
+		Set<BlockPos> added = new HashSet<>();
+		Set<BlockPos> removed = new HashSet<>();
+		Set<BlockPos> modified = new HashSet<>();
+		while (in.hasRemaining()) {
+			long key = in.getLong();
+			int count = CommitCodec.readVarInt(in);
+			int baseX = SectionPos.sectionToBlockCoord(SectionPos.x(key));
+			int baseY = SectionPos.sectionToBlockCoord(SectionPos.y(key));
+			int baseZ = SectionPos.sectionToBlockCoord(SectionPos.z(key));
+			for (int i = 0; i < count; i++) {
+				int local = (in.get() & 0xFF) << 8 | (in.get() & 0xFF);
+				int value = CommitCodec.readVarInt(in);
+				BlockPos pos = new BlockPos(baseX + ((local >>> 8) & 15), baseY + (local & 15), baseZ + ((local >>> 4) & 15));
+				BlockState prev = StatePalette.stateOf(StatePalette.lookup(resolved, (value >>> 2) - 1));
+				if (prev != null) {
+					previousStates.put(pos, prev);
+				}
+				switch (value & 3) {
+					case KIND_ADDED -> added.add(pos);
+					case KIND_REMOVED -> removed.add(pos);
+					case KIND_MODIFIED -> modified.add(pos);
+					default -> throw new IOException("Unknown diff entry kind " + (value & 3));
+				}
+			}
+		}
+		return new DiffCalculator.DiffResult(previousStates, added, removed, modified);
+	}
+}
@@ -1,15 +1,33 @@
 package com.blockbase;
 
+import net.minecraft.client.Minecraft;
 import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.level.Level;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Holds client-side diff view state and cycles modes.
  * Rendering hooks will consult this to tint/override.
+ *
+ * While in DIFF mode on the machine hosting the world, the diff follows the dimension's
+ * {@link BlockTracker}: each block change inside the radius reclassifies its position, so
+ * the overlay updates live without a recompute. Leaving the diff's dimension exits.
+ *
+ * Diffs are computed in the background against the hosted server's level; the mode stays
+ * as it was until the result arrives, and the HUD shows progress meanwhile. Pressing G
+ * again while computing restarts from the current position, and exiting cancels.
+ *
+ * On a client connected to a remote server the diff is requested from the server instead
+ * (see {@link DiffNetwork}) and fills in section by section as the packets arrive.
  */
 public class DiffViewManager {
 	public enum Mode {
@@ -17,14 +35,30 @@ public class DiffViewManager {
 	}
 
 	private static final AtomicReference<Mode> mode = new AtomicReference<>(Mode.OFF);
-	private static DiffCalculator.DiffResult lastResult;
+	private static volatile DiffCalculator.DiffResult lastResult;
+	private static volatile DiffCalculator.Progress pending; // the computation in flight, if any
+	private static int remoteRequest; // number of the server request in flight, or 0
 	private static BlockPos anchor;
+	private static ResourceKey<Level> dimension; // of the diff shown or being computed
 	private static int radius = 64;
+	private static BlockTracker followed;
+	private static WorkingTree.Visitor follower;
 
 	public static Mode getMode() {
 		return mode.get();
 	}
 
+	public static boolean isComputing() {
+		return pending != null;
+	}
+
+	/**
+	 * @return progress of the computation in flight, or null if none
+	 */
+	public static DiffCalculator.Progress getProgress() {
+		return pending;
+	}
+
 	public static Map<BlockPos, net.minecraft.world.level.block.state.BlockState> getPreviousStates() {
 		return lastResult != null ? lastResult.previousStates : java.util.Collections.emptyMap();
 	}
@@ -44,20 +78,141 @@ public class DiffViewManager {
 	public static void cycle(Level world, BlockPos center) {
 		Mode current = mode.get();
 		if (current == Mode.OFF || current == Mode.CURRENT) {
-			anchor = center;
-			lastResult = DiffCalculator.compute(world, center, radius);
-			Blockbase.LOGGER.info("[blockbase] Diff computed: added={}, removed={}",
-				lastResult.added.size(), lastResult.removed.size());
-			mode.set(Mode.DIFF);
+			start(world, center);
 		} else if (current == Mode.DIFF) {
+			unfollow();
 			mode.set(Mode.CURRENT);
 		}
 	}
 
 	public static void exit() {
+		cancelPending();
+		unfollow();
 		mode.set(Mode.OFF);
 		lastResult = null;
 		anchor = null;
+		dimension = null;
+	}
+
+	/**
+	 * Exit once the player has left the dimension the diff was computed for, or the world:
+	 * its positions mean nothing elsewhere, and the tracker it follows is the old one's.
+	 * Called every client tick.
+	 */
+	public static void checkDimension(Level world) {
+		if (dimension != null && (world == null || world.dimension() != dimension)) {
+			exit();
+		}
+	}
+
+	/**
+	 * Compute the diff around {@code center} in the background, replacing any computation
+	 * already in flight, and switch to DIFF mode on the client thread when it finishes.
+	 */
+	private static void start(Level world, BlockPos center) {
+		cancelPending();
+		DiffCalculator.Progress progress = new DiffCalculator.Progress();
+		pending = progress;
+		dimension = world.dimension();
+		if (DiffNetwork.isRemote(Minecraft.getInstance())) {
+			progress.set("Waiting for server", 0, 0);
+			anchor = center;
+			remoteRequest = DiffNetwork.request(center, radius);
+			return;
+		}
+		// Diff against the hosted server's copy of the world: the client's copy is not safe to
+		// read off the client thread, and the server owns the tracker either way
+		MinecraftServer server = Minecraft.getInstance().getSingleplayerServer();
+		ServerLevel level = server != null ? server.getLevel(world.dimension()) : null;
+		CompletableFuture<DiffCalculator.DiffResult> future = level != null
+			? DiffCalculator.computeAsync(level, center, radius, progress)
+			: CompletableFuture.completedFuture(DiffCalculator.DiffResult.empty());
+		future.whenComplete((result, error) ->
+			Minecraft.getInstance().execute(() -> {
+				if (pending != progress) return; // superseded or cancelled
+				pending = null;
+				if (error != null) {
+					Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+					if (!(cause instanceof CancellationException)) {
+						Blockbase.LOGGER.error("[blockbase] Diff computation failed", cause);
+					}
+					return;
+				}
+				Blockbase.LOGGER.info("[blockbase] Diff computed: added={}, removed={}",
+					result.added.size(), result.removed.size());
+				anchor = center;
+				lastResult = result;
+				follow(world, center, result);
+				mode.set(Mode.DIFF);
+			}));
+	}
+
+	private static void cancelPending() {
+		DiffCalculator.Progress progress = pending;
+		if (progress != null) {
+			progress.cancel();
+			pending = null;
+		}
+		if (remoteRequest != 0) {
+			DiffNetwork.cancelRequest();
+			remoteRequest = 0;
+		}
+	}
+
+	/**
+	 * The server started answering request {@code request}; show its diff as it arrives.
+	 */
+	static void remoteBegin(int request, int sections) {
+		if (request != remoteRequest) return;
+		unfollow();
+		lastResult = DiffCalculator.DiffResult.empty();
+		pending.set("Receiving sections", 0, sections);
+		mode.set(Mode.DIFF);
+	}
+
+	static void remoteSections(int request, DiffCalculator.DiffResult part, int sections) {
+		if (request != remoteRequest || lastResult == null) return;
+		lastResult.addAll(part);
+		DiffCalculator.Progress progress = pending;
+		progress.set(progress.getStage(), progress.getDone() + sections, progress.getTotal());
+	}
+
+	static void remoteEnd(int request) {
+		if (request != remoteRequest) return;
+		remoteRequest = 0;
+		pending = null;
+		DiffCalculator.DiffResult result = lastResult;
+		if (result != null) {
+			Blockbase.LOGGER.info("[blockbase] Diff received: added={}, removed={}",
+				result.added.size(), result.removed.size());
+		}
+	}
+
+	/**
+	 * Keep {@code result} up to date with the tracked changes inside the radius. Does nothing
+	 * when the world is not hosted here (no tracker); the diff then stays as computed.
+	 */
+	private static synchronized void follow(Level world, BlockPos center, DiffCalculator.DiffResult result) {
+		unfollow();
+		BlockTracker tracker = Blockbase.trackers.get(world.dimension());
+		if (tracker == null) {
+			return;
+		}
+		int r2 = radius * radius;
+		follower = (pos, oldStateId, newStateId, timestamp) -> {
+			if (!DiffCalculator.withinRadius(center, BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos), r2)) return;
+			result.update(BlockPos.of(pos), StatePalette.stateOf(newStateId));
+		};
+		followed = tracker;
+		tracker.addListener(follower);
+	}
+
+	private static synchronized void unfollow() {
+		if (followed != null) {
+			followed.removeListener(follower);
+			followed = null;
+			follower = null;
+		}
 	}
 }
 
@@ -0,0 +1,30 @@
+package com.blockbase;
+
+import net.minecraft.core.Registry;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.level.Level;
+
+/**
+ * Small helpers shared by Blockbase's file formats and the JSON it writes.
+ */
+final class Formats {
+	private Formats() {}
+
+	/**
+	 * @return the dimension with this name; the overworld for an empty or invalid name, as
+	 *         records written before dimensions were stored all come from the overworld
+	 */
+	static ResourceKey<Level> parseDimension(String name) {
+		ResourceLocation location = name.isEmpty() ? null : ResourceLocation.tryParse(name);
+		if (location == null) return Level.OVERWORLD;
+		return ResourceKey.create(Registry.DIMENSION_REGISTRY, location);
+	}
+
+	/**
+	 * @return {@code value} escaped for use inside a JSON string literal
+	 */
+	static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "\\r");
+	}
+}
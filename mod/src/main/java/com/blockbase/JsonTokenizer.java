@@ -0,0 +1,363 @@
+package com.blockbase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Pull tokenizer for the JSON files Blockbase reads (repo.json, legacy commit and change
+ * files). It reads through a fixed-size buffer and hands values to the caller one at a time,
+ * so memory use does not depend on the size of the document.
+ *
+ * Callers walk the document with {@link #beginObject()}/{@link #nextName()}/{@link #hasNext()}
+ * and friends, and {@link #skipValue()} anything they do not need. Malformed input throws
+ * an IOException giving the offset of the problem.
+ *
+ * Not thread-safe.
+ */
+public final class JsonTokenizer implements Closeable {
+	public enum Token {
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END
+	}
+
+	// What the tokenizer expects next in each open scope
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_OBJECT = 2;
+	private static final int NONEMPTY_OBJECT = 3;
+	private static final int DANGLING_NAME = 4;
+	private static final int EMPTY_ARRAY = 5;
+	private static final int NONEMPTY_ARRAY = 6;
+
+	private final Reader in;
+	private final char[] buffer = new char[8192];
+	private int pos;
+	private int limit;
+	private long consumed; // chars before buffer[0], for error offsets
+
+	private int[] scopes = new int[16];
+	private int depth = 1;
+
+	private Token peeked;
+	private final StringBuilder text = new StringBuilder(); // value of a peeked NAME, STRING, NUMBER or BOOLEAN
+
+	public JsonTokenizer(Reader in) {
+		this.in = in;
+		scopes[0] = EMPTY_DOCUMENT;
+	}
+
+	/**
+	 * Tokenize UTF-8 JSON held in a buffer, from its position to its limit.
+	 */
+	public static JsonTokenizer of(ByteBuffer utf8) {
+		ByteBuffer data = utf8.duplicate();
+		InputStream stream = new InputStream() {
+			@Override
+			public int read() {
+				return data.hasRemaining() ? data.get() & 0xFF : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if (!data.hasRemaining()) return -1;
+				int n = Math.min(len, data.remaining());
+				data.get(b, off, n);
+				return n;
+			}
+		};
+		return new JsonTokenizer(new InputStreamReader(stream, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return the kind of the next token, without consuming it
+	 */
+	public Token peek() throws IOException {
+		if (peeked != null) {
+			return peeked;
+		}
+		switch (scopes[depth - 1]) {
+			case EMPTY_ARRAY: {
+				scopes[depth - 1] = NONEMPTY_ARRAY;
+				int c = nextNonWhitespace();
+				if (c == ']') return peeked = Token.END_ARRAY;
+				if (c == -1) throw syntaxError("Unterminated array");
+				pos--; // Not consumed: it starts the first value
+				return peeked = readValue();
+			}
+			case NONEMPTY_ARRAY: {
+				int c = nextNonWhitespace();
+				if (c == ']') return peeked = Token.END_ARRAY;
+				if (c != ',') throw syntaxError("Expected ',' or ']'");
+				return peeked = readValue();
+			}
+			case EMPTY_OBJECT:
+			case NONEMPTY_OBJECT: {
+				int c = nextNonWhitespace();
+				if (c == '}') return peeked = Token.END_OBJECT;
+				if (scopes[depth - 1] == NONEMPTY_OBJECT) {
+					if (c != ',') throw syntaxError("Expected ',' or '}'");
+					c = nextNonWhitespace();
+				}
+				if (c != '"') throw syntaxError("Expected a name");
+				scopes[depth - 1] = DANGLING_NAME;
+				readString();
+				return peeked = Token.NAME;
+			}
+			case DANGLING_NAME:
+				if (nextNonWhitespace() != ':') throw syntaxError("Expected ':'");
+				scopes[depth - 1] = NONEMPTY_OBJECT;
+				return peeked = readValue();
+			case EMPTY_DOCUMENT:
+				scopes[depth - 1] = NONEMPTY_DOCUMENT;
+				return peeked = readValue();
+			default:
+				if (nextNonWhitespace() != -1) throw syntaxError("Trailing data after the document");
+				return peeked = Token.END;
+		}
+	}
+
+	/**
+	 * @return true if the current object or array has another element
+	 */
+	public boolean hasNext() throws IOException {
+		Token token = peek();
+		return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END;
+	}
+
+	public void beginObject() throws IOException {
+		expect(Token.BEGIN_OBJECT);
+		push(EMPTY_OBJECT);
+	}
+
+	public void endObject() throws IOException {
+		expect(Token.END_OBJECT);
+		depth--;
+	}
+
+	public void beginArray() throws IOException {
+		expect(Token.BEGIN_ARRAY);
+		push(EMPTY_ARRAY);
+	}
+
+	public void endArray() throws IOException {
+		expect(Token.END_ARRAY);
+		depth--;
+	}
+
+	public String nextName() throws IOException {
+		expect(Token.NAME);
+		return text.toString();
+	}
+
+	/**
+	 * @return the next string value; numbers and booleans are returned as written
+	 */
+	public String nextString() throws IOException {
+		Token token = peek();
+		if (token != Token.STRING && token != Token.NUMBER && token != Token.BOOLEAN) {
+			throw syntaxError("Expected a string but was " + token);
+		}
+		peeked = null;
+		return text.toString();
+	}
+
+	/**
+	 * @return the next string value, or null for a JSON null
+	 */
+	public String nextStringOrNull() throws IOException {
+		if (peek() == Token.NULL) {
+			peeked = null;
+			return null;
+		}
+		return nextString();
+	}
+
+	public long nextLong() throws IOException {
+		expect(Token.NUMBER);
+		try {
+			return Long.parseLong(text, 0, text.length(), 10);
+		} catch (NumberFormatException e) {
+			throw syntaxError("Not a whole number: " + text);
+		}
+	}
+
+	public int nextInt() throws IOException {
+		long value = nextLong();
+		if (value != (int) value) {
+			throw syntaxError("Number out of range: " + value);
+		}
+		return (int) value;
+	}
+
+	public void nextNull() throws IOException {
+		expect(Token.NULL);
+	}
+
+	/**
+	 * Skip the next value, including everything nested in it.
+	 */
+	public void skipValue() throws IOException {
+		int open = 0;
+		do {
+			switch (peek()) {
+				case BEGIN_OBJECT: beginObject(); open++; break;
+				case BEGIN_ARRAY: beginArray(); open++; break;
+				case END_OBJECT: endObject(); open--; break;
+				case END_ARRAY: endArray(); open--; break;
+				case END: throw syntaxError("Unexpected end of document");
+				default: peeked = null; break;
+			}
+		} while (open > 0);
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private void expect(Token token) throws IOException {
+		if (peek() != token) {
+			throw syntaxError("Expected " + token + " but was " + peeked);
+		}
+		peeked = null;
+	}
+
+	private void push(int scope) {
+		if (depth == scopes.length) {
+			scopes = Arrays.copyOf(scopes, depth * 2);
+		}
+		scopes[depth++] = scope;
+	}
+
+	private Token readValue() throws IOException {
+		int c = nextNonWhitespace();
+		switch (c) {
+			case '{': return Token.BEGIN_OBJECT;
+			case '[': return Token.BEGIN_ARRAY;
+			case '"':
+				readString();
+				return Token.STRING;
+			case 't':
+				readLiteral("true");
+				return Token.BOOLEAN;
+			case 'f':
+				readLiteral("false");
+				return Token.BOOLEAN;
+			case 'n':
+				readLiteral("null");
+				return Token.NULL;
+			case -1:
+				throw syntaxError("Unexpected end of document");
+			default:
+				if (c == '-' || (c >= '0' && c <= '9')) {
+					pos--;
+					readNumber();
+					return Token.NUMBER;
+				}
+				throw syntaxError("Unexpected character '" + (char) c + "'");
+		}
+	}
+
+	/**
+	 * Read a string into {@link #text}; the opening quote has been consumed.
+	 */
+	private void readString() throws IOException {
+		text.setLength(0);
+		while (true) {
+			int start = pos;
+			while (pos < limit) {
+				char c = buffer[pos++];
+				if (c == '"') {
+					text.append(buffer, start, pos - 1 - start);
+					return;
+				}
+				if (c == '\\') {
+					text.append(buffer, start, pos - 1 - start);
+					text.append(readEscape());
+					start = pos;
+				}
+			}
+			text.append(buffer, start, pos - start);
+			if (!fill()) throw syntaxError("Unterminated string");
+		}
+	}
+
+	private char readEscape() throws IOException {
+		int c = read();
+		switch (c) {
+			case '"': case '\\': case '/': return (char) c;
+			case 'b': return '\b';
+			case 'f': return '\f';
+			case 'n': return '\n';
+			case 'r': return '\r';
+			case 't': return '\t';
+			case 'u': {
+				int value = 0;
+				for (int i = 0; i < 4; i++) {
+					int digit = Character.digit(read(), 16);
+					if (digit < 0) throw syntaxError("Malformed \\u escape");
+					value = (value << 4) | digit;
+				}
+				return (char) value;
+			}
+			default:
+				throw syntaxError("Invalid escape");
+		}
+	}
+
+	private void readNumber() throws IOException {
+		text.setLength(0);
+		while (true) {
+			if (pos == limit && !fill()) return;
+			char c = buffer[pos];
+			if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+				text.append(c);
+				pos++;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void readLiteral(String literal) throws IOException {
+		for (int i = 1; i < literal.length(); i++) {
+			if (read() != literal.charAt(i)) throw syntaxError("Expected " + literal);
+		}
+		text.setLength(0);
+		text.append(literal);
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		while (true) {
+			int c = read();
+			if (c != ' ' && c != '\n' && c != '\r' && c != '\t') return c;
+		}
+	}
+
+	/**
+	 * @return the next char, or -1 at the end of the input
+	 */
+	private int read() throws IOException {
+		if (pos == limit && !fill()) return -1;
+		return buffer[pos++];
+	}
+
+	private boolean fill() throws IOException {
+		consumed += limit;
+		pos = 0;
+		limit = 0;
+		int n = in.read(buffer, 0, buffer.length);
+		if (n <= 0) return false;
+		limit = n;
+		return true;
+	}
+
+	private IOException syntaxError(String message) {
+		return new IOException(message + " at offset " + (consumed + pos));
+	}
+}
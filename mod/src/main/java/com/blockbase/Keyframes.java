@@ -0,0 +1,298 @@
+package com.blockbase;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Keyframes: snapshots of the state of every tracked position as of a commit, so rebuilding
+ * the world of any commit takes the nearest keyframe plus a bounded number of commits instead
+ * of a replay of the whole history.
+ *
+ * A keyframe is written for a commit once INTERVAL commits or CHANGE_THRESHOLD changes have
+ * accumulated along its history since the previous keyframe. It lives in the
+ * {@link ObjectStore} under an id derived from the commit id (see {@link #idFor}) and is
+ * split like a commit: one section object per chunk section, holding section-relative
+ * positions and palette-compressed states, so sections that did not change between two
+ * keyframes are stored once.
+ *
+ * Keyframe object: a 12-byte header (KEYFRAME_MAGIC, format version, reserved), the commit
+ * id, a varint dimension count and per dimension its name and a varint section count with
+ * (long section key, 20-byte section id, varint entry count) per section, then a CRC32 of
+ * everything before it. Section object: a 12-byte header (SECTION_MAGIC, format version,
+ * reserved), a palette as in a commit run, a varint entry count and per entry a varint
+ * delta of the ascending section-relative index and varint stateIndex + 1 (0 means no block).
+ */
+public final class Keyframes {
+	static final int KEYFRAME_MAGIC = 0x42424b31; // "BBK1"
+	static final int SECTION_MAGIC = 0x42425331; // "BBS1"
+	static final int VERSION = 1;
+	static final int INTERVAL = 32;
+	static final long CHANGE_THRESHOLD = 250_000;
+
+	private Keyframes() {}
+
+	/**
+	 * Receives one tracked position and its state.
+	 */
+	public interface Visitor {
+		void accept(ResourceKey<Level> dimension, int x, int y, int z, int stateId);
+	}
+
+	/**
+	 * @return the object id of the keyframe of {@code commitId}
+	 */
+	public static String idFor(String commitId) {
+		return ObjectStore.hash(("keyframe " + commitId).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return the newest commit from {@code commitId} back through its parents that has a
+	 *         keyframe, or null if none has
+	 */
+	public static String nearest(ObjectSource store, CommitGraph graph, String commitId) {
+		for (String id = commitId; id != null; id = graph.parentOf(id)) {
+			if (store.contains(idFor(id))) {
+				return id;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Visit the state of every position tracked as of commit {@code commitId}, rebuilt from
+	 * the nearest keyframe and the commits after it. A position may be visited more than
+	 * once; the last visit holds its state.
+	 * @param dimension only visit this dimension, or null for all
+	 * @param min       with {@code max}, only visit positions inside this box (inclusive); null for all
+	 * @param sections  with a dimension and box, skip commits it shows did not touch the box; may be null
+	 */
+	public static void replay(ObjectSource store, CommitGraph graph, SectionIndex sections, String commitId,
+							  ResourceKey<Level> dimension, BlockPos min, BlockPos max, Visitor out) throws IOException {
+		String base = nearest(store, graph, commitId);
+		if (base != null) {
+			read(store, base, dimension, min, max, out);
+		}
+		int[] touching = null;
+		int lastIndexed = -1;
+		if (sections != null && dimension != null && min != null) {
+			lastIndexed = sections.lastIndexed();
+			touching = sections.commitsTouching(dimension, min, max);
+		}
+		List<String> history = graph.history(commitId);
+		for (int i = base == null ? 0 : history.indexOf(base) + 1; i < history.size(); i++) {
+			if (touching != null) {
+				int offset = graph.offsetOf(history.get(i));
+				if (offset >= 0 && offset <= lastIndexed && Arrays.binarySearch(touching, offset) < 0) continue;
+			}
+			ChangeCursor changes = ChangeCursor.open(store, history.get(i));
+			if (dimension != null && changes.getDimension() != dimension) continue;
+			if (min != null) {
+				changes.setBounds(min, max);
+			}
+			while (changes.next()) {
+				out.accept(changes.getDimension(), changes.getX(), changes.getY(), changes.getZ(), changes.getNewStateId());
+			}
+		}
+	}
+
+	/**
+	 * Write a keyframe for {@code commitId} if enough history has built up since the last one.
+	 * @return true if a keyframe was written
+	 */
+	public static boolean writeIfDue(ObjectStore store, CommitGraph graph, String commitId) throws IOException {
+		int commits = 0;
+		long changes = 0;
+		for (String id = commitId; id != null && !store.contains(idFor(id)); id = graph.parentOf(id)) {
+			commits++;
+			if (changes < CHANGE_THRESHOLD) {
+				byte[] data = store.get(id);
+				if (data == null) throw new IOException("Missing commit " + id);
+				changes += CommitCodec.changeCount(ByteBuffer.wrap(data));
+			}
+			if (commits >= INTERVAL || changes >= CHANGE_THRESHOLD) {
+				write(store, graph, commitId);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Build and store the keyframe of {@code commitId} from the nearest earlier keyframe.
+	 */
+	static void write(ObjectStore store, CommitGraph graph, String commitId) throws IOException {
+		// Section key -> (section-relative index -> state id), per dimension
+		Map<ResourceKey<Level>, Long2ObjectOpenHashMap<Int2IntOpenHashMap>> state = new LinkedHashMap<>();
+		replay(store, graph, null, commitId, null, null, null, (dimension, x, y, z, stateId) -> {
+			Long2ObjectOpenHashMap<Int2IntOpenHashMap> sections = state.get(dimension);
+			if (sections == null) {
+				sections = new Long2ObjectOpenHashMap<>();
+				state.put(dimension, sections);
+			}
+			long key = SectionPos.asLong(SectionPos.blockToSectionCoord(x), SectionPos.blockToSectionCoord(y), SectionPos.blockToSectionCoord(z));
+			Int2IntOpenHashMap section = sections.get(key);
+			if (section == null) {
+				section = new Int2IntOpenHashMap();
+				sections.put(key, section);
+			}
+			section.put((SectionPos.sectionRelative(y) << 8) | (SectionPos.sectionRelative(z) << 4) | SectionPos.sectionRelative(x), stateId);
+		});
+
+		ObjectStore.Batch batch = store.batch();
+		CommitCodec.Output out = new CommitCodec.Output(256);
+		writeHeader(out, KEYFRAME_MAGIC);
+		out.writeString(commitId);
+		out.writeVarInt(state.size());
+		for (Map.Entry<ResourceKey<Level>, Long2ObjectOpenHashMap<Int2IntOpenHashMap>> dimension : state.entrySet()) {
+			out.writeString(dimension.getKey().location().toString());
+			long[] keys = dimension.getValue().keySet().toLongArray();
+			Arrays.sort(keys);
+			out.writeVarInt(keys.length);
+			for (long key : keys) {
+				Int2IntOpenHashMap section = dimension.getValue().get(key);
+				out.writeLong(key);
+				out.write(ObjectStore.idBytes(batch.put(encodeSection(section))), 0, ObjectStore.ID_BYTES);
+				out.writeVarInt(section.size());
+			}
+		}
+		CRC32 crc = new CRC32();
+		crc.update(out.buffer(), 0, out.size());
+		out.writeInt((int) crc.getValue());
+		batch.put(idFor(commitId), out.toByteArray());
+		batch.commit();
+	}
+
+	private static byte[] encodeSection(Int2IntOpenHashMap section) {
+		int[] locals = section.keySet().toIntArray();
+		Arrays.sort(locals);
+		StatePalette palette = new StatePalette();
+		int[] indices = new int[locals.length];
+		for (int i = 0; i < locals.length; i++) {
+			indices[i] = palette.indexOf(section.get(locals[i]));
+		}
+
+		CommitCodec.Output out = new CommitCodec.Output(CommitCodec.HEADER_BYTES + palette.size() * 32 + locals.length * 3);
+		writeHeader(out, SECTION_MAGIC);
+		out.writeVarInt(palette.size());
+		for (int i = 0; i < palette.size(); i++) {
+			out.writeString(palette.name(i));
+		}
+		out.writeVarInt(locals.length);
+		int previous = 0;
+		for (int i = 0; i < locals.length; i++) {
+			out.writeVarInt(locals[i] - previous);
+			out.writeVarInt(indices[i] + 1);
+			previous = locals[i];
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Visit the entries of the keyframe of {@code commitId}. Section objects outside the box
+	 * are not loaded.
+	 */
+	private static void read(ObjectSource store, String commitId, ResourceKey<Level> dimension,
+							 BlockPos min, BlockPos max, Visitor out) throws IOException {
+		ByteBuffer in = store.get(idFor(commitId), null);
+		if (in == null) {
+			throw new IOException("Missing keyframe of " + commitId);
+		}
+		try {
+			CommitCodec.verifyChecksum(in);
+			readHeader(in, KEYFRAME_MAGIC);
+			CommitCodec.readString(in); // commit id
+			int dimensions = CommitCodec.readVarInt(in);
+			ByteBuffer section = null;
+			for (int d = 0; d < dimensions; d++) {
+				ResourceKey<Level> key = Formats.parseDimension(CommitCodec.readString(in));
+				int sections = CommitCodec.readVarInt(in);
+				byte[] id = new byte[ObjectStore.ID_BYTES];
+				for (int s = 0; s < sections; s++) {
+					long sectionKey = in.getLong();
+					in.get(id);
+					int count = CommitCodec.readVarInt(in);
+					int baseX = SectionPos.sectionToBlockCoord(SectionPos.x(sectionKey));
+					int baseY = SectionPos.sectionToBlockCoord(SectionPos.y(sectionKey));
+					int baseZ = SectionPos.sectionToBlockCoord(SectionPos.z(sectionKey));
+					if ((dimension != null && key != dimension) || (min != null && !intersects(baseX, baseY, baseZ, min, max))) {
+						continue;
+					}
+					section = store.get(ObjectStore.hex(id), section);
+					if (section == null) {
+						throw new IOException("Missing keyframe section " + ObjectStore.hex(id));
+					}
+					readSection(section, count, key, baseX, baseY, baseZ, min, max, out);
+				}
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("Truncated or corrupt keyframe of " + commitId, e);
+		}
+	}
+
+	private static void readSection(ByteBuffer in, int expected, ResourceKey<Level> dimension, int baseX, int baseY, int baseZ,
+									BlockPos min, BlockPos max, Visitor out) throws IOException {
+		readHeader(in, SECTION_MAGIC);
+		int paletteSize = CommitCodec.readVarInt(in);
+		List<String> names = new ArrayList<>(paletteSize);
+		for (int i = 0; i < paletteSize; i++) {
+			names.add(CommitCodec.readString(in));
+		}
+		int[] palette = StatePalette.resolve(names);
+		int count = CommitCodec.readVarInt(in);
+		if (count != expected) {
+			throw new IOException("Keyframe section holds " + count + " entries, expected " + expected);
+		}
+		int local = 0;
+		for (int i = 0; i < count; i++) {
+			local += CommitCodec.readVarInt(in);
+			int index = CommitCodec.readVarInt(in) - 1;
+			if (index >= paletteSize || (local & ~0xFFF) != 0) {
+				throw new IOException("Corrupt keyframe section entry " + i);
+			}
+			int x = baseX + (local & 15);
+			int y = baseY + (local >> 8);
+			int z = baseZ + ((local >> 4) & 15);
+			if (min != null && (x < min.getX() || x > max.getX() || y < min.getY() || y > max.getY() || z < min.getZ() || z > max.getZ())) {
+				continue;
+			}
+			out.accept(dimension, x, y, z, StatePalette.lookup(palette, index));
+		}
+	}
+
+	private static boolean intersects(int baseX, int baseY, int baseZ, BlockPos min, BlockPos max) {
+		return baseX + 15 >= min.getX() && baseX <= max.getX()
+			&& baseY + 15 >= min.getY() && baseY <= max.getY()
+			&& baseZ + 15 >= min.getZ() && baseZ <= max.getZ();
+	}
+
+	private static void writeHeader(CommitCodec.Output out, int magic) {
+		out.writeInt(magic);
+		out.writeInt(VERSION);
+		out.writeInt(0);
+	}
+
+	private static void readHeader(ByteBuffer in, int magic) throws IOException {
+		if (in.remaining() < CommitCodec.HEADER_BYTES || in.getInt() != magic) {
+			throw new IOException("Not a Blockbase keyframe object");
+		}
+		int version = in.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported keyframe format version " + version);
+		}
+		in.getInt(); // reserved
+	}
+}
@@ -0,0 +1,18 @@
+package com.blockbase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Read access to stored objects: the {@link ObjectStore} itself, or a {@link CommitCache}
+ * in front of it.
+ */
+public interface ObjectSource {
+	/**
+	 * @param buffer a buffer from an earlier call that may be reused, or null
+	 * @return a buffer holding exactly the object's bytes, or null if there is no such object
+	 */
+	ByteBuffer get(String id, ByteBuffer buffer) throws IOException;
+
+	boolean contains(String id);
+}
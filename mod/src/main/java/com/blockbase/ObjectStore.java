@@ -0,0 +1,777 @@
+package com.blockbase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Content-addressed object store in .blockbase/objects.
+ *
+ * Objects are immutable byte arrays keyed by a 20-byte SHA-1, written as 40 hex digits.
+ * New objects are written loose to objects/<2 hex>/<38 hex> as [int rawLength][deflate data];
+ * storing an object that already exists is a no-op, so identical content is kept once.
+ *
+ * Large write batches are written as a pack of their own instead (see {@link #batch()}).
+ *
+ * {@link #pack()} (run by /bb gc) rolls the loose objects and existing packs into a single
+ * pack: pack/pack-<hash>.pack holds the compressed objects back to back behind a 12-byte
+ * header, and pack/pack-<hash>.idx is a 12-byte header followed by fixed-size entries
+ * (id, long offset, int compressedLength, int rawLength) sorted by id, so a lookup is a
+ * binary search over the mapped index. Pack files are memory-mapped too, so reading a
+ * packed object inflates straight out of the page cache.
+ *
+ * Thread-safe. A new pack is installed before the loose files and packs it replaces are
+ * deleted, and readers that lose a race with the deletion retry against the new pack.
+ */
+public class ObjectStore implements ObjectSource, AutoCloseable {
+	public static final int ID_BYTES = 20;
+
+	static final int PACK_MAGIC = 0x42425031; // "BBP1"
+	static final int INDEX_MAGIC = 0x42424931; // "BBI1"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 12;
+	static final int INDEX_ENTRY_BYTES = ID_BYTES + 16;
+	// Batches with at least this many new objects are written as a pack instead of loose files
+	static final int BATCH_PACK_THRESHOLD = 32;
+	// Batches write out what they hold once it reaches this many bytes
+	static final long BATCH_FLUSH_BYTES = 8L << 20;
+
+	private final Path dir;
+	private final Path packDir;
+	private volatile List<Pack> packs; // immutable, replaced as a whole by pack()
+	private final Object packLock = new Object(); // one pack() at a time
+
+	private ObjectStore(Path dir, List<Pack> packs) {
+		this.dir = dir;
+		this.packDir = dir.resolve("pack");
+		this.packs = packs;
+	}
+
+	/**
+	 * Open (creating if needed) the store in {@code dir} and map the indexes of its packs.
+	 */
+	public static ObjectStore open(Path dir) throws IOException {
+		Path packDir = dir.resolve("pack");
+		Files.createDirectories(packDir);
+		List<Pack> packs = new ArrayList<>();
+		try (Stream<Path> files = Files.list(packDir)) {
+			for (Path idx : (Iterable<Path>) files.filter(p -> p.getFileName().toString().endsWith(".idx"))::iterator) {
+				try {
+					packs.add(Pack.open(idx));
+				} catch (IOException e) {
+					Blockbase.LOGGER.error("Ignoring unreadable object pack {}", idx, e);
+				}
+			}
+		}
+		return new ObjectStore(dir, Collections.unmodifiableList(packs));
+	}
+
+	/**
+	 * @return the hex SHA-1 of {@code data}, the id {@link #put(byte[])} stores it under
+	 */
+	public static String hash(byte[] data) {
+		return hex(sha1().digest(data));
+	}
+
+	/**
+	 * Store {@code data} under its content hash.
+	 * @return the object id
+	 */
+	public String put(byte[] data) throws IOException {
+		String id = hash(data);
+		put(id, data);
+		return id;
+	}
+
+	/**
+	 * Store {@code data} under an id that already identifies its content (a commit id).
+	 */
+	public void put(String id, byte[] data) throws IOException {
+		if (contains(id)) {
+			return;
+		}
+		Path target = loosePath(id);
+		Files.createDirectories(target.getParent());
+		Path tmp = target.resolveSibling("tmp-" + UUID.randomUUID());
+		ByteBuffer stored = stored(data);
+		try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			while (stored.hasRemaining()) {
+				ch.write(stored);
+			}
+		}
+		try {
+			Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (FileAlreadyExistsException e) {
+			Files.deleteIfExists(tmp); // Written concurrently; the content is the same
+		}
+	}
+
+	/**
+	 * Start a loose object whose content is streamed in rather than built in memory first.
+	 * It is deflated into a temporary file as it is written and only appears in the store
+	 * when {@link ObjectWriter#commit(String)} renames it into place; closing the writer
+	 * without committing deletes it.
+	 */
+	public ObjectWriter newObject() throws IOException {
+		return new ObjectWriter(dir.resolve("tmp-" + UUID.randomUUID()));
+	}
+
+	public boolean contains(String id) {
+		byte[] key = idBytes(id);
+		while (true) {
+			List<Pack> current = packs;
+			try {
+				for (Pack pack : current) {
+					if (pack.contains(key)) return true;
+				}
+				return Files.exists(loosePath(id));
+			} catch (NoSuchFileException e) {
+				if (current == packs) return false;
+			}
+			// A concurrent pack() replaced what we were reading; the new pack has it
+		}
+	}
+
+	/**
+	 * @return the object's bytes, or null if there is no such object
+	 */
+	public byte[] get(String id) throws IOException {
+		ByteBuffer data = get(id, null);
+		return data == null ? null : data.array();
+	}
+
+	/**
+	 * Read an object into {@code buffer}, reusing it if it is large enough; for readers that
+	 * go through many objects one at a time.
+	 * @param buffer a heap buffer from an earlier call, or null
+	 * @return a buffer holding exactly the object's bytes ({@code buffer} or a larger
+	 *         replacement), or null if there is no such object
+	 */
+	public ByteBuffer get(String id, ByteBuffer buffer) throws IOException {
+		byte[] key = idBytes(id);
+		while (true) {
+			List<Pack> current = packs;
+			try {
+				for (Pack pack : current) {
+					ByteBuffer data = pack.read(key, buffer);
+					if (data != null) return data;
+				}
+				ByteBuffer data = readLoose(id, buffer);
+				if (data != null || current == packs) return data;
+			} catch (NoSuchFileException e) {
+				if (current == packs) throw e;
+			}
+			// A concurrent pack() replaced what we were reading; the new pack has it
+		}
+	}
+
+	/**
+	 * @return the number of loose objects (walks the fan-out directories)
+	 */
+	public int countLoose() throws IOException {
+		return listLoose().size();
+	}
+
+	public int countPacks() {
+		return packs.size();
+	}
+
+	/**
+	 * Start a batch of writes. Objects put into a batch become visible together when it is
+	 * committed: loose if there are only a few, otherwise as a pack of their own, so one
+	 * large commit does not leave hundreds of loose files behind.
+	 */
+	public Batch batch() {
+		return new Batch();
+	}
+
+	/**
+	 * Roll every loose object and existing pack into one new pack, then delete what it replaced.
+	 * Objects and packs written while this runs are left for the next call.
+	 * @return number of objects in the new pack, or 0 if there was nothing to do
+	 */
+	public int pack() throws IOException {
+		synchronized (packLock) {
+			List<Path> loose = listLoose();
+			List<Pack> old = packs;
+			if (loose.isEmpty() && old.size() <= 1) {
+				return 0;
+			}
+
+			// Sorted by id; packed copies win over loose ones, so they are copied without inflating
+			TreeMap<String, Source> sources = new TreeMap<>();
+			for (Path p : loose) {
+				sources.put(p.getParent().getFileName().toString() + p.getFileName(), () -> ByteBuffer.wrap(Files.readAllBytes(p)));
+			}
+			for (Pack pack : old) {
+				for (int i = 0; i < pack.count; i++) {
+					int slot = i;
+					sources.put(hex(pack.idAt(i)), () -> pack.readStored(slot));
+				}
+			}
+
+			Pack packed = writePack(sources);
+			if (packed == null) {
+				// Same object set as an existing pack: only the loose copies are redundant
+				deleteAll(loose);
+				return 0;
+			}
+			synchronized (this) {
+				List<Pack> next = new ArrayList<>(packs);
+				next.removeAll(old);
+				next.add(packed);
+				packs = Collections.unmodifiableList(next);
+			}
+			deleteAll(loose);
+			for (Pack pack : old) {
+				// Only once unmapped: a file cannot be deleted while mapped on some platforms
+				if (pack.close()) {
+					deleteAll(List.of(pack.packFile, pack.idxFile));
+				} else {
+					Blockbase.LOGGER.warn("Keeping replaced pack {} until it can be unmapped; it is packed again later", pack.packFile.getFileName());
+				}
+			}
+			Blockbase.LOGGER.info("Packed {} objects ({} loose, {} packs) into {}", sources.size(), loose.size(), old.size(), packed.packFile.getFileName());
+			return sources.size();
+		}
+	}
+
+	/**
+	 * Write {@code sources} as a new pack named after the ids it holds.
+	 * @return the opened pack, or null if a loaded pack already holds exactly these objects
+	 */
+	private Pack writePack(TreeMap<String, Source> sources) throws IOException {
+		MessageDigest name = sha1();
+		for (String id : sources.keySet()) {
+			name.update(idBytes(id));
+		}
+		String base = "pack-" + hex(name.digest());
+		Path packFile = packDir.resolve(base + ".pack");
+		Path idxFile = packDir.resolve(base + ".idx");
+		for (Pack pack : packs) {
+			if (pack.idxFile.equals(idxFile)) return null;
+		}
+		if (Files.exists(idxFile)) {
+			// Kept by an earlier pack() that could not unmap it; it holds exactly these objects
+			return Pack.open(idxFile);
+		}
+
+		Path packTmp = packDir.resolve(base + ".pack.tmp");
+		Path idxTmp = packDir.resolve(base + ".idx.tmp");
+		ByteBuffer index = ByteBuffer.allocate(HEADER_BYTES + sources.size() * INDEX_ENTRY_BYTES);
+		index.putInt(INDEX_MAGIC).putInt(VERSION).putInt(sources.size());
+		try (FileChannel out = FileChannel.open(packTmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(PACK_MAGIC).putInt(VERSION).putInt(sources.size());
+			header.flip();
+			out.write(header);
+			long offset = HEADER_BYTES;
+			for (Map.Entry<String, Source> entry : sources.entrySet()) {
+				ByteBuffer stored = entry.getValue().read();
+				int rawLength = stored.getInt();
+				int compressedLength = stored.remaining();
+				while (stored.hasRemaining()) {
+					out.write(stored);
+				}
+				index.put(idBytes(entry.getKey())).putLong(offset).putInt(compressedLength).putInt(rawLength);
+				offset += compressedLength;
+			}
+			out.force(true);
+		}
+		index.flip();
+		try (FileChannel out = FileChannel.open(idxTmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while (index.hasRemaining()) {
+				out.write(index);
+			}
+			out.force(true);
+		}
+		// The pack must be in place before its index makes it visible to open()
+		Files.move(packTmp, packFile, StandardCopyOption.ATOMIC_MOVE);
+		Files.move(idxTmp, idxFile, StandardCopyOption.ATOMIC_MOVE);
+		return Pack.open(idxFile);
+	}
+
+	/**
+	 * Objects waiting to be written by {@link #commit()}, in insertion order.
+	 * Not thread-safe; use one batch per writer.
+	 */
+	public final class Batch {
+		private final Map<String, byte[]> pending = new java.util.LinkedHashMap<>();
+		private long pendingBytes;
+
+		private Batch() {}
+
+		/**
+		 * Add {@code data} under its content hash unless the store already has it.
+		 * @return the object id
+		 */
+		public String put(byte[] data) throws IOException {
+			String id = hash(data);
+			put(id, data);
+			return id;
+		}
+
+		/**
+		 * @return true if the object is in the store or waiting in this batch
+		 */
+		public boolean contains(String id) {
+			return pending.containsKey(id) || ObjectStore.this.contains(id);
+		}
+
+		/**
+		 * Add {@code data} under an id that already identifies its content (a commit id).
+		 * Once the batch holds BATCH_FLUSH_BYTES it is written out early, so a large batch
+		 * does not keep all of its objects in memory.
+		 */
+		public void put(String id, byte[] data) throws IOException {
+			if (!contains(id)) {
+				pending.put(id, data);
+				pendingBytes += data.length;
+				if (pendingBytes >= BATCH_FLUSH_BYTES) {
+					commit();
+				}
+			}
+		}
+
+		/**
+		 * Write the batch. Loose objects are written in insertion order, so put an object
+		 * after the objects it refers to.
+		 */
+		public void commit() throws IOException {
+			if (pending.size() < BATCH_PACK_THRESHOLD) {
+				for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+					ObjectStore.this.put(entry.getKey(), entry.getValue());
+				}
+			} else {
+				TreeMap<String, Source> sources = new TreeMap<>();
+				for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+					byte[] data = entry.getValue();
+					sources.put(entry.getKey(), () -> stored(data));
+				}
+				Pack pack = writePack(sources);
+				if (pack != null) {
+					synchronized (ObjectStore.this) {
+						List<Pack> next = new ArrayList<>(packs);
+						next.add(pack);
+						packs = Collections.unmodifiableList(next);
+					}
+				}
+			}
+			pending.clear();
+			pendingBytes = 0;
+		}
+	}
+
+	/**
+	 * A loose object being streamed to a temporary file; see {@link #newObject()}.
+	 * Not thread-safe.
+	 */
+	public final class ObjectWriter extends OutputStream {
+		private final Path tmp;
+		private final FileChannel channel;
+		private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		private final DeflaterOutputStream out;
+		private long rawLength;
+		private boolean committed;
+		private boolean closed;
+
+		private ObjectWriter(Path tmp) throws IOException {
+			this.tmp = tmp;
+			this.channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			channel.position(4); // rawLength, filled in by commit()
+			this.out = new DeflaterOutputStream(Channels.newOutputStream(channel), deflater, 8192);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			rawLength++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			rawLength += len;
+		}
+
+		/**
+		 * Finish the object and store it under {@code id}, an id that identifies its content.
+		 * If the store already has the object the new copy is discarded.
+		 */
+		public void commit(String id) throws IOException {
+			if (rawLength > Integer.MAX_VALUE) {
+				throw new IOException("Object too large to store: " + rawLength + " bytes");
+			}
+			out.finish();
+			ByteBuffer header = ByteBuffer.allocate(4).putInt(0, (int) rawLength);
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			committed = true;
+			close();
+
+			Path target = loosePath(id);
+			if (contains(id)) {
+				Files.deleteIfExists(tmp);
+				return;
+			}
+			Files.createDirectories(target.getParent());
+			try {
+				Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+			} catch (FileAlreadyExistsException e) {
+				Files.deleteIfExists(tmp); // Written concurrently; the content is the same
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			deflater.end();
+			channel.close();
+			if (!committed) {
+				Files.deleteIfExists(tmp);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		List<Pack> closing = packs;
+		packs = Collections.emptyList();
+		for (Pack pack : closing) {
+			pack.close();
+		}
+	}
+
+	/**
+	 * @return {@code data} in its stored form: [int rawLength][deflate data]
+	 */
+	private static ByteBuffer stored(byte[] data) {
+		byte[] compressed = deflate(data);
+		ByteBuffer out = ByteBuffer.allocate(4 + compressed.length);
+		out.putInt(data.length).put(compressed);
+		out.flip();
+		return out;
+	}
+
+	private ByteBuffer readLoose(String id, ByteBuffer buffer) throws IOException {
+		Path file = loosePath(id);
+		if (!Files.exists(file)) {
+			return null;
+		}
+		ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+		int rawLength = data.getInt();
+		return inflate(data.slice(), rawLength, buffer);
+	}
+
+	private List<Path> listLoose() throws IOException {
+		List<Path> out = new ArrayList<>();
+		try (Stream<Path> fanout = Files.list(dir)) {
+			for (Path sub : (Iterable<Path>) fanout.filter(p -> p.getFileName().toString().length() == 2 && Files.isDirectory(p))::iterator) {
+				try (Stream<Path> files = Files.list(sub)) {
+					files.filter(p -> p.getFileName().toString().length() == 2 * ID_BYTES - 2).forEach(out::add);
+				}
+			}
+		}
+		return out;
+	}
+
+	private Path loosePath(String id) {
+		return dir.resolve(id.substring(0, 2)).resolve(id.substring(2));
+	}
+
+	private static void deleteAll(List<Path> files) {
+		for (Path p : files) {
+			try {
+				Files.deleteIfExists(p);
+			} catch (IOException e) {
+				Blockbase.LOGGER.warn("Failed to delete packed object file {}", p, e);
+			}
+		}
+	}
+
+	static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			byte[] buf = new byte[Math.max(64, data.length / 2)];
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == buf.length) {
+					buf = java.util.Arrays.copyOf(buf, buf.length * 2);
+				}
+				length += deflater.deflate(buf, length, buf.length - length);
+			}
+			return java.util.Arrays.copyOf(buf, length);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @param buffer reused if it has room for {@code rawLength} bytes, else a new buffer is allocated
+	 * @return the inflated bytes, from position 0 to the limit
+	 */
+	static ByteBuffer inflate(ByteBuffer compressed, int rawLength, ByteBuffer buffer) throws IOException {
+		ByteBuffer out = buffer != null && buffer.capacity() >= rawLength ? buffer.clear() : ByteBuffer.allocate(rawLength);
+		out.limit(rawLength);
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			while (out.hasRemaining() && !inflater.finished()) {
+				int n = inflater.inflate(out);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Truncated object data");
+				}
+			}
+			if (out.hasRemaining()) {
+				throw new IOException("Object inflated to " + out.position() + " bytes, expected " + rawLength);
+			}
+			return out.flip();
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt object data", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not available", e);
+		}
+	}
+
+	static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	static byte[] idBytes(String id) {
+		if (id.length() != 2 * ID_BYTES) {
+			throw new IllegalArgumentException("Not an object id: " + id);
+		}
+		byte[] out = new byte[ID_BYTES];
+		for (int i = 0; i < ID_BYTES; i++) {
+			int hi = Character.digit(id.charAt(2 * i), 16);
+			int lo = Character.digit(id.charAt(2 * i + 1), 16);
+			if (hi < 0 || lo < 0) {
+				throw new IllegalArgumentException("Not an object id: " + id);
+			}
+			out[i] = (byte) ((hi << 4) | lo);
+		}
+		return out;
+	}
+
+	/**
+	 * An object to copy into a pack, read in stored form ([int rawLength][deflate data]).
+	 */
+	private interface Source {
+		ByteBuffer read() throws IOException;
+	}
+
+	/**
+	 * One mapped pack file and its mapped index. Reads hold the pack open, so {@link #close}
+	 * can unmap it once they are done; reads after that fail with NoSuchFileException.
+	 */
+	private static final class Pack {
+		final Path packFile;
+		final Path idxFile;
+		final MappedByteBuffer index;
+		final MappedByteBuffer data;
+		final int count;
+		private int readers; // guarded by this
+		private boolean closed; // guarded by this
+
+		private Pack(Path packFile, Path idxFile, MappedByteBuffer index, MappedByteBuffer data, int count) {
+			this.packFile = packFile;
+			this.idxFile = idxFile;
+			this.index = index;
+			this.data = data;
+			this.count = count;
+		}
+
+		static Pack open(Path idxFile) throws IOException {
+			String name = idxFile.getFileName().toString();
+			Path packFile = idxFile.resolveSibling(name.substring(0, name.length() - ".idx".length()) + ".pack");
+			MappedByteBuffer index;
+			try (FileChannel ch = FileChannel.open(idxFile, StandardOpenOption.READ)) {
+				index = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			}
+			if (index.capacity() < HEADER_BYTES || index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION) {
+				ChangeJournal.unmap(index);
+				throw new IOException("Not a Blockbase pack index: " + idxFile);
+			}
+			int count = index.getInt(8);
+			if (index.capacity() != HEADER_BYTES + (long) count * INDEX_ENTRY_BYTES) {
+				ChangeJournal.unmap(index);
+				throw new IOException("Truncated pack index: " + idxFile);
+			}
+			MappedByteBuffer data;
+			try (FileChannel ch = FileChannel.open(packFile, StandardOpenOption.READ)) {
+				if (ch.size() > Integer.MAX_VALUE) {
+					throw new IOException("Pack file too large to map: " + packFile);
+				}
+				data = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			} catch (IOException e) {
+				ChangeJournal.unmap(index);
+				throw e;
+			}
+			return new Pack(packFile, idxFile, index, data, count);
+		}
+
+		/**
+		 * @return the index slot holding {@code key}, or -1
+		 */
+		int find(byte[] key) {
+			int lo = 0;
+			int hi = count - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int cmp = compareAt(mid, key);
+				if (cmp < 0) lo = mid + 1;
+				else if (cmp > 0) hi = mid - 1;
+				else return mid;
+			}
+			return -1;
+		}
+
+		private int compareAt(int slot, byte[] key) {
+			int base = HEADER_BYTES + slot * INDEX_ENTRY_BYTES;
+			for (int i = 0; i < ID_BYTES; i++) {
+				int cmp = Integer.compare(index.get(base + i) & 0xFF, key[i] & 0xFF);
+				if (cmp != 0) return cmp;
+			}
+			return 0;
+		}
+
+		boolean contains(byte[] key) throws NoSuchFileException {
+			acquire();
+			try {
+				return find(key) >= 0;
+			} finally {
+				release();
+			}
+		}
+
+		byte[] idAt(int slot) throws NoSuchFileException {
+			acquire();
+			try {
+				byte[] id = new byte[ID_BYTES];
+				index.get(HEADER_BYTES + slot * INDEX_ENTRY_BYTES, id);
+				return id;
+			} finally {
+				release();
+			}
+		}
+
+		int rawLengthAt(int slot) {
+			return index.getInt(HEADER_BYTES + slot * INDEX_ENTRY_BYTES + ID_BYTES + 12);
+		}
+
+		/**
+		 * @return a view of the slot's compressed bytes in the mapped pack
+		 */
+		ByteBuffer readCompressed(int slot) throws IOException {
+			int base = HEADER_BYTES + slot * INDEX_ENTRY_BYTES + ID_BYTES;
+			long offset = index.getLong(base);
+			int length = index.getInt(base + 8);
+			if (offset < HEADER_BYTES || length < 0 || offset + length > data.capacity()) {
+				throw new IOException("Truncated pack file: " + packFile);
+			}
+			return data.slice((int) offset, length);
+		}
+
+		/**
+		 * @return the slot's object in stored form, as in a loose file
+		 */
+		ByteBuffer readStored(int slot) throws IOException {
+			acquire();
+			try {
+				ByteBuffer compressed = readCompressed(slot);
+				ByteBuffer out = ByteBuffer.allocate(4 + compressed.remaining());
+				out.putInt(rawLengthAt(slot)).put(compressed);
+				out.flip();
+				return out;
+			} finally {
+				release();
+			}
+		}
+
+		ByteBuffer read(byte[] key, ByteBuffer buffer) throws IOException {
+			acquire();
+			try {
+				int slot = find(key);
+				if (slot < 0) return null;
+				return inflate(readCompressed(slot), rawLengthAt(slot), buffer);
+			} finally {
+				release();
+			}
+		}
+
+		private synchronized void acquire() throws NoSuchFileException {
+			if (closed) {
+				throw new NoSuchFileException(packFile.toString());
+			}
+			readers++;
+		}
+
+		private synchronized void release() {
+			if (--readers == 0 && closed) {
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Wait for the reads in progress, then unmap the pack and its index.
+		 * @return false if a mapping could not be released (see {@link ChangeJournal#unmap})
+		 */
+		boolean close() {
+			synchronized (this) {
+				if (closed) return false;
+				closed = true;
+				boolean interrupted = false;
+				while (readers > 0) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return ChangeJournal.unmap(index) & ChangeJournal.unmap(data);
+		}
+	}
+}
@@ -1,20 +1,57 @@
 package com.blockbase;
 
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Registry;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceKey;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.storage.LevelResource;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Represents a Blockbase repository stored in the world folder.
  *
  * For MVP this is intentionally simple: a single repo per world, single branch ("main").
+ * Commits live in the content-addressed {@link ObjectStore} in .blockbase/objects,
+ * .blockbase/refs/heads/main (pointed to by HEAD) names the latest one, and the
+ * {@link CommitGraph} gives history order and ancestry without reading commits.
  */
 public class Repository {
+	private static final String HEAD_FILE = "HEAD";
+	private static final String MAIN_REF = "refs/heads/main";
+	private static final String SYMBOLIC_REF_PREFIX = "ref: ";
+
+	// Open repository storage by .blockbase directory, kept for the lifetime of the server
+	private static final Map<Path, Storage> storages = new ConcurrentHashMap<>();
+
+	// Builds keyframes off the server thread, one at a time
+	private static final ExecutorService keyframeWriter = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "Blockbase-Keyframes");
+		t.setDaemon(true);
+		return t;
+	});
 
 	private final String id;
 	private final String name;
@@ -153,73 +190,488 @@ public class Repository {
 	}
 
 	/**
-	 * Get the directory where commits are stored for this world.
-	 * @param world The world
-	 * @return Path to .blockbase/commits
+	 * @return Path to this world's .blockbase folder, or null if the world directory is not available
 	 */
-	public static Path getCommitsDirectory(Level world) {
-		if (world.getServer() == null) {
-			return null;
-		}
-		MinecraftServer server = world.getServer();
+	public static Path getBlockbaseDirectory(MinecraftServer server) {
 		Path worldDir = server.getWorldPath(LevelResource.ROOT);
 		if (worldDir == null) {
 			return null;
 		}
-		return worldDir.resolve(".blockbase").resolve("commits");
+		return worldDir.resolve(".blockbase");
+	}
+
+	/**
+	 * @return Path to .blockbase/exports, where /bb export writes readable copies of commits
+	 */
+	public static Path getExportsDirectory(MinecraftServer server) {
+		Path dir = getBlockbaseDirectory(server);
+		return dir == null ? null : dir.resolve("exports");
+	}
+
+	/**
+	 * Get this world's object store, opening the repository storage on first use.
+	 */
+	public static ObjectStore getObjectStore(MinecraftServer server) throws IOException {
+		return open(server).objects;
+	}
+
+	/**
+	 * @return hit, miss and eviction counts of this world's commit cache (see {@link CommitCache})
+	 */
+	public static CommitCache.Stats getCacheStats(MinecraftServer server) throws IOException {
+		return open(server).cache.stats();
+	}
+
+	/**
+	 * Close every open repository storage (on server stop; the next server may be a different world).
+	 */
+	public static void closeStorage() {
+		synchronized (storages) {
+			for (Storage storage : storages.values()) {
+				storage.close();
+			}
+			storages.clear();
+		}
 	}
 
 	/**
-	 * Save a commit JSON file in .blockbase/commits.
+	 * Store a commit, record it in the commit graph and make it the new HEAD.
+	 * @return false if it could not be written (the error is logged)
 	 */
-	public static void saveCommit(Level world, Commit commit) {
-		Path commitsDir = getCommitsDirectory(world);
-		if (commitsDir == null) {
+	public static boolean saveCommit(Level world, Commit commit) {
+		if (world.getServer() == null) {
 			Blockbase.LOGGER.error("Cannot save commit: world directory not available");
-			return;
+			return false;
 		}
 		try {
-			Files.createDirectories(commitsDir);
-			Path commitFile = commitsDir.resolve(commit.getId() + ".json");
-			Files.writeString(commitFile, commit.toJson(world));
-			Blockbase.LOGGER.info("Saved commit {} to {}", commit.getId(), commitFile);
+			Storage storage = open(world.getServer());
+			ObjectStore.Batch batch = storage.objects.batch();
+			long size;
+			try (ObjectStore.ObjectWriter object = storage.objects.newObject()) {
+				size = CommitCodec.encode(commit, batch, object);
+				batch.commit(); // The runs go in before the commit that refers to them
+				object.commit(commit.getId());
+			}
+			storage.cache.invalidate(commit.getId());
+			int offset = storage.graph.append(commit.getId(), commit.getParentId(), commit.getTimestamp());
+			storage.setHead(commit.getId());
+			// Only in sequence: if an earlier commit is missing, the index catches up when the repository is next opened
+			if (storage.sections.lastIndexed() == offset - 1) {
+				try {
+					storage.sections.add(offset, commit.getDimension(), commit.getTree().sectionKeys());
+				} catch (IOException e) {
+					// Not fatal: area-scoped replays read every commit the index has not caught up with
+					Blockbase.LOGGER.warn("Failed to update the section index for commit {}", commit.getId(), e);
+				}
+			}
+			scheduleKeyframe(storage, commit.getId());
+			Blockbase.LOGGER.info("Saved commit {} ({} changes, {} byte commit object)", commit.getId(), commit.getChanges().size(), size);
+			return true;
 		} catch (IOException e) {
 			Blockbase.LOGGER.error("Failed to save commit {}", commit.getId(), e);
+			return false;
+		}
+	}
+
+	/**
+	 * Read a commit from the object store.
+	 * @param withChanges false to read only the metadata; the commit then has no changes
+	 * @throws IOException if the commit does not exist or cannot be read
+	 */
+	public static Commit readCommit(MinecraftServer server, String id, boolean withChanges) throws IOException {
+		Storage storage = open(server);
+		if (!withChanges) {
+			return storage.cache.metadata(id);
+		}
+		ByteBuffer data = storage.cache.get(id, null);
+		if (data == null) {
+			throw new IOException("No such commit: " + id);
+		}
+		return CommitCodec.decode(data, true, storage.objects);
+	}
+
+	/**
+	 * Open a cursor over a commit's changes, for replays that do not need them as objects.
+	 * @throws IOException if the commit does not exist or cannot be read
+	 */
+	public static ChangeCursor openChanges(MinecraftServer server, String id) throws IOException {
+		return ChangeCursor.open(open(server).cache, id);
+	}
+
+	/**
+	 * Check a stored commit against its hashes: every run must be present and hash to its
+	 * id, in parallel (see {@link CommitTree#verify}), and the commit id must still match the
+	 * one its hash tree gives.
+	 * @return a description of each problem found; empty if the commit is intact
+	 * @throws IOException if the commit does not exist or its object cannot be read
+	 */
+	public static List<String> verifyCommit(MinecraftServer server, String id) throws IOException {
+		ObjectStore store = getObjectStore(server);
+		byte[] data = store.get(id);
+		if (data == null) {
+			throw new IOException("No such commit: " + id);
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		List<String> problems = new ArrayList<>();
+		try {
+			CommitCodec.verifyChecksum(buffer);
+		} catch (IOException e) {
+			problems.add(e.getMessage());
+		}
+		Commit commit = CommitCodec.readMetadata(buffer.duplicate());
+		CommitTree tree = CommitTree.read(buffer);
+		String expected = Commit.idFor(commit.getMessage(), commit.getAuthor(), commit.getTimestamp(),
+			commit.getParentId(), commit.getDimension(), tree);
+		if (!expected.equals(commit.getId()) || !expected.equals(id)) {
+			problems.add("Commit id does not match its content (expected " + expected + ")");
+		}
+		for (long section : tree.verify(store)) {
+			problems.add(String.format("Section %d, %d, %d has a missing or damaged run",
+				SectionPos.x(section), SectionPos.y(section), SectionPos.z(section)));
+		}
+		return problems;
+	}
+
+	/**
+	 * Visit the state of every tracked position in {@code dimension} inside the box from
+	 * {@code min} to {@code max} as of commit {@code id}, starting from the nearest keyframe
+	 * (see {@link Keyframes}). A position may be visited more than once; the last visit wins.
+	 * @throws IOException if a commit or keyframe cannot be read
+	 */
+	public static void replayTo(MinecraftServer server, String id, ResourceKey<Level> dimension,
+								BlockPos min, BlockPos max, Keyframes.Visitor out) throws IOException {
+		Storage storage = open(server);
+		Keyframes.replay(storage.cache, storage.graph, storage.sections, id, dimension, min, max, out);
+	}
+
+	/**
+	 * Compute the net change from commit {@code from} to commit {@code to} from stored
+	 * history, without reading the world.
+	 * @throws IOException if the repository cannot be opened or a commit is missing or corrupt
+	 */
+	public static CommitDiff diffCommits(MinecraftServer server, String from, String to) throws IOException {
+		Storage storage = open(server);
+		return CommitDiff.compute(storage.cache, storage.graph, storage.sections, from, to);
+	}
+
+	/**
+	 * List the commits in the history ending at HEAD that may have changed a block inside
+	 * the box from {@code min} to {@code max} in {@code dimension}, oldest first. Comes from
+	 * the section index, so it can include commits that only changed other blocks in the
+	 * same chunk sections.
+	 * @throws IOException if the repository cannot be opened
+	 */
+	public static List<String> commitsTouching(MinecraftServer server, ResourceKey<Level> dimension,
+											   BlockPos min, BlockPos max) throws IOException {
+		Storage storage = open(server);
+		int lastIndexed = storage.sections.lastIndexed();
+		int[] touching = storage.sections.commitsTouching(dimension, min, max);
+		List<String> ids = new ArrayList<>();
+		for (int offset : storage.graph.historyOffsets(storage.head)) {
+			if (offset > lastIndexed || Arrays.binarySearch(touching, offset) >= 0) {
+				ids.add(storage.graph.idAt(offset));
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * List the commit IDs of the history ending at HEAD, oldest first. Comes from the commit
+	 * graph alone; no commit is read.
+	 * @return the IDs, or an empty list if there are no commits or the repository cannot be opened
+	 */
+	public static List<String> listCommits(MinecraftServer server) {
+		try {
+			Storage storage = open(server);
+			return storage.graph.history(storage.head);
+		} catch (IOException e) {
+			Blockbase.LOGGER.error("Failed to open repository storage", e);
+			return Collections.emptyList();
 		}
 	}
 
 	/**
-	 * Get the latest commit ID for this world by looking at the newest commit file.
-	 * @return commit ID or null if none exist
+	 * @return the ID of the latest commit (HEAD), or null if there are no commits
 	 */
 	public static String getLatestCommitId(Level world) {
-		Path commitsDir = getCommitsDirectory(world);
-		if (commitsDir == null || !Files.exists(commitsDir)) {
+		return world.getServer() == null ? null : getHeadId(world.getServer());
+	}
+
+	public static String getHeadId(MinecraftServer server) {
+		try {
+			return open(server).head;
+		} catch (IOException e) {
+			Blockbase.LOGGER.error("Failed to open repository storage", e);
 			return null;
 		}
-		try {
-			return Files.list(commitsDir)
-				.filter(p -> p.getFileName().toString().endsWith(".json"))
-				.max((a, b) -> {
-					try {
-						long at = Files.getLastModifiedTime(a).toMillis();
-						long bt = Files.getLastModifiedTime(b).toMillis();
-						return Long.compare(at, bt);
-					} catch (IOException e) {
-						return 0;
-					}
-				})
-				.map(p -> {
-					String name = p.getFileName().toString();
-					if (name.endsWith(".json")) {
-						return name.substring(0, name.length() - 5);
+	}
+
+	/**
+	 * Point HEAD (refs/heads/main) at {@code id}. Commits after it are no longer part of
+	 * the history; their objects and graph records stay.
+	 */
+	public static void setHead(MinecraftServer server, String id) throws IOException {
+		open(server).setHead(id);
+	}
+
+	/**
+	 * Roll loose objects into a pack. Slow on large repositories; call off the server thread.
+	 * @return number of objects in the new pack, or 0 if there was nothing to pack
+	 */
+	public static int gc(MinecraftServer server) throws IOException {
+		return getObjectStore(server).pack();
+	}
+
+	/**
+	 * Write a keyframe for a new commit in the background if one is due.
+	 */
+	private static void scheduleKeyframe(Storage storage, String commitId) {
+		keyframeWriter.execute(() -> {
+			try {
+				if (Keyframes.writeIfDue(storage.objects, storage.graph, commitId)) {
+					storage.cache.invalidate(Keyframes.idFor(commitId));
+					Blockbase.LOGGER.info("Wrote keyframe for commit {}", commitId);
+				}
+			} catch (IOException | RuntimeException e) {
+				// Only replay gets slower; the next commit tries again
+				Blockbase.LOGGER.warn("Failed to write keyframe for commit {}", commitId, e);
+			}
+		});
+	}
+
+	private static Storage open(MinecraftServer server) throws IOException {
+		Path dir = getBlockbaseDirectory(server);
+		if (dir == null) {
+			throw new IOException("World directory not available");
+		}
+		Storage storage = storages.get(dir);
+		if (storage != null) {
+			return storage;
+		}
+		synchronized (storages) {
+			storage = storages.get(dir);
+			if (storage == null) {
+				storage = Storage.open(dir);
+				storages.put(dir, storage);
+			}
+			return storage;
+		}
+	}
+
+	/**
+	 * The open storage of one repository: object store, commit graph and HEAD.
+	 *
+	 * .blockbase/HEAD is a symbolic ref ("ref: refs/heads/main") and .blockbase/refs/heads/main
+	 * holds the latest commit ID, which is also kept in memory so HEAD lookups do no I/O.
+	 */
+	private static final class Storage {
+		final Path dir;
+		final ObjectStore objects;
+		final CommitGraph graph;
+		final SectionIndex sections;
+		final CommitCache cache;
+		volatile String head; // null if there are no commits
+
+		private Storage(Path dir, ObjectStore objects, CommitGraph graph, SectionIndex sections) {
+			this.dir = dir;
+			this.objects = objects;
+			this.graph = graph;
+			this.sections = sections;
+			this.cache = new CommitCache(objects, CommitCache.DEFAULT_MAX_WEIGHT);
+		}
+
+		static Storage open(Path dir) throws IOException {
+			ObjectStore objects = ObjectStore.open(dir.resolve("objects"));
+			CommitGraph graph;
+			try {
+				graph = CommitGraph.open(dir.resolve(CommitGraph.FILE_NAME));
+			} catch (IOException e) {
+				objects.close();
+				throw e;
+			}
+			SectionIndex sections;
+			try {
+				sections = SectionIndex.open(dir.resolve(SectionIndex.FILE_NAME));
+			} catch (IOException e) {
+				objects.close();
+				try {
+					graph.close();
+				} catch (IOException suppressed) {
+					e.addSuppressed(suppressed);
+				}
+				throw e;
+			}
+			Storage storage = new Storage(dir, objects, graph, sections);
+			try {
+				storage.head = storage.readHead();
+				storage.importLegacyCommits();
+				storage.indexUngraphedHistory();
+				storage.indexSections();
+			} catch (IOException e) {
+				storage.close();
+				throw e;
+			}
+			return storage;
+		}
+
+		void setHead(String id) throws IOException {
+			writeAtomically(dir.resolve(MAIN_REF), id + "\n");
+			head = id;
+		}
+
+		/**
+		 * Read the commit HEAD points to, creating HEAD in a new repository.
+		 * @throws IOException if HEAD is not a symbolic ref
+		 */
+		private String readHead() throws IOException {
+			Path headFile = dir.resolve(HEAD_FILE);
+			if (!Files.exists(headFile)) {
+				writeAtomically(headFile, SYMBOLIC_REF_PREFIX + MAIN_REF + "\n");
+			}
+			String content = Files.readString(headFile).trim();
+			if (!content.startsWith(SYMBOLIC_REF_PREFIX)) {
+				throw new IOException("HEAD is not a symbolic ref: " + content);
+			}
+			Path ref = dir.resolve(content.substring(SYMBOLIC_REF_PREFIX.length()).trim());
+			String id = Files.exists(ref) ? Files.readString(ref).trim() : "";
+			return id.isEmpty() ? null : id;
+		}
+
+		/**
+		 * Add commits stored before the commit graph existed, found by walking parent links
+		 * back from HEAD until a commit that is already in the graph.
+		 */
+		private void indexUngraphedHistory() throws IOException {
+			List<Commit> missing = new ArrayList<>();
+			Set<String> seen = new HashSet<>();
+			String id = head;
+			while (id != null && !graph.contains(id) && seen.add(id)) {
+				byte[] data = objects.get(id);
+				if (data == null) {
+					Blockbase.LOGGER.warn("History ends at missing commit {}", id);
+					break;
+				}
+				Commit commit = CommitCodec.decode(ByteBuffer.wrap(data), false, objects);
+				missing.add(commit);
+				id = commit.getParentId();
+			}
+			for (int i = missing.size() - 1; i >= 0; i--) {
+				Commit commit = missing.get(i);
+				graph.append(commit.getId(), commit.getParentId(), commit.getTimestamp());
+			}
+			if (!missing.isEmpty()) {
+				Blockbase.LOGGER.info("Added {} commits to the commit graph", missing.size());
+			}
+		}
+
+		/**
+		 * Add the commits in the commit graph that are not yet in the section index, when the
+		 * repository is opened; new commits are indexed as they are saved. A commit that cannot
+		 * be read stops indexing; commits after it are then treated as touching every section
+		 * until the repository is opened again.
+		 */
+		private void indexSections() throws IOException {
+			int first = sections.lastIndexed() + 1;
+			int count = graph.size();
+			for (int offset = first; offset < count; offset++) {
+				String id = graph.idAt(offset);
+				byte[] data = objects.get(id);
+				if (data == null) {
+					throw new IOException("Missing commit " + id);
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				Commit metadata = CommitCodec.readMetadata(buffer.duplicate());
+				sections.add(offset, metadata.getDimension(), CommitCodec.sectionKeys(buffer));
+			}
+			if (count - first > 1) {
+				Blockbase.LOGGER.info("Added {} commits to the section index", count - first);
+			}
+		}
+
+		/**
+		 * Move JSON commit files from .blockbase/commits (ordered by modification time as
+		 * they used to be) into the object store and commit graph. Each commit gets the ID
+		 * its hash tree gives it, and parent links are updated to match.
+		 * Files that cannot be read are left in place.
+		 */
+		private void importLegacyCommits() throws IOException {
+			Path legacyDir = dir.resolve("commits");
+			if (!Files.isDirectory(legacyDir)) {
+				return;
+			}
+			List<Path> files;
+			try (Stream<Path> list = Files.list(legacyDir)) {
+				files = list
+					.filter(p -> p.getFileName().toString().endsWith(".json"))
+					.sorted(Comparator.comparingLong(Repository::lastModified))
+					.collect(Collectors.toList());
+			}
+
+			Map<String, String> renamed = new HashMap<>(); // JSON commit ID -> stored ID
+			String last = null;
+			int imported = 0;
+			for (Path file : files) {
+				try {
+					Commit read;
+					try (JsonTokenizer json = new JsonTokenizer(Files.newBufferedReader(file))) {
+						read = Commit.fromJson(json, Registry.BLOCK);
 					}
-					return name;
-				})
-				.orElse(null);
+					String parentId = read.getParentId() == null ? null : renamed.getOrDefault(read.getParentId(), read.getParentId());
+					Commit commit = Commit.withTree(read.getMessage(), read.getAuthor(), read.getTimestamp(), parentId,
+						read.getDimension(), read.getChanges());
+					ObjectStore.Batch batch = objects.batch();
+					batch.put(commit.getId(), CommitCodec.encode(commit, batch));
+					batch.commit();
+					graph.append(commit.getId(), commit.getParentId(), commit.getTimestamp());
+					renamed.put(read.getId(), commit.getId());
+					last = commit.getId();
+					Files.delete(file);
+					imported++;
+				} catch (IOException | RuntimeException e) {
+					Blockbase.LOGGER.error("Failed to import commit file {}; leaving it in place", file, e);
+				}
+			}
+			if (last != null && head == null) {
+				setHead(last);
+			}
+			try (Stream<Path> rest = Files.list(legacyDir)) {
+				if (rest.findAny().isEmpty()) {
+					Files.delete(legacyDir);
+				}
+			}
+			if (imported > 0) {
+				Blockbase.LOGGER.info("Imported {} commit files into the object store", imported);
+			}
+		}
+
+		void close() {
+			cache.clear();
+			objects.close();
+			try {
+				graph.close();
+			} catch (IOException e) {
+				Blockbase.LOGGER.warn("Failed to close commit graph", e);
+			}
+			try {
+				sections.close();
+			} catch (IOException e) {
+				Blockbase.LOGGER.warn("Failed to close section index", e);
+			}
+		}
+	}
+
+	private static void writeAtomically(Path file, String content) throws IOException {
+		Files.createDirectories(file.getParent());
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.writeString(tmp, content);
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static long lastModified(Path file) {
+		try {
+			return Files.getLastModifiedTime(file).toMillis();
 		} catch (IOException e) {
-			Blockbase.LOGGER.error("Failed to list commit files", e);
-			return null;
+			return 0L;
 		}
 	}
 
@@ -248,69 +700,47 @@ public class Repository {
 	public String toJson() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("{");
-		sb.append("\"id\":\"").append(escape(id)).append("\",");
-		sb.append("\"name\":\"").append(escape(name)).append("\",");
-		sb.append("\"defaultBranch\":\"").append(escape(defaultBranch)).append("\",");
+		sb.append("\"id\":\"").append(Formats.escape(id)).append("\",");
+		sb.append("\"name\":\"").append(Formats.escape(name)).append("\",");
+		sb.append("\"defaultBranch\":\"").append(Formats.escape(defaultBranch)).append("\",");
 		sb.append("\"createdAt\":").append(createdAt);
 		if (remoteUrl != null && !remoteUrl.isEmpty()) {
-			sb.append(",\"remoteUrl\":\"").append(escape(remoteUrl)).append("\"");
+			sb.append(",\"remoteUrl\":\"").append(Formats.escape(remoteUrl)).append("\"");
 		}
 		if (remoteRepoId != null && !remoteRepoId.isEmpty()) {
-			sb.append(",\"remoteRepoId\":\"").append(escape(remoteRepoId)).append("\"");
+			sb.append(",\"remoteRepoId\":\"").append(Formats.escape(remoteRepoId)).append("\"");
 		}
 		sb.append("}");
 		return sb.toString();
 	}
 
 	public static Repository fromJson(String json) {
-		try {
-			String id = extractString(json, "\"id\":\"");
-			String name = extractString(json, "\"name\":\"");
-			String defaultBranch = extractString(json, "\"defaultBranch\":\"");
-			long createdAt = extractLong(json, "\"createdAt\":");
-			String remoteUrl = null;
-			int idx = json.indexOf("\"remoteUrl\":\"");
-			if (idx != -1) {
-				remoteUrl = extractString(json, "\"remoteUrl\":\"");
-			}
-			String remoteRepoId = null;
-			int idx2 = json.indexOf("\"remoteRepoId\":\"");
-			if (idx2 != -1) {
-				remoteRepoId = extractString(json, "\"remoteRepoId\":\"");
+		String id = "";
+		String name = "";
+		String defaultBranch = "";
+		long createdAt = 0L;
+		String remoteUrl = null;
+		String remoteRepoId = null;
+		try (JsonTokenizer in = new JsonTokenizer(new StringReader(json))) {
+			in.beginObject();
+			while (in.hasNext()) {
+				switch (in.nextName()) {
+					case "id": id = in.nextString(); break;
+					case "name": name = in.nextString(); break;
+					case "defaultBranch": defaultBranch = in.nextString(); break;
+					case "createdAt": createdAt = in.nextLong(); break;
+					case "remoteUrl": remoteUrl = in.nextStringOrNull(); break;
+					case "remoteRepoId": remoteRepoId = in.nextStringOrNull(); break;
+					default: in.skipValue(); break;
+				}
 			}
+			in.endObject();
 			return new Repository(id, name, defaultBranch, createdAt, remoteUrl, remoteRepoId);
-		} catch (Exception e) {
+		} catch (IOException e) {
 			Blockbase.LOGGER.error("Failed to parse repo.json: {}", json, e);
 			return null;
 		}
 	}
-
-	private static long extractLong(String json, String key) {
-		int start = json.indexOf(key);
-		if (start == -1) {
-			return 0L;
-		}
-		start += key.length();
-		int end = json.indexOf(",", start);
-		if (end == -1) {
-			end = json.indexOf("}", start);
-		}
-		return Long.parseLong(json.substring(start, end).trim());
-	}
-
-	private static String extractString(String json, String key) {
-		int start = json.indexOf(key);
-		if (start == -1) {
-			return "";
-		}
-		start += key.length();
-		int end = json.indexOf("\"", start);
-		return json.substring(start, end);
-	}
-
-	private static String escape(String value) {
-		return value.replace("\\", "\\\\").replace("\"", "\\\"");
-	}
 }
 
 
@@ -0,0 +1,219 @@
+package com.blockbase;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Inverted index from chunk section to the commits that touched it, in .blockbase/section-index,
+ * so area-scoped history (diff replay, blame) opens only the commits that changed the area.
+ *
+ * Layout: a 12-byte header (magic, format version, reserved) followed by one record per
+ * commit, in commit graph order: int body length, then the body (int commit record number in
+ * the {@link CommitGraph}, short length + UTF-8 dimension name, int section count, one long
+ * section key per section). A torn record at the end of the file is dropped when opened.
+ *
+ * Commits are identified by their commit graph record number, so each section maps to an
+ * ascending list. Loaded into memory when opened. Thread-safe.
+ */
+public class SectionIndex implements AutoCloseable {
+	public static final String FILE_NAME = "section-index";
+
+	static final int MAGIC = 0x42425831; // "BBX1"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 12;
+
+	private final FileChannel channel;
+	private final Map<ResourceKey<Level>, Long2ObjectOpenHashMap<IntArrayList>> commitsBySection = new HashMap<>(); // guarded by this
+	private long end; // guarded by this
+	private int lastIndexed = -1; // guarded by this
+
+	private SectionIndex(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Open (creating if needed) the index file and load it.
+	 */
+	public static SectionIndex open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			SectionIndex index = new SectionIndex(channel);
+			long size = channel.size();
+			if (size < HEADER_BYTES) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).putInt(0);
+				header.flip();
+				channel.truncate(0);
+				channel.write(header, 0);
+				channel.force(true);
+				index.end = HEADER_BYTES;
+				return index;
+			}
+
+			ByteBuffer data = ByteBuffer.allocate((int) size);
+			while (data.hasRemaining() && channel.read(data, data.position()) >= 0) {
+				// Keep reading until the buffer is full
+			}
+			data.flip();
+			if (data.getInt() != MAGIC || data.getInt() != VERSION) {
+				throw new IOException("Not a Blockbase section index: " + file);
+			}
+			data.getInt(); // reserved
+
+			long valid = HEADER_BYTES;
+			while (data.remaining() >= 4) {
+				int length = data.getInt();
+				if (length < 10 || length > data.remaining()) break;
+				ByteBuffer body = data.slice(data.position(), length);
+				data.position(data.position() + length);
+				int commit = body.getInt();
+				byte[] name = new byte[body.getShort() & 0xFFFF];
+				body.get(name);
+				long[] sections = new long[body.getInt()];
+				for (int i = 0; i < sections.length; i++) {
+					sections[i] = body.getLong();
+				}
+				index.load(commit, Formats.parseDimension(new String(name, StandardCharsets.UTF_8)), sections);
+				valid = data.position();
+			}
+			if (valid != size) {
+				Blockbase.LOGGER.warn("Dropping torn record at the end of {}", file);
+				channel.truncate(valid);
+			}
+			index.end = valid;
+			return index;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Record the sections a newly stored commit touched. Does nothing if the commit (or a
+	 * later one) is already indexed.
+	 * @param commit the commit's record number in the commit graph
+	 */
+	public synchronized void add(int commit, ResourceKey<Level> dimension, long[] sections) throws IOException {
+		if (commit <= lastIndexed) {
+			return;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + sections.length * 8);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0); // length, filled in below
+		out.writeInt(commit);
+		byte[] name = dimension.location().toString().getBytes(StandardCharsets.UTF_8);
+		out.writeShort(name.length);
+		out.write(name);
+		out.writeInt(sections.length);
+		for (long section : sections) {
+			out.writeLong(section);
+		}
+		ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+		record.putInt(0, record.capacity() - 4);
+		long position = end;
+		while (record.hasRemaining()) {
+			position += channel.write(record, position);
+		}
+		channel.force(false);
+		end = position;
+		load(commit, dimension, sections);
+	}
+
+	/**
+	 * @return the record number of the newest indexed commit, or -1
+	 */
+	public synchronized int lastIndexed() {
+		return lastIndexed;
+	}
+
+	/**
+	 * @return record numbers of the indexed commits that touched a section intersecting the
+	 *         box from {@code min} to {@code max} (inclusive) in {@code dimension}, ascending
+	 */
+	public synchronized int[] commitsTouching(ResourceKey<Level> dimension, BlockPos min, BlockPos max) {
+		Long2ObjectOpenHashMap<IntArrayList> sections = commitsBySection.get(dimension);
+		if (sections == null) {
+			return new int[0];
+		}
+		int minX = SectionPos.blockToSectionCoord(Math.min(min.getX(), max.getX()));
+		int minY = SectionPos.blockToSectionCoord(Math.min(min.getY(), max.getY()));
+		int minZ = SectionPos.blockToSectionCoord(Math.min(min.getZ(), max.getZ()));
+		int maxX = SectionPos.blockToSectionCoord(Math.max(min.getX(), max.getX()));
+		int maxY = SectionPos.blockToSectionCoord(Math.max(min.getY(), max.getY()));
+		int maxZ = SectionPos.blockToSectionCoord(Math.max(min.getZ(), max.getZ()));
+
+		IntArrayList found = new IntArrayList();
+		long boxSections = (long) (maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1);
+		if (boxSections <= sections.size()) {
+			for (int x = minX; x <= maxX; x++) {
+				for (int y = minY; y <= maxY; y++) {
+					for (int z = minZ; z <= maxZ; z++) {
+						IntArrayList commits = sections.get(SectionPos.asLong(x, y, z));
+						if (commits != null) addAll(found, commits);
+					}
+				}
+			}
+		} else {
+			// A box larger than the indexed area: test each indexed section instead
+			for (Long2ObjectMap.Entry<IntArrayList> entry : sections.long2ObjectEntrySet()) {
+				long key = entry.getLongKey();
+				int x = SectionPos.x(key), y = SectionPos.y(key), z = SectionPos.z(key);
+				if (x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ) {
+					addAll(found, entry.getValue());
+				}
+			}
+		}
+
+		int[] out = found.toIntArray();
+		Arrays.sort(out);
+		int unique = 0;
+		for (int i = 0; i < out.length; i++) {
+			if (i == 0 || out[i] != out[i - 1]) out[unique++] = out[i];
+		}
+		return Arrays.copyOf(out, unique);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		channel.close();
+	}
+
+	private void load(int commit, ResourceKey<Level> dimension, long[] sections) {
+		Long2ObjectOpenHashMap<IntArrayList> bySection = commitsBySection.get(dimension);
+		if (bySection == null) {
+			bySection = new Long2ObjectOpenHashMap<>();
+			commitsBySection.put(dimension, bySection);
+		}
+		for (long section : sections) {
+			IntArrayList commits = bySection.get(section);
+			if (commits == null) {
+				commits = new IntArrayList(4);
+				bySection.put(section, commits);
+			}
+			commits.add(commit);
+		}
+		lastIndexed = Math.max(lastIndexed, commit);
+	}
+
+	private static void addAll(IntArrayList to, IntArrayList from) {
+		for (int i = 0; i < from.size(); i++) {
+			to.add(from.getInt(i));
+		}
+	}
+}
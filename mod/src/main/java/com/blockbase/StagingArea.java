@@ -1,53 +1,103 @@
 package com.blockbase;
 
+import net.minecraft.resources.ResourceKey;
 import net.minecraft.world.level.Level;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Tracks staged block changes, similar to Git's staging area (index).
  *
  * For the MVP:
  * - Staging is global per world (no per-player separation).
- * - /blockbase stage will stage all currently tracked changes.
+ * - /blockbase add . stages all currently tracked changes of one dimension.
+ *
+ * Staging takes ownership of sealed {@link WorkingTree} generations instead of copying
+ * changes, so adding is O(1) however many changes are pending. Generations staged by
+ * repeated adds are merged only when the changes are read (commit, status).
  */
 public class StagingArea {
 
-	private final List<BlockChange> stagedChanges = new CopyOnWriteArrayList<>();
+	private List<WorkingTree> generations = Collections.emptyList(); // immutable, guarded by this
+	private ResourceKey<Level> dimension; // guarded by this
+	private List<BlockChange> merged; // cached result of getStagedChanges(), guarded by this
 
 	/**
-	 * Stage all provided changes, replacing any previously staged changes.
-	 * @param changes The list of changes to stage
+	 * Stage a sealed generation on top of anything already staged.
+	 * @param dimension The dimension the changes were made in
+	 * @param generation A sealed generation from {@link BlockTracker#sealGeneration()}
+	 * @return false if changes from a different dimension are already staged
 	 */
-	public void stageAll(List<BlockChange> changes) {
-		stagedChanges.clear();
-		stagedChanges.addAll(changes);
-		Blockbase.LOGGER.info("Staged {} block changes", stagedChanges.size());
+	public synchronized boolean stage(ResourceKey<Level> dimension, WorkingTree generation) {
+		if (!generations.isEmpty() && this.dimension != dimension) {
+			return false;
+		}
+		List<WorkingTree> next = new ArrayList<>(generations.size() + 1);
+		next.addAll(generations);
+		next.add(generation);
+		this.generations = Collections.unmodifiableList(next);
+		this.dimension = dimension;
+		this.merged = null;
+		Blockbase.LOGGER.info("Staged a generation of block changes from {} ({} generations staged)", dimension.location(), next.size());
+		return true;
 	}
 
 	/**
 	 * Clear all staged changes.
 	 */
-	public void clear() {
-		stagedChanges.clear();
+	public synchronized void clear() {
+		generations = Collections.emptyList();
+		dimension = null;
+		merged = null;
 		Blockbase.LOGGER.info("Cleared staged block changes");
 	}
 
 	/**
-	 * @return a copy of the staged changes list
+	 * @return the staged generations, oldest first
 	 */
-	public List<BlockChange> getStagedChanges() {
-		return new ArrayList<>(stagedChanges);
+	public synchronized List<WorkingTree> getGenerations() {
+		return generations;
 	}
 
 	/**
-	 * @return number of staged changes
+	 * @return the staged changes, coalesced across generations, in first-touched order.
+	 *         The list is shared and must not be modified.
 	 */
-	public int getStagedCount() {
-		return stagedChanges.size();
+	public synchronized List<BlockChange> getStagedChanges() {
+		if (merged == null) {
+			if (generations.isEmpty()) {
+				merged = Collections.emptyList();
+			} else if (generations.size() == 1) {
+				merged = Collections.unmodifiableList(generations.get(0).toList());
+			} else {
+				WorkingTree combined = new WorkingTree();
+				for (WorkingTree generation : generations) {
+					for (BlockChange change : generation.toList()) {
+						combined.record(change.getPosition().asLong(), change.getOldStateId(), change.getNewStateId(), change.getTimestamp());
+					}
+				}
+				merged = Collections.unmodifiableList(combined.toList());
+			}
+		}
+		return merged;
 	}
-}
 
+	/**
+	 * @return the dimension of the staged changes, or null if nothing is staged
+	 */
+	public synchronized ResourceKey<Level> getDimension() {
+		return dimension;
+	}
 
+	/**
+	 * @return number of staged changes
+	 */
+	public synchronized int getStagedCount() {
+		if (generations.size() == 1) {
+			return generations.get(0).size();
+		}
+		return getStagedChanges().size();
+	}
+}
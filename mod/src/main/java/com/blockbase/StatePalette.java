@@ -0,0 +1,161 @@
+package com.blockbase;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.minecraft.core.Registry;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.block.state.properties.Property;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Block states are handled as {@link Block#BLOCK_STATE_REGISTRY} ids everywhere in memory.
+ * Those ids are only stable for one game version and mod set, so every persisted file
+ * carries its own palette: a list of state names ("minecraft:oak_stairs[facing=north,half=top]")
+ * indexed by the small ints stored in the file body.
+ *
+ * Writers build a palette with {@link #indexOf(int)}; readers turn the stored names back
+ * into an int[] of current ids once with {@link #resolve(List)}, after which decoding each
+ * change is an array lookup.
+ */
+public class StatePalette {
+	/** Palette index stored for "no block". Never has an entry of its own. */
+	public static final int NO_INDEX = -1;
+
+	private final Int2IntOpenHashMap indexById = new Int2IntOpenHashMap();
+	private final IntArrayList ids = new IntArrayList();
+
+	public StatePalette() {
+		indexById.defaultReturnValue(NO_INDEX);
+	}
+
+	/**
+	 * Palette index for a state id, adding it on first use.
+	 * @param stateId a registry state id, or {@link ChangeQueue#NO_STATE}
+	 */
+	public int indexOf(int stateId) {
+		if (stateId == ChangeQueue.NO_STATE) return NO_INDEX;
+		int index = indexById.get(stateId);
+		if (index == NO_INDEX) {
+			index = ids.size();
+			ids.add(stateId);
+			indexById.put(stateId, index);
+		}
+		return index;
+	}
+
+	public int size() {
+		return ids.size();
+	}
+
+	public int idAt(int index) {
+		return ids.getInt(index);
+	}
+
+	/**
+	 * @return the portable name of the entry at {@code index}
+	 */
+	public String name(int index) {
+		return describe(Block.stateById(ids.getInt(index)));
+	}
+
+	public void clear() {
+		indexById.clear();
+		ids.clear();
+	}
+
+	/**
+	 * Map a file's palette names to state ids of the running game, in palette order.
+	 * Names that no longer resolve map to {@link ChangeQueue#NO_STATE}.
+	 */
+	public static int[] resolve(List<String> names) {
+		int[] out = new int[names.size()];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = parseId(names.get(i));
+		}
+		return out;
+	}
+
+	/**
+	 * Look up a palette index read from a file.
+	 * @return the state id, or {@link ChangeQueue#NO_STATE} for {@link #NO_INDEX}
+	 * @throws IndexOutOfBoundsException if the index is not in the palette
+	 */
+	public static int lookup(int[] resolved, int index) {
+		return index == NO_INDEX ? ChangeQueue.NO_STATE : resolved[index];
+	}
+
+	public static int stateId(BlockState state) {
+		return state == null ? ChangeQueue.NO_STATE : Block.getId(state);
+	}
+
+	public static BlockState stateOf(int stateId) {
+		return stateId == ChangeQueue.NO_STATE ? null : Block.stateById(stateId);
+	}
+
+	/**
+	 * Portable name of a state: block id plus its properties in declaration order.
+	 */
+	public static String describe(BlockState state) {
+		ResourceLocation key = Registry.BLOCK.getKey(state.getBlock());
+		StringBuilder sb = new StringBuilder(key.toString());
+		Map<Property<?>, Comparable<?>> values = state.getValues();
+		if (!values.isEmpty()) {
+			sb.append('[');
+			boolean first = true;
+			for (Map.Entry<Property<?>, Comparable<?>> entry : values.entrySet()) {
+				if (!first) sb.append(',');
+				sb.append(entry.getKey().getName()).append('=').append(valueName(entry.getKey(), entry.getValue()));
+				first = false;
+			}
+			sb.append(']');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Parse a name written by {@link #describe(BlockState)}.
+	 * Unknown properties or values are ignored and keep the block's default.
+	 * @return the state id, or {@link ChangeQueue#NO_STATE} if the block no longer exists
+	 */
+	public static int parseId(String name) {
+		int bracket = name.indexOf('[');
+		String blockName = bracket == -1 ? name : name.substring(0, bracket);
+		ResourceLocation key = ResourceLocation.tryParse(blockName);
+		Optional<Block> block = key == null ? Optional.empty() : Registry.BLOCK.getOptional(key);
+		if (block.isEmpty()) {
+			Blockbase.LOGGER.warn("Unknown block state in palette: {}", name);
+			return ChangeQueue.NO_STATE;
+		}
+
+		BlockState state = block.get().defaultBlockState();
+		if (bracket != -1 && name.endsWith("]")) {
+			for (String pair : name.substring(bracket + 1, name.length() - 1).split(",")) {
+				int eq = pair.indexOf('=');
+				if (eq == -1) continue;
+				Property<?> property = block.get().getStateDefinition().getProperty(pair.substring(0, eq));
+				if (property != null) {
+					state = withValue(state, property, pair.substring(eq + 1));
+				}
+			}
+		}
+		return Block.getId(state);
+	}
+
+	/**
+	 * Apply a serialized property value, leaving the state unchanged if it is not valid.
+	 */
+	static <T extends Comparable<T>> BlockState withValue(BlockState state, Property<T> property, String value) {
+		Optional<T> parsed = property.getValue(value);
+		return parsed.isPresent() ? state.setValue(property, parsed.get()) : state;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T extends Comparable<T>> String valueName(Property<T> property, Comparable<?> value) {
+		return property.getName((T) value);
+	}
+}
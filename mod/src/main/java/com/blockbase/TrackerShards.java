@@ -0,0 +1,118 @@
+package com.blockbase;
+
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.Level;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One {@link BlockTracker} per dimension, each with its own working tree and journal in
+ * that dimension's save folder (world/.blockbase, world/DIM-1/.blockbase, ...).
+ *
+ * Shards exist while a server is running: they are created and loaded on server start and
+ * closed on server stop. Until then {@link #get(Level)} returns null and nothing is tracked.
+ */
+public class TrackerShards {
+	private final Map<ResourceKey<Level>, BlockTracker> shards = new ConcurrentHashMap<>();
+
+	/**
+	 * @return the shard tracking this level, or null if it is not tracked (client levels,
+	 *         or no server running)
+	 */
+	public BlockTracker get(Level level) {
+		return shards.get(level.dimension());
+	}
+
+	public BlockTracker get(ResourceKey<Level> dimension) {
+		return shards.get(dimension);
+	}
+
+	public Collection<BlockTracker> all() {
+		return shards.values();
+	}
+
+	/**
+	 * Create a shard for every level of the server and load them. Server thread only: each
+	 * shard is reset here, and only reading its files runs in parallel on the common pool,
+	 * while this thread waits, so no shard is drained or its listeners run in the meantime.
+	 */
+	public void loadAll(MinecraftServer server) {
+		long start = System.nanoTime();
+		List<CompletableFuture<Void>> loads = new ArrayList<>();
+		for (ServerLevel level : server.getAllLevels()) {
+			BlockTracker shard = shards.computeIfAbsent(level.dimension(), BlockTracker::new);
+			Path blockbaseDir = shard.beginLoad(level);
+			if (blockbaseDir != null) {
+				loads.add(CompletableFuture.runAsync(() -> shard.readChanges(level, blockbaseDir)));
+			}
+		}
+		join(loads);
+		Blockbase.LOGGER.info("Loaded {} tracker shards in {} ms", loads.size(), (System.nanoTime() - start) / 1_000_000);
+	}
+
+	/**
+	 * Drain every shard's queue and close its mass-edit snapshots. Server thread only.
+	 */
+	public void endTick() {
+		for (BlockTracker shard : shards.values()) {
+			shard.endTick();
+		}
+	}
+
+	/**
+	 * Flush every shard's journal. The writes and fsyncs run on each shard's own journal
+	 * thread, so shards are persisted in parallel.
+	 */
+	public void saveAll(MinecraftServer server) {
+		for (ServerLevel level : server.getAllLevels()) {
+			BlockTracker shard = shards.get(level.dimension());
+			if (shard != null) {
+				shard.saveChanges(level);
+			}
+		}
+	}
+
+	/**
+	 * Close all journals and forget the shards (the next server may be a different world).
+	 * Server thread only: each shard is drained here, then the journals are flushed and
+	 * closed in parallel.
+	 */
+	public void closeAll() {
+		List<CompletableFuture<Void>> closes = new ArrayList<>();
+		for (BlockTracker shard : shards.values()) {
+			ChangeJournal journal = shard.detachJournal();
+			if (journal != null) {
+				closes.add(CompletableFuture.runAsync(journal::close));
+			}
+		}
+		join(closes);
+		shards.clear();
+	}
+
+	/**
+	 * @return total number of tracked changes across all dimensions
+	 */
+	public int getChangeCount() {
+		int total = 0;
+		for (BlockTracker shard : shards.values()) {
+			total += shard.getChangeCount();
+		}
+		return total;
+	}
+
+	private static void join(List<CompletableFuture<Void>> futures) {
+		try {
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+		} catch (Exception e) {
+			Blockbase.LOGGER.error("Tracker shard operation failed", e);
+		}
+	}
+}
@@ -0,0 +1,475 @@
+package com.blockbase;
+
+import it.unimi.dsi.fastutil.ints.Int2ShortOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Coalescing index of uncommitted block changes, bucketed by chunk section (16x16x16).
+ *
+ * Only the first old state and the latest new state are kept per position, so a block
+ * toggled thousands of times costs a single entry. Positions that end up back in their
+ * original state (e.g. place-then-break) are dropped. {@link #toList()} returns changes
+ * in the order in which positions were first touched.
+ *
+ * Each section stores its entries in parallel primitive arrays: a 12-bit local position,
+ * two short indices into a small per-section palette of global state ids, the game time
+ * and a sequence number for ordering. Spatial queries only visit sections that overlap
+ * the requested area.
+ *
+ * Mass edits arrive as {@link BurstSnapshot}s and are kept unexpanded until something
+ * reads the tree or records another change in the same section.
+ *
+ * A tree can be sealed into an immutable generation with {@link #seal()}: later writes
+ * (including ones racing with the seal on another thread) go to its successor.
+ */
+public class WorkingTree {
+
+	@FunctionalInterface
+	public interface Visitor {
+		void accept(long pos, int oldStateId, int newStateId, long timestamp);
+	}
+
+	private final Long2ObjectOpenHashMap<Section> sections = new Long2ObjectOpenHashMap<>();
+	private final Long2ObjectOpenHashMap<BurstSnapshot> bursts = new Long2ObjectOpenHashMap<>();
+	private int size;
+	private int nextSeq;
+	private WorkingTree successor; // set once sealed
+
+	/**
+	 * Record a change, merging it with any pending change at the same position.
+	 * @param pos The packed position of the change ({@link BlockPos#asLong()})
+	 * @param oldStateId Global id of the state before this event, or {@link ChangeQueue#NO_STATE}
+	 * @param newStateId Global id of the state after this event, or {@link ChangeQueue#NO_STATE}
+	 * @param timestamp Game time of the event
+	 */
+	public synchronized void record(long pos, int oldStateId, int newStateId, long timestamp) {
+		if (successor != null) {
+			successor.record(pos, oldStateId, newStateId, timestamp);
+			return;
+		}
+		recordLocal(pos, oldStateId, newStateId, timestamp);
+	}
+
+	private void recordLocal(long pos, int oldStateId, int newStateId, long timestamp) {
+		int x = BlockPos.getX(pos);
+		int y = BlockPos.getY(pos);
+		int z = BlockPos.getZ(pos);
+		long sectionKey = SectionPos.asLong(SectionPos.blockToSectionCoord(x), SectionPos.blockToSectionCoord(y), SectionPos.blockToSectionCoord(z));
+		short local = (short) ((SectionPos.sectionRelative(y) << 8) | (SectionPos.sectionRelative(z) << 4) | SectionPos.sectionRelative(x));
+		if (!bursts.isEmpty()) {
+			expandBurst(sectionKey); // Its changes happened before this one
+		}
+
+		Section section = sections.get(sectionKey);
+		int slot = section == null ? -1 : section.find(local);
+		if (slot < 0) {
+			if (sameState(oldStateId, newStateId)) return;
+			if (section == null) {
+				section = new Section(sectionKey);
+				sections.put(sectionKey, section);
+			}
+			section.add(local, oldStateId, newStateId, timestamp, nextSeq++);
+			size++;
+			return;
+		}
+
+		// Keep the original "before" state and only move the "after" state forward
+		int firstOld = section.oldStateId(slot);
+		if (sameState(firstOld, newStateId)) {
+			section.remove(slot);
+			size--;
+			if (section.count == 0) {
+				sections.remove(sectionKey);
+			}
+		} else {
+			section.update(slot, newStateId, timestamp);
+		}
+	}
+
+	/**
+	 * Record a change using block states (null meaning "no block").
+	 */
+	public void record(BlockPos pos, BlockState oldState, BlockState newState, long timestamp) {
+		record(pos.asLong(), StatePalette.stateId(oldState), StatePalette.stateId(newState), timestamp);
+	}
+
+	/**
+	 * Record a mass edit of one section without expanding it. A later snapshot of the same
+	 * section is merged into the pending one.
+	 */
+	public synchronized void recordBurst(BurstSnapshot snapshot) {
+		if (successor != null) {
+			successor.recordBurst(snapshot);
+			return;
+		}
+		BurstSnapshot pending = bursts.get(snapshot.getSectionKey());
+		bursts.put(snapshot.getSectionKey(), pending == null ? snapshot : pending.followedBy(snapshot));
+	}
+
+	private void expandBurst(long sectionKey) {
+		BurstSnapshot burst = bursts.remove(sectionKey);
+		if (burst != null) {
+			burst.expand(this::recordLocal);
+		}
+	}
+
+	/**
+	 * Turn all pending bursts into per-position entries. Called before every read.
+	 */
+	private void expandBursts() {
+		if (bursts.isEmpty()) return;
+		BurstSnapshot[] pending = bursts.values().toArray(new BurstSnapshot[0]);
+		bursts.clear();
+		for (BurstSnapshot burst : pending) {
+			burst.expand(this::recordLocal);
+		}
+	}
+
+	/**
+	 * Freeze this tree and return the empty tree that receives all later writes.
+	 * The sealed tree can still be read (pending bursts are expanded in place).
+	 */
+	public synchronized WorkingTree seal() {
+		if (successor != null) {
+			throw new IllegalStateException("Working tree generation already sealed");
+		}
+		successor = new WorkingTree();
+		return successor;
+	}
+
+	/**
+	 * @return a snapshot of all pending changes, in first-touched order
+	 */
+	public synchronized List<BlockChange> toList() {
+		expandBursts();
+		// Collect (seq, section, slot) references and sort by sequence number
+		Section[] owners = new Section[size];
+		int[] slots = new int[size];
+		long[] order = new long[size];
+		int n = 0;
+		for (Section section : sections.values()) {
+			for (int slot = 0; slot < section.count; slot++) {
+				owners[n] = section;
+				slots[n] = slot;
+				order[n] = ((long) section.seq[slot] << 32) | n;
+				n++;
+			}
+		}
+		Arrays.sort(order, 0, n);
+		List<BlockChange> out = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			int ref = (int) order[i];
+			out.add(owners[ref].toChange(slots[ref]));
+		}
+		return out;
+	}
+
+	/**
+	 * Visit every pending change, in no particular order.
+	 */
+	public synchronized void forEach(Visitor visitor) {
+		expandBursts();
+		for (Section section : sections.values()) {
+			section.visit(visitor, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE,
+				Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Visit pending changes inside an inclusive bounding box, touching only overlapping sections.
+	 */
+	public synchronized void forEachInBox(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, Visitor visitor) {
+		expandBursts();
+		int sMinX = SectionPos.blockToSectionCoord(minX);
+		int sMinY = SectionPos.blockToSectionCoord(minY);
+		int sMinZ = SectionPos.blockToSectionCoord(minZ);
+		int sMaxX = SectionPos.blockToSectionCoord(maxX);
+		int sMaxY = SectionPos.blockToSectionCoord(maxY);
+		int sMaxZ = SectionPos.blockToSectionCoord(maxZ);
+		long candidates = (long) (sMaxX - sMinX + 1) * (sMaxY - sMinY + 1) * (sMaxZ - sMinZ + 1);
+
+		if (candidates <= sections.size()) {
+			for (int sx = sMinX; sx <= sMaxX; sx++) {
+				for (int sy = sMinY; sy <= sMaxY; sy++) {
+					for (int sz = sMinZ; sz <= sMaxZ; sz++) {
+						Section section = sections.get(SectionPos.asLong(sx, sy, sz));
+						if (section != null) {
+							section.visit(visitor, minX, minY, minZ, maxX, maxY, maxZ);
+						}
+					}
+				}
+			}
+		} else {
+			// Fewer occupied sections than candidate coordinates: filter the occupied ones
+			for (Section section : sections.values()) {
+				int sx = SectionPos.x(section.key);
+				int sy = SectionPos.y(section.key);
+				int sz = SectionPos.z(section.key);
+				if (sx < sMinX || sx > sMaxX || sy < sMinY || sy > sMaxY || sz < sMinZ || sz > sMaxZ) continue;
+				section.visit(visitor, minX, minY, minZ, maxX, maxY, maxZ);
+			}
+		}
+	}
+
+	/**
+	 * Visit pending changes within a spherical radius of the center.
+	 */
+	public void forEachInRadius(BlockPos center, int radius, Visitor visitor) {
+		int cx = center.getX();
+		int cy = center.getY();
+		int cz = center.getZ();
+		long r2 = (long) radius * radius;
+		forEachInBox(cx - radius, cy - radius, cz - radius, cx + radius, cy + radius, cz + radius,
+			(pos, oldStateId, newStateId, timestamp) -> {
+				long dx = BlockPos.getX(pos) - cx;
+				long dy = BlockPos.getY(pos) - cy;
+				long dz = BlockPos.getZ(pos) - cz;
+				if (dx * dx + dy * dy + dz * dz <= r2) {
+					visitor.accept(pos, oldStateId, newStateId, timestamp);
+				}
+			});
+	}
+
+	/**
+	 * @return the pending change at the given position, or null if there is none
+	 */
+	public synchronized BlockChange get(BlockPos pos) {
+		long sectionKey = SectionPos.asLong(
+			SectionPos.blockToSectionCoord(pos.getX()),
+			SectionPos.blockToSectionCoord(pos.getY()),
+			SectionPos.blockToSectionCoord(pos.getZ()));
+		expandBurst(sectionKey);
+		Section section = sections.get(sectionKey);
+		if (section == null) return null;
+		short local = (short) ((SectionPos.sectionRelative(pos.getY()) << 8)
+			| (SectionPos.sectionRelative(pos.getZ()) << 4)
+			| SectionPos.sectionRelative(pos.getX()));
+		int slot = section.find(local);
+		return slot < 0 ? null : section.toChange(slot);
+	}
+
+	public synchronized int size() {
+		expandBursts();
+		return size;
+	}
+
+	public synchronized boolean isEmpty() {
+		expandBursts();
+		return size == 0;
+	}
+
+	/**
+	 * Upper bound on {@link #size()} that does not expand pending bursts
+	 * (each is counted as a full section).
+	 */
+	public synchronized long estimatedSize() {
+		return size + (long) bursts.size() * 4096;
+	}
+
+	/**
+	 * @return number of chunk sections with at least one pending change
+	 */
+	public synchronized int sectionCount() {
+		expandBursts();
+		return sections.size();
+	}
+
+	public synchronized void clear() {
+		sections.clear();
+		bursts.clear();
+		size = 0;
+	}
+
+	/**
+	 * Two states are equivalent if they are the same state, or both represent "no block".
+	 */
+	static boolean sameState(int a, int b) {
+		if (a == b) return true;
+		return isEmpty(a) && isEmpty(b);
+	}
+
+	private static boolean isEmpty(int stateId) {
+		return stateId == ChangeQueue.NO_STATE || Block.stateById(stateId).isAir();
+	}
+
+	/**
+	 * Changes within one chunk section, stored as parallel primitive arrays.
+	 */
+	private static final class Section {
+		private static final int LOOKUP_THRESHOLD = 16;
+
+		final long key;
+		int[] palette = new int[4];
+		int paletteSize;
+		short[] local = new short[4];
+		short[] oldIdx = new short[4];
+		short[] newIdx = new short[4];
+		long[] times = new long[4];
+		int[] seq = new int[4];
+		int count;
+		// Dense local-position -> slot+1 table, only allocated once the section gets busy
+		short[] lookup;
+		// State id -> palette index, only allocated once the palette outgrows a linear scan
+		Int2ShortOpenHashMap paletteLookup;
+
+		Section(long key) {
+			this.key = key;
+		}
+
+		int find(short pos) {
+			if (lookup != null) {
+				return lookup[pos] - 1;
+			}
+			for (int i = 0; i < count; i++) {
+				if (local[i] == pos) return i;
+			}
+			return -1;
+		}
+
+		void add(short pos, int oldStateId, int newStateId, long timestamp, int sequence) {
+			if (count == local.length) {
+				int cap = Math.min(4096, count * 2);
+				local = Arrays.copyOf(local, cap);
+				oldIdx = Arrays.copyOf(oldIdx, cap);
+				newIdx = Arrays.copyOf(newIdx, cap);
+				times = Arrays.copyOf(times, cap);
+				seq = Arrays.copyOf(seq, cap);
+			}
+			local[count] = pos;
+			oldIdx[count] = paletteIndex(oldStateId);
+			newIdx[count] = paletteIndex(newStateId);
+			times[count] = timestamp;
+			seq[count] = sequence;
+			count++;
+			if (lookup != null) {
+				lookup[pos] = (short) count;
+			} else if (count > LOOKUP_THRESHOLD) {
+				lookup = new short[4096];
+				for (int i = 0; i < count; i++) {
+					lookup[local[i]] = (short) (i + 1);
+				}
+			}
+		}
+
+		void update(int slot, int newStateId, long timestamp) {
+			newIdx[slot] = paletteIndex(newStateId);
+			times[slot] = timestamp;
+		}
+
+		void remove(int slot) {
+			int last = count - 1;
+			if (lookup != null) {
+				lookup[local[slot]] = 0;
+			}
+			if (slot != last) {
+				local[slot] = local[last];
+				oldIdx[slot] = oldIdx[last];
+				newIdx[slot] = newIdx[last];
+				times[slot] = times[last];
+				seq[slot] = seq[last];
+				if (lookup != null) {
+					lookup[local[slot]] = (short) (slot + 1);
+				}
+			}
+			count = last;
+		}
+
+		int oldStateId(int slot) {
+			return palette[oldIdx[slot]];
+		}
+
+		int newStateId(int slot) {
+			return palette[newIdx[slot]];
+		}
+
+		long packedPos(int slot) {
+			int l = local[slot];
+			return BlockPos.asLong(
+				SectionPos.sectionToBlockCoord(SectionPos.x(key)) + (l & 15),
+				SectionPos.sectionToBlockCoord(SectionPos.y(key)) + ((l >> 8) & 15),
+				SectionPos.sectionToBlockCoord(SectionPos.z(key)) + ((l >> 4) & 15));
+		}
+
+		BlockChange toChange(int slot) {
+			return new BlockChange(BlockPos.of(packedPos(slot)), oldStateId(slot), newStateId(slot), times[slot]);
+		}
+
+		void visit(Visitor visitor, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+			for (int i = 0; i < count; i++) {
+				long pos = packedPos(i);
+				int x = BlockPos.getX(pos);
+				int y = BlockPos.getY(pos);
+				int z = BlockPos.getZ(pos);
+				if (x < minX || x > maxX || y < minY || y > maxY || z < minZ || z > maxZ) continue;
+				visitor.accept(pos, oldStateId(i), newStateId(i), times[i]);
+			}
+		}
+
+		private short paletteIndex(int stateId) {
+			short index = findPalette(stateId);
+			if (index >= 0) return index;
+			if (paletteSize == Short.MAX_VALUE) {
+				compactPalette();
+				index = findPalette(stateId);
+				if (index >= 0) return index;
+			}
+			if (paletteSize == palette.length) {
+				palette = Arrays.copyOf(palette, Math.min(Short.MAX_VALUE, paletteSize * 2));
+			}
+			index = (short) paletteSize++;
+			palette[index] = stateId;
+			if (paletteLookup != null) {
+				paletteLookup.put(stateId, index);
+			} else if (paletteSize > LOOKUP_THRESHOLD) {
+				indexPalette();
+			}
+			return index;
+		}
+
+		private short findPalette(int stateId) {
+			if (paletteLookup != null) {
+				return paletteLookup.get(stateId);
+			}
+			for (int i = 0; i < paletteSize; i++) {
+				if (palette[i] == stateId) return (short) i;
+			}
+			return -1;
+		}
+
+		private void indexPalette() {
+			paletteLookup = new Int2ShortOpenHashMap(paletteSize * 2 + 1);
+			paletteLookup.defaultReturnValue((short) -1);
+			for (int i = 0; i < paletteSize; i++) {
+				paletteLookup.put(palette[i], (short) i);
+			}
+		}
+
+		// Drop palette entries no longer referenced (only reachable after many state flips)
+		private void compactPalette() {
+			int[] remap = new int[paletteSize];
+			Arrays.fill(remap, -1);
+			int[] compacted = new int[palette.length];
+			int n = 0;
+			for (int i = 0; i < count; i++) {
+				if (remap[oldIdx[i]] < 0) { compacted[n] = palette[oldIdx[i]]; remap[oldIdx[i]] = n++; }
+				oldIdx[i] = (short) remap[oldIdx[i]];
+				if (remap[newIdx[i]] < 0) { compacted[n] = palette[newIdx[i]]; remap[newIdx[i]] = n++; }
+				newIdx[i] = (short) remap[newIdx[i]];
+			}
+			palette = compacted;
+			paletteSize = n;
+			paletteLookup = null;
+			if (paletteSize > LOOKUP_THRESHOLD) {
+				indexPalette();
+			}
+		}
+	}
+}
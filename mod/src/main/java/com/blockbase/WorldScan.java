@@ -0,0 +1,229 @@
+package com.blockbase;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.PalettedContainer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Diff of a box of the live world against a commit, read from the chunk sections' own
+ * paletted storage instead of the tracker. Only positions the commit's history has recorded
+ * are checked: an untracked edit (pistons, fluids, edits made while the mod was absent) is
+ * found when it hits one of them, and anything at a position history has never seen is
+ * not found at all.
+ *
+ * Each known section is copied on the server thread, then the copies are compared in
+ * parallel on the common fork/join pool. A section is skipped without reading its
+ * positions only in the narrow case where every state the snapshot expects there is the
+ * same one and the palette holds nothing else; any section with two different expected
+ * states is compared position by position.
+ */
+public final class WorldScan {
+	// Sections one fork/join task compares
+	private static final int SECTIONS_PER_TASK = 16;
+
+	private final DiffCalculator.DiffResult result;
+	private final int sections;
+	private final int skipped;
+	private final int unloaded;
+
+	private WorldScan(DiffCalculator.DiffResult result, int sections, int skipped, int unloaded) {
+		this.result = result;
+		this.sections = sections;
+		this.skipped = skipped;
+		this.unloaded = unloaded;
+	}
+
+	/**
+	 * Scan the box from {@code min} to {@code max} (inclusive) of {@code level} against
+	 * {@code commitId}. Must be called on the server thread; completes on a pool thread.
+	 */
+	public static CompletableFuture<WorldScan> scan(ServerLevel level, String commitId, BlockPos min, BlockPos max) {
+		MinecraftServer server = level.getServer();
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return snapshot(server, level, commitId, min, max);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}).thenApplyAsync(snapshot -> capture(level, snapshot), server::execute)
+			.thenApplyAsync(WorldScan::compare);
+	}
+
+	/**
+	 * @return the differences; previous states are those of the commit
+	 */
+	public DiffCalculator.DiffResult getResult() {
+		return result;
+	}
+
+	/**
+	 * @return the number of sections the commit knows positions in, loaded or not
+	 */
+	public int getSectionCount() {
+		return sections;
+	}
+
+	/**
+	 * @return the number of sections whose palette proved they match the commit
+	 */
+	public int getSkippedCount() {
+		return skipped;
+	}
+
+	/**
+	 * @return the number of sections not scanned because their chunk is not loaded
+	 */
+	public int getUnloadedCount() {
+		return unloaded;
+	}
+
+	/**
+	 * One section of the snapshot: its known positions, and a copy of its live states.
+	 */
+	private static final class Section {
+		final long key;
+		final Int2IntOpenHashMap expected; // section-relative index -> state id
+		PalettedContainer<BlockState> live; // null if the chunk is not loaded
+
+		Section(long key, Int2IntOpenHashMap expected) {
+			this.key = key;
+			this.expected = expected;
+		}
+	}
+
+	private static List<Section> snapshot(MinecraftServer server, ServerLevel level, String commitId, BlockPos min, BlockPos max) throws IOException {
+		Long2ObjectOpenHashMap<Int2IntOpenHashMap> state = new Long2ObjectOpenHashMap<>();
+		Repository.replayTo(server, commitId, level.dimension(), min, max, (dimension, x, y, z, stateId) -> {
+			long key = SectionPos.asLong(SectionPos.blockToSectionCoord(x), SectionPos.blockToSectionCoord(y), SectionPos.blockToSectionCoord(z));
+			Int2IntOpenHashMap section = state.get(key);
+			if (section == null) {
+				section = new Int2IntOpenHashMap();
+				state.put(key, section);
+			}
+			section.put((SectionPos.sectionRelative(y) << 8) | (SectionPos.sectionRelative(z) << 4) | SectionPos.sectionRelative(x), stateId);
+		});
+		long[] keys = state.keySet().toLongArray();
+		Arrays.sort(keys);
+		List<Section> sections = new ArrayList<>(keys.length);
+		for (long key : keys) {
+			sections.add(new Section(key, state.get(key)));
+		}
+		return sections;
+	}
+
+	/**
+	 * Copy the live states of each snapshot section whose chunk is loaded. Runs on the
+	 * server thread, which owns the sections; a copy of paletted storage is an array copy.
+	 */
+	private static List<Section> capture(ServerLevel level, List<Section> sections) {
+		for (Section section : sections) {
+			int chunkX = SectionPos.x(section.key);
+			int chunkZ = SectionPos.z(section.key);
+			int sectionY = SectionPos.y(section.key);
+			if (!level.hasChunk(chunkX, chunkZ) || sectionY < level.getMinSection() || sectionY >= level.getMaxSection()) continue;
+			LevelChunkSection live = level.getChunk(chunkX, chunkZ).getSection(level.getSectionIndexFromSectionY(sectionY));
+			section.live = live.getStates().copy();
+		}
+		return sections;
+	}
+
+	private static WorldScan compare(List<Section> sections) {
+		DiffCalculator.DiffResult result = DiffCalculator.DiffResult.empty();
+		AtomicInteger skipped = new AtomicInteger();
+		ForkJoinPool.commonPool().invoke(new CompareSections(sections, result, skipped, 0, sections.size()));
+		int unloaded = 0;
+		for (Section section : sections) {
+			if (section.live == null) unloaded++;
+		}
+		return new WorldScan(result, sections.size(), skipped.get(), unloaded);
+	}
+
+	/**
+	 * @return true if the section's palette proves every known position matches, which can
+	 *         only be shown when all of them expect the same state
+	 */
+	private static boolean provenUnchanged(Section section) {
+		int[] locals = section.expected.keySet().toIntArray();
+		int only = normalize(section.expected.get(locals[0]));
+		for (int local : locals) {
+			if (normalize(section.expected.get(local)) != only) return false;
+		}
+		return !section.live.maybeHas(state -> normalize(StatePalette.stateId(state)) != only);
+	}
+
+	private static void compareSection(Section section, DiffCalculator.DiffResult result) {
+		int baseX = SectionPos.sectionToBlockCoord(SectionPos.x(section.key));
+		int baseY = SectionPos.sectionToBlockCoord(SectionPos.y(section.key));
+		int baseZ = SectionPos.sectionToBlockCoord(SectionPos.z(section.key));
+		for (int local : section.expected.keySet().toIntArray()) {
+			int x = local & 15, y = local >>> 8, z = (local >>> 4) & 15;
+			BlockState prev = StatePalette.stateOf(section.expected.get(local));
+			BlockState now = section.live.get(x, y, z);
+			BlockPos pos = new BlockPos(baseX + x, baseY + y, baseZ + z);
+			if (prev != null) {
+				result.previousStates.put(pos, prev);
+			}
+			result.update(pos, now);
+		}
+	}
+
+	/**
+	 * Air and an untracked position both mean "no block".
+	 */
+	private static int normalize(int stateId) {
+		if (stateId == ChangeQueue.NO_STATE) return stateId;
+		BlockState state = StatePalette.stateOf(stateId);
+		return state == null || state.isAir() ? ChangeQueue.NO_STATE : stateId;
+	}
+
+	private static final class CompareSections extends RecursiveAction {
+		private final List<Section> sections;
+		private final DiffCalculator.DiffResult result;
+		private final AtomicInteger skipped;
+		private final int start;
+		private final int end;
+
+		CompareSections(List<Section> sections, DiffCalculator.DiffResult result, AtomicInteger skipped, int start, int end) {
+			this.sections = sections;
+			this.result = result;
+			this.skipped = skipped;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= SECTIONS_PER_TASK) {
+				for (int i = start; i < end; i++) {
+					Section section = sections.get(i);
+					if (section.live == null) continue;
+					if (provenUnchanged(section)) {
+						skipped.incrementAndGet();
+						continue;
+					}
+					compareSection(section, result);
+				}
+				return;
+			}
+			int mid = (start + end) >>> 1;
+			invokeAll(new CompareSections(sections, result, skipped, start, mid),
+				new CompareSections(sections, result, skipped, mid, end));
+		}
+	}
+}
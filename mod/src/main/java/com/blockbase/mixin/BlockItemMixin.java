@@ -11,8 +11,8 @@ import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.core.BlockPos;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.InteractionResult;
-import net.minecraft.world.phys.Vec3;
 
+import com.blockbase.BlockTracker;
 import com.blockbase.Blockbase;
 
 @Mixin(BlockItem.class)
@@ -31,19 +31,11 @@ public class BlockItemMixin {
 			// Get the actual block state from the world (after placement)
 			BlockState placedState = world.getBlockState(blockPos);
 			
-			// Get player's actual position (with decimal precision)
-			Vec3 playerPos = context.getPlayer().position();
-			
-			// Track the block placement (using block position for tracking, but log player position)
-			Blockbase.blockTracker.trackBlockPlace(blockPos, placedState, world);
-			Blockbase.LOGGER.info("Block placed at block ({}, {}, {}), player position ({}, {}, {}): {}", 
-				blockPos.getX(), 
-				blockPos.getY(), 
-				blockPos.getZ(),
-				String.format("%.4f", playerPos.x),
-				String.format("%.4f", playerPos.y),
-				String.format("%.4f", playerPos.z),
-				placedState.getBlock().getName().getString());
+			// Track the block placement (logging is sampled inside the tracker)
+			BlockTracker tracker = Blockbase.trackers.get(world);
+			if (tracker != null) {
+				tracker.trackBlockPlace(blockPos, placedState, world);
+			}
 		}
 	}
 }
@@ -8,7 +8,6 @@ import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 import net.minecraft.core.BlockPos;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.state.BlockState;
-import net.minecraft.world.level.block.state.properties.Property;
 import net.minecraft.world.level.block.Block;
 import net.minecraft.world.level.block.DoorBlock;
 import net.minecraft.world.level.block.TrapDoorBlock;
@@ -16,11 +15,9 @@ import net.minecraft.world.level.block.ButtonBlock;
 import net.minecraft.world.level.block.PressurePlateBlock;
 import net.minecraft.world.level.block.FenceGateBlock;
 
+import com.blockbase.BlockTracker;
 import com.blockbase.Blockbase;
 
-import java.util.Collection;
-import java.util.stream.Collectors;
-
 @Mixin(Level.class)
 public class LevelMixin {
 	@Inject(
@@ -30,13 +27,19 @@ public class LevelMixin {
 	private void onBlockStateChange(BlockPos pos, BlockState newState, int flags, CallbackInfoReturnable<Boolean> cir) {
 		Level self = (Level)(Object)this;
 		
-		// Only track on server side
-		if (!self.isClientSide()) {
+		// Only track on server side, in dimensions that have a tracker shard
+		BlockTracker tracker = self.isClientSide() ? null : Blockbase.trackers.get(self);
+		if (tracker != null) {
 			// Get the old block state before it changes
 			BlockState oldState = self.getBlockState(pos);
 			
 			// Only track if the state actually changed (not just setting the same state)
 			if (oldState != newState && !oldState.equals(newState)) {
+				// Mass edits (/fill, explosions) are captured as section snapshots instead
+				if (tracker.trackWrite(self, pos, oldState)) {
+					return;
+				}
+				
 				// Skip if this is a placement (oldState is air, newState is not)
 				// Skip if this is a break (oldState is not air, newState is air)
 				// These are already tracked by BlockItemMixin and PlayerBlockBreakEvents
@@ -57,49 +60,11 @@ public class LevelMixin {
 						return;
 					}
 					
-					// This is a state modification (e.g., redstone power level change)
-					Blockbase.blockTracker.trackBlockModify(pos, oldState, newState, self);
-					
-					// Find what properties changed to make the log more descriptive
-					String changeDescription = getStateChangeDescription(oldState, newState);
-					
-					Blockbase.LOGGER.info("Block state changed at ({}, {}, {}): {} ({})", 
-						pos.getX(), pos.getY(), pos.getZ(),
-						block.getName().getString(),
-						changeDescription);
+					// This is a state modification (e.g., redstone power level change).
+					// setBlock is hot, so nothing here may allocate or build log strings.
+					tracker.trackBlockModify(pos, oldState, newState, self);
 				}
 			}
 		}
 	}
-	
-	/**
-	 * Get a descriptive string of what changed between two block states.
-	 * For example: "power: 0 -> 15" for redstone wire
-	 */
-	private String getStateChangeDescription(BlockState oldState, BlockState newState) {
-		Collection<Property<?>> oldProperties = oldState.getProperties();
-		Collection<Property<?>> newProperties = newState.getProperties();
-		
-		// Find properties that changed
-		java.util.List<String> changes = oldProperties.stream()
-			.filter(prop -> newProperties.contains(prop))
-			.filter(prop -> {
-				Comparable<?> oldValue = oldState.getValue(prop);
-				Comparable<?> newValue = newState.getValue(prop);
-				return oldValue != null && newValue != null && !oldValue.equals(newValue);
-			})
-			.map(prop -> {
-				Comparable<?> oldValue = oldState.getValue(prop);
-				Comparable<?> newValue = newState.getValue(prop);
-				return prop.getName() + ": " + oldValue + " -> " + newValue;
-			})
-			.collect(Collectors.toList());
-		
-		if (changes.isEmpty()) {
-			return "state changed (unknown property)";
-		}
-		
-		return String.join(", ", changes);
-	}
 }
-